@@ -0,0 +1,453 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Frame layout: [type:1][body length:varint][body]. Ids and versions in bodies are varints and strings are
+// UTF-8, either length-prefixed (varint) or running to the end of the body when they are the last field.
+public final class BinaryCodec {
+
+    // the most a client may send as one line or one frame body
+    public static final int MAX_BODY_LENGTH = 64 * 1024;
+    // in UTF-8 bytes; longer usernames are refused at join, so the names the server puts around text are bounded
+    public static final int MAX_NAME_LENGTH = 64;
+    // the most the server adds in front of a client's text when it passes it on: seq, ids, timestamp, room,
+    // sender and recipient names. Whoever reads what the server sends allows for it, so any text a client
+    // could send can be delivered, replayed and forwarded to other nodes
+    public static final int MAX_HEADER_LENGTH = 256;
+    public static final int MAX_RELAYED_BODY_LENGTH = MAX_BODY_LENGTH + MAX_HEADER_LENGTH;
+
+    // body: seq, senderId, text (server to client) / text (client to server)
+    public static final int GROUP = 1;
+    // body: seq, peerId, text (server to client) / targetId, text (client to server); the peer is the sender
+    // of a delivered message and the target of an echo
+    public static final int DM = 2;
+    // body: text
+    public static final int SERVER = 3;
+    // body: version, count, then count x (id, name); ends a snapshot whose first entries came in SNAPSHOT_PART
+    // frames of the same version, if it was too large for one frame
+    public static final int USER_SNAPSHOT = 4;
+    // body: version, id, name
+    public static final int USER_JOIN = 5;
+    // body: version, id, name
+    public static final int USER_LEAVE = 6;
+    // body: empty
+    public static final int RESYNC = 7;
+    // body: room; echoed back to the member once the server has applied it
+    public static final int ROOM_JOIN = 8;
+    // body: room; echoed back to the member once the server has applied it
+    public static final int ROOM_LEAVE = 9;
+    // body: room (length-prefixed), seq, senderId, text (server to client) / room (length-prefixed), text (client to server)
+    public static final int ROOM_MESSAGE = 10;
+    // body: empty (client to server) / count, then count x (room, members, messages per second x 1000)
+    public static final int ROOM_LIST = 11;
+    // body: afterSeq, 0 for the most recent messages (client to server) /
+    // seq, kind, timestamp, room, sender, recipient (all length-prefixed), text (server to client)
+    public static final int HISTORY = 12;
+    // body: last seq in the log when the replay was taken; ends the HISTORY frames answering one request
+    public static final int HISTORY_END = 13;
+    // body: handle, targetId, name (client to server); binds a handle the client picked, below
+    // PeerHandles.MAX_HANDLES, to the target so DM_SEND can address it without a lookup. targetId 0 binds the
+    // name of a user who is offline
+    public static final int DM_OPEN = 14;
+    // body: handle, messageId, text (client to server); answered with DM_ACK instead of an echo
+    public static final int DM_SEND = 15;
+    // body: messageId, seq, status (server to client)
+    public static final int DM_ACK = 16;
+    // body: as HISTORY (server to client); a DM that waited in the user's inbox while they were offline
+    public static final int INBOX = 17;
+    // body: inner type, inner body length, then the inner body as raw DEFLATE against
+    // FrameCompression.DICTIONARY (server to client, only after both sides agreed on it in the hello)
+    public static final int COMPRESSED = 18;
+    // body: delay in milliseconds (server to client); the server is going down, reconnect after the delay
+    public static final int RECONNECT = 19;
+    // empty body (either direction); answered with PONG. The server pings clients that have gone quiet
+    public static final int PING = 20;
+    // empty body (either direction)
+    public static final int PONG = 21;
+    // body: searchId, beforeSeq (0 for the newest), limit (0 for the server's page size), query (client to
+    // server); answered with SEARCH_HIT frames, newest first, then SEARCH_END
+    public static final int SEARCH = 22;
+    // body: searchId, then as HISTORY (server to client)
+    public static final int SEARCH_HIT = 23;
+    // body: searchId, the beforeSeq that continues the search, or NO_SEQ when there is nothing further back
+    public static final int SEARCH_END = 24;
+    // body: as USER_SNAPSHOT (server to client); entries of a snapshot that the USER_SNAPSHOT after it completes
+    public static final int SNAPSHOT_PART = 25;
+
+    // seq of a message that was not written to the message log
+    public static final long NO_SEQ = 0;
+    // DM without a client message id; answered the old way, with an echo or a notice
+    public static final long NO_MESSAGE_ID = 0;
+
+    // DM_ACK status
+    public static final int DM_DELIVERED = 0;
+    public static final int DM_UNKNOWN_USER = 1;
+    // the target is offline; the DM waits in their inbox and has no seq until it is delivered
+    public static final int DM_QUEUED = 2;
+    // the target is on another node that this one could not pass the DM to (the link is down or far behind);
+    // it was not delivered, and sending it again may work
+    public static final int DM_NOT_DELIVERED = 3;
+
+    private BinaryCodec() {
+    }
+
+    public static ByteBuffer group(long seq, int senderId, String text) {
+        return sequenced(GROUP, seq, senderId, text);
+    }
+
+    public static ByteBuffer dm(long seq, int peerId, String text) {
+        return sequenced(DM, seq, peerId, text);
+    }
+
+    private static ByteBuffer sequenced(int type, long seq, int userId, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(type, varLongSize(seq) + varIntSize(userId) + utf8.length);
+        putVarLong(frame, seq);
+        putVarInt(frame, userId);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    // the client's side of DM
+    public static ByteBuffer clientDm(int targetId, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(DM, varIntSize(targetId) + utf8.length);
+        putVarInt(frame, targetId);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    public static ByteBuffer clientDmOpen(int handle, int targetId, String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(DM_OPEN, varIntSize(handle) + varIntSize(targetId) + utf8.length);
+        putVarInt(frame, handle);
+        putVarInt(frame, targetId);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    public static ByteBuffer clientDmSend(int handle, long messageId, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(DM_SEND, varIntSize(handle) + varLongSize(messageId) + utf8.length);
+        putVarInt(frame, handle);
+        putVarLong(frame, messageId);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    public static ByteBuffer dmAck(long messageId, long seq, int status) {
+        ByteBuffer frame = start(DM_ACK, varLongSize(messageId) + varLongSize(seq) + varIntSize(status));
+        putVarLong(frame, messageId);
+        putVarLong(frame, seq);
+        putVarInt(frame, status);
+        return finish(frame);
+    }
+
+    public static ByteBuffer roomMessage(String room, long seq, int senderId, String text) {
+        byte[] roomUtf8 = room.getBytes(StandardCharsets.UTF_8);
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(ROOM_MESSAGE,
+                varIntSize(roomUtf8.length) + roomUtf8.length + varLongSize(seq) + varIntSize(senderId) + utf8.length);
+        putVarInt(frame, roomUtf8.length);
+        frame.put(roomUtf8);
+        putVarLong(frame, seq);
+        putVarInt(frame, senderId);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    public static ByteBuffer history(LogRecord record) {
+        return record(HISTORY, record);
+    }
+
+    public static ByteBuffer inbox(LogRecord record) {
+        return record(INBOX, record);
+    }
+
+    public static ByteBuffer searchHit(int searchId, LogRecord record) {
+        return record(SEARCH_HIT, searchId, record);
+    }
+
+    public static ByteBuffer searchEnd(int searchId, long next) {
+        ByteBuffer frame = start(SEARCH_END, varIntSize(searchId) + varLongSize(next));
+        putVarInt(frame, searchId);
+        putVarLong(frame, next);
+        return finish(frame);
+    }
+
+    public static ByteBuffer clientSearch(int searchId, long beforeSeq, int limit, String query) {
+        byte[] utf8 = query.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(SEARCH, varIntSize(searchId) + varLongSize(beforeSeq) + varIntSize(limit) + utf8.length);
+        putVarInt(frame, searchId);
+        putVarLong(frame, beforeSeq);
+        putVarInt(frame, limit);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    private static ByteBuffer record(int type, LogRecord record) {
+        return record(type, -1, record);
+    }
+
+    // searchId -1 leaves it out
+    private static ByteBuffer record(int type, int searchId, LogRecord record) {
+        byte[] room = record.getRoom().getBytes(StandardCharsets.UTF_8);
+        byte[] sender = record.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] recipient = record.getRecipient().getBytes(StandardCharsets.UTF_8);
+        byte[] utf8 = record.getText().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(type, (searchId >= 0 ? varIntSize(searchId) : 0)
+                + varLongSize(record.getSeq()) + 1 + varLongSize(record.getTimestamp())
+                + varIntSize(room.length) + room.length
+                + varIntSize(sender.length) + sender.length
+                + varIntSize(recipient.length) + recipient.length
+                + utf8.length);
+        if (searchId >= 0) putVarInt(frame, searchId);
+        putVarLong(frame, record.getSeq());
+        frame.put(record.getKind());
+        putVarLong(frame, record.getTimestamp());
+        putVarInt(frame, room.length);
+        frame.put(room);
+        putVarInt(frame, sender.length);
+        frame.put(sender);
+        putVarInt(frame, recipient.length);
+        frame.put(recipient);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    public static ByteBuffer sequence(int type, long seq) {
+        ByteBuffer frame = start(type, varLongSize(seq));
+        putVarLong(frame, seq);
+        return finish(frame);
+    }
+
+    // the client's side of ROOM_MESSAGE, which has no sender id
+    public static ByteBuffer clientRoomMessage(String room, String text) {
+        byte[] roomUtf8 = room.getBytes(StandardCharsets.UTF_8);
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(ROOM_MESSAGE, varIntSize(roomUtf8.length) + roomUtf8.length + utf8.length);
+        putVarInt(frame, roomUtf8.length);
+        frame.put(roomUtf8);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    public static ByteBuffer roomList(Room[] rooms) {
+        byte[][] names = new byte[rooms.length][];
+        int[] members = new int[rooms.length];
+        long[] milliRates = new long[rooms.length];
+        int bodyLength = varIntSize(rooms.length);
+        for (int i = 0; i < rooms.length; i++) {
+            names[i] = rooms[i].getName().getBytes(StandardCharsets.UTF_8);
+            members[i] = rooms[i].memberCount();
+            milliRates[i] = Math.round(rooms[i].messageRate() * 1000);
+            bodyLength += varIntSize(names[i].length) + names[i].length + varIntSize(members[i]) + varLongSize(milliRates[i]);
+        }
+        ByteBuffer frame = start(ROOM_LIST, bodyLength);
+        putVarInt(frame, rooms.length);
+        for (int i = 0; i < rooms.length; i++) {
+            putVarInt(frame, names[i].length);
+            frame.put(names[i]);
+            putVarInt(frame, members[i]);
+            putVarLong(frame, milliRates[i]);
+        }
+        return finish(frame);
+    }
+
+    public static ByteBuffer text(int type, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(type, utf8.length);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    // every field length-prefixed except the last, which runs to the end of the body
+    public static ByteBuffer strings(int type, String... fields) {
+        byte[][] utf8 = new byte[fields.length][];
+        int bodyLength = 0;
+        for (int i = 0; i < fields.length; i++) {
+            utf8[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            bodyLength += utf8[i].length + (i < fields.length - 1 ? varIntSize(utf8[i].length) : 0);
+        }
+        ByteBuffer frame = start(type, bodyLength);
+        for (int i = 0; i < fields.length; i++) {
+            if (i < fields.length - 1) putVarInt(frame, utf8[i].length);
+            frame.put(utf8[i]);
+        }
+        return finish(frame);
+    }
+
+    public static ByteBuffer empty(int type) {
+        return finish(start(type, 0));
+    }
+
+    public static ByteBuffer presence(int type, long version, int id, String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = start(type, varLongSize(version) + varIntSize(id) + utf8.length);
+        putVarLong(frame, version);
+        putVarInt(frame, id);
+        frame.put(utf8);
+        return finish(frame);
+    }
+
+    // SNAPSHOT_PART frames as needed to keep every body within MAX_BODY_LENGTH, then the USER_SNAPSHOT, back
+    // to back in one buffer
+    public static ByteBuffer userSnapshot(long version, Session[] sessions) {
+        byte[][] names = new byte[sessions.length][];
+        // room for the version and the largest count
+        int maxEntriesLength = MAX_BODY_LENGTH - varLongSize(version) - varIntSize(-1);
+        List<ByteBuffer> frames = new ArrayList<>(1);
+        int first = 0;
+        int entriesLength = 0;
+        for (int i = 0; i < sessions.length; i++) {
+            names[i] = sessions[i].getUsername().getBytes(StandardCharsets.UTF_8);
+            int entryLength = varIntSize(sessions[i].getId()) + varIntSize(names[i].length) + names[i].length;
+            if (entriesLength + entryLength > maxEntriesLength) {
+                frames.add(userSnapshot(SNAPSHOT_PART, version, sessions, names, first, i, entriesLength));
+                first = i;
+                entriesLength = 0;
+            }
+            entriesLength += entryLength;
+        }
+        ByteBuffer last = userSnapshot(USER_SNAPSHOT, version, sessions, names, first, sessions.length, entriesLength);
+        if (frames.isEmpty()) return last;
+        frames.add(last);
+        int length = 0;
+        for (ByteBuffer frame : frames) {
+            length += frame.remaining();
+        }
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for (ByteBuffer frame : frames) {
+            joined.put(frame);
+        }
+        joined.flip();
+        return joined.asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer userSnapshot(int type, long version, Session[] sessions, byte[][] names, int from,
+                                           int to, int entriesLength) {
+        ByteBuffer frame = start(type, varLongSize(version) + varIntSize(to - from) + entriesLength);
+        putVarLong(frame, version);
+        putVarInt(frame, to - from);
+        for (int i = from; i < to; i++) {
+            putVarInt(frame, sessions[i].getId());
+            putVarInt(frame, names[i].length);
+            frame.put(names[i]);
+        }
+        return finish(frame);
+    }
+
+    // where the frame starting at `start` ends
+    static int frameEnd(ByteBuffer frames, int start) {
+        int position = start + 1;
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = frames.get(position++);
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return position + length;
+    }
+
+    // for frame types defined elsewhere (ClusterNode); the caller fills exactly bodyLength bytes
+    static ByteBuffer start(int type, int bodyLength) {
+        ByteBuffer frame = ByteBuffer.allocate(1 + varIntSize(bodyLength) + bodyLength);
+        frame.put((byte) type);
+        putVarInt(frame, bodyLength);
+        return frame;
+    }
+
+    static ByteBuffer finish(ByteBuffer frame) {
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    public static int varIntSize(int value) {
+        return varLongSize(value & 0xFFFFFFFFL);
+    }
+
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        putVarLong(buffer, value & 0xFFFFFFFFL);
+    }
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // Reads fields out of a frame body in place; one instance is reused per connection.
+    public static final class Cursor {
+        private byte[] buffer;
+        private int position;
+        private int limit;
+
+        public Cursor reset(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.limit = offset + length;
+            return this;
+        }
+
+        public boolean hasRemaining() {
+            return position < limit;
+        }
+
+        public int remaining() {
+            return limit - position;
+        }
+
+        public int readVarInt() throws ProtocolException {
+            long value = readVarLong();
+            if (value > 0xFFFFFFFFL) throw new ProtocolException("varint out of range");
+            return (int) value;
+        }
+
+        public long readVarLong() throws ProtocolException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= limit) throw new ProtocolException("truncated varint");
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new ProtocolException("varint too long");
+        }
+
+        public String readString() throws ProtocolException {
+            int length = readVarInt();
+            if (length > limit - position) throw new ProtocolException("truncated string");
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        public String readRemaining() {
+            String value = new String(buffer, position, limit - position, StandardCharsets.UTF_8);
+            position = limit;
+            return value;
+        }
+
+        public byte[] readRemainingBytes() {
+            byte[] value = Arrays.copyOfRange(buffer, position, limit);
+            position = limit;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// JFR event around one fan-out in ChatHub; its duration is the time to queue the message for every recipient.
+@Name("talkhub.Broadcast")
+@Label("Broadcast")
+@Category("TalkHub")
+@Description("One message queued for every member of a room, or for every session")
+public class BroadcastEvent extends Event {
+
+    @Label("Scope")
+    @Description("Room name, or * for server-wide notices")
+    String scope;
+
+    @Label("Recipients")
+    int recipients;
+}
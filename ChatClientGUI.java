@@ -3,46 +3,44 @@ import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.Socket;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.List;
 
 public class ChatClientGUI extends JFrame {
 
-    private Socket socket;
-    private BufferedReader reader;
-    private BufferedWriter writer;
-    private String username;
+    // how often decoded events are taken off the connection and applied, at most once per frame
+    private static final int DRAIN_INTERVAL_MILLIS = 16;
+
+    private final ChatConnection connection;
+    private final String username;
+    private final List<ChatEvent> events = new ArrayList<>();
 
     private JTextPane chatPane;
-    private StyledDocument doc;
+    private ChatTranscript transcript;
     private JTextField messageField;
     private JButton sendButton;
     private JCheckBox autoScrollBox;
+    // rooms the server has confirmed; group messages go to the selected one
+    private DefaultComboBoxModel<String> roomModel;
+    private JComboBox<String> roomBox;
 
     private DefaultListModel<String> userListModel;
     private JList<String> usersList;
+    private static final Comparator<String> USER_ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
 
     private Map<String, PrivateChatWindow> privateChats = new HashMap<>();
+    // created on first use
+    private SearchWindow searchWindow;
 
-    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
-
-    public ChatClientGUI(Socket socket, String username) {
-        this.socket = socket;
-        this.username = username;
-
-        try {
-            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer.write(username);
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            closeEverything();
-        }
+    public ChatClientGUI(ChatConnection connection) {
+        this.connection = connection;
+        this.username = connection.getUsername();
 
         setupGUI();
-        listenForMessages();
+        // the network threads never touch Swing; whatever they decoded is applied here in one batch per tick
+        new javax.swing.Timer(DRAIN_INTERVAL_MILLIS, e -> applyEvents()).start();
     }
 
     private void setupGUI() {
@@ -58,13 +56,38 @@ public class ChatClientGUI extends JFrame {
         chatHeader.setFont(new Font("Arial", Font.BOLD, 18));
         chatHeader.setHorizontalAlignment(SwingConstants.CENTER);
         chatHeader.setBorder(BorderFactory.createEmptyBorder(10, 0, 10, 0));
-        add(chatHeader, BorderLayout.NORTH);
+
+        roomModel = new DefaultComboBoxModel<>(new String[] {ChatHub.LOBBY});
+        roomBox = new JComboBox<>(roomModel);
+        roomBox.setFont(new Font("SansSerif", Font.PLAIN, 14));
+        JButton joinRoomButton = new JButton("Join Room");
+        JButton leaveRoomButton = new JButton("Leave Room");
+        JButton listRoomsButton = new JButton("Rooms");
+        JButton searchButton = new JButton("Search");
+        joinRoomButton.addActionListener(e -> joinRoom());
+        leaveRoomButton.addActionListener(e -> leaveRoom());
+        listRoomsButton.addActionListener(e -> queued(connection.requestRoomList()));
+        searchButton.addActionListener(e -> openSearch());
+
+        JPanel roomBar = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 4));
+        roomBar.add(new JLabel("Room:"));
+        roomBar.add(roomBox);
+        roomBar.add(joinRoomButton);
+        roomBar.add(leaveRoomButton);
+        roomBar.add(listRoomsButton);
+        roomBar.add(searchButton);
+
+        JPanel headerPanel = new JPanel(new BorderLayout());
+        headerPanel.add(chatHeader, BorderLayout.CENTER);
+        headerPanel.add(roomBar, BorderLayout.SOUTH);
+        add(headerPanel, BorderLayout.NORTH);
 
         chatPane = new JTextPane();
         chatPane.setEditable(false);
         chatPane.setFont(new Font("SansSerif", Font.PLAIN, 14));
-        doc = chatPane.getStyledDocument();
         JScrollPane chatScrollPane = new JScrollPane(chatPane);
+        transcript = new ChatTranscript(chatPane, chatScrollPane, Color.BLUE, null, Color.GRAY,
+                () -> autoScrollBox.isSelected(), 2_000, 50_000);
 
         userListModel = new DefaultListModel<>();
         usersList = new JList<>(userListModel);
@@ -119,7 +142,7 @@ public class ChatClientGUI extends JFrame {
                         JOptionPane.YES_NO_OPTION
                 );
                 if (confirm == JOptionPane.YES_OPTION) {
-                    closeEverything();
+                    connection.close();
                     System.exit(0);
                 }
             }
@@ -128,20 +151,49 @@ public class ChatClientGUI extends JFrame {
         setVisible(true);
     }
 
+    // only queues the message; the connection's writer thread sends it, so a stalled server cannot freeze the window
     private void sendGroupMessage() {
         String message = messageField.getText().trim();
         if (!message.isEmpty()) {
-            try {
-                String fullMessage = username + ": " + message;
-                writer.write(fullMessage);
-                writer.newLine();
-                writer.flush();
+            String room = (String) roomBox.getSelectedItem();
+            if (!queued(connection.sendMessage(room, message))) return;
+            if (room == null || room.equals(ChatHub.LOBBY)) {
                 appendMessage(username, message, true);
-                messageField.setText("");
-            } catch (IOException e) {
-                appendServerMessage("Server : Failed to send message.");
-                closeEverything();
+            } else {
+                appendMessage(username, "[#" + room + "] " + message, true);
             }
+            messageField.setText("");
+        }
+    }
+
+    private void joinRoom() {
+        String room = JOptionPane.showInputDialog(this, "Room name:");
+        if (room != null && !room.trim().isEmpty()) {
+            queued(connection.joinRoom(room.trim()));
+        }
+    }
+
+    private void leaveRoom() {
+        String room = (String) roomBox.getSelectedItem();
+        if (room != null) {
+            queued(connection.leaveRoom(room));
+        }
+    }
+
+    private boolean queued(boolean accepted) {
+        if (!accepted) appendServerMessage("Server : Failed to send message.");
+        return accepted;
+    }
+
+    // confirmations from the server; the room list only changes when one arrives
+    private void applyRoomMembership(String room, boolean joined) {
+        if (joined) {
+            if (roomModel.getIndexOf(room) < 0) roomModel.addElement(room);
+            roomModel.setSelectedItem(room);
+            appendServerMessage("Server : You joined room " + room + ".");
+        } else {
+            roomModel.removeElement(room);
+            appendServerMessage("Server : You left room " + room + ".");
         }
     }
 
@@ -155,131 +207,140 @@ public class ChatClientGUI extends JFrame {
         win.toFront();
     }
 
-    private void listenForMessages() {
-        new Thread(() -> {
-            String msg;
-            try {
-                while ((msg = reader.readLine()) != null) {
-                    if (msg.startsWith("__USER_LIST__:")) {
-                        updateUserList(msg.substring("__USER_LIST__:".length()));
-                    } else if (msg.startsWith("__DM__:")) {
-                        handleIncomingDM(msg);
-                    } else if (msg.startsWith("Server")) {
-                        appendServerMessage(msg);
-                    } else {
-                        int index = msg.indexOf(":");
-                        if (index != -1) {
-                            String sender = msg.substring(0, index);
-                            String content = msg.substring(index + 1).trim();
-                            appendMessage(sender, content, false);
-                        } else {
-                            appendMessage("Unknown", msg, false);
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                appendServerMessage("Server : Connection closed.");
-                closeEverything();
-            }
-        }).start();
+    private void openSearch() {
+        if (searchWindow == null) {
+            searchWindow = new SearchWindow();
+        }
+        searchWindow.setVisible(true);
+        searchWindow.toFront();
     }
 
-    private void handleIncomingDM(String raw) {
-        String body = raw.substring("__DM__:".length());
-        int first = body.indexOf(':');
-        if (first == -1) return;
-        String otherUser = body.substring(0, first).trim();
-        String message = body.substring(first + 1).trim();
-
-        SwingUtilities.invokeLater(() -> {
-            PrivateChatWindow win = privateChats.get(otherUser);
-            if (win == null) {
-                win = new PrivateChatWindow(otherUser);
-                privateChats.put(otherUser, win);
-            }
-            win.appendIncomingOrEcho(otherUser, message);
-            win.setVisible(true);
-        });
+    private void applyEvents() {
+        connection.drainEvents(events);
+        for (ChatEvent event : events) {
+            apply(event);
+        }
+        events.clear();
     }
 
-    private void updateUserList(String csvUsernames) {
-        SwingUtilities.invokeLater(() -> {
-            userListModel.clear();
-            if (!csvUsernames.trim().isEmpty()) {
-                String[] users = csvUsernames.split(",");
-                for (String u : users) {
-                    userListModel.addElement(u.trim());
+    private void apply(ChatEvent event) {
+        switch (event.getKind()) {
+            case USER_SNAPSHOT:
+                applyUserSnapshot(event.getUsers());
+                break;
+            case USER_JOINED:
+            case USER_LEFT:
+                applyPresenceDelta(event.getUser(), event.getKind() == ChatEvent.Kind.USER_JOINED);
+                break;
+            case ROOM_JOINED:
+            case ROOM_LEFT:
+                applyRoomMembership(event.getRoom(), event.getKind() == ChatEvent.Kind.ROOM_JOINED);
+                break;
+            case ROOM_LIST:
+                appendServerMessage("Server : Rooms: " + event.getText());
+                break;
+            case GROUP:
+                appendMessage(event.getUser(), event.getText(), event.isFromSelf(), new Date(event.getTime()));
+                break;
+            case ROOM_MESSAGE:
+                appendMessage(event.getUser(), "[#" + event.getRoom() + "] " + event.getText(), event.isFromSelf(),
+                        new Date(event.getTime()));
+                break;
+            case DM:
+                showDM(event);
+                break;
+            case DM_ACK:
+                if (event.getText() != null && event.getUser() != null) {
+                    PrivateChatWindow win = privateChats.get(event.getUser());
+                    if (win != null) win.appendDM("Server", event.getText(), false);
                 }
-            }
-        });
+                break;
+            case SEARCH_HIT:
+                if (searchWindow != null) searchWindow.addHit(event);
+                break;
+            case SEARCH_END:
+                if (searchWindow != null) searchWindow.endPage(event);
+                break;
+            case SERVER:
+            case CONNECTED:
+            case DISCONNECTED:
+            case CLOSED:
+                appendServerMessage("Server : " + event.getText());
+                break;
+            default:
+                break;
+        }
     }
 
-    private void appendMessage(String sender, String message, boolean isSelf) {
-        try {
-            Style userStyle = chatPane.addStyle("UserStyle", null);
-            StyleConstants.setBold(userStyle, true);
-            StyleConstants.setFontSize(userStyle, 14);
-            if (isSelf) {
-                StyleConstants.setForeground(userStyle, Color.BLUE);
-                sender = "You";
-            }
-
-            Style msgStyle = chatPane.addStyle("MsgStyle", null);
-            StyleConstants.setFontSize(msgStyle, 14);
-
-            Style timeStyle = chatPane.addStyle("TimeStyle", null);
-            StyleConstants.setFontSize(timeStyle, 10);
-            StyleConstants.setForeground(timeStyle, Color.GRAY);
+    private void showDM(ChatEvent event) {
+        String otherUser = event.getUser();
+        PrivateChatWindow win = privateChats.get(otherUser);
+        if (win == null) {
+            win = new PrivateChatWindow(otherUser);
+            privateChats.put(otherUser, win);
+        }
+        if (event.isHistory()) {
+            // logged messages sent on request after connect; shown with their original time
+            win.appendDM(event.isFromSelf() ? "You" : otherUser, event.getText(), event.isFromSelf(),
+                    new Date(event.getTime()));
+        } else {
+            win.appendDM(otherUser, event.getText(), false, new Date(event.getTime()));
+            win.setVisible(true);
+        }
+    }
 
-            String timestamp = " [" + timeFormat.format(new Date()) + "]";
-            doc.insertString(doc.getLength(), sender + ": ", userStyle);
-            doc.insertString(doc.getLength(), message, msgStyle);
-            doc.insertString(doc.getLength(), timestamp + "\n", timeStyle);
+    // replaces the whole list, so it only arrives on connect or resync
+    private void applyUserSnapshot(List<String> users) {
+        List<String> sorted = new ArrayList<>(users);
+        sorted.sort(USER_ORDER);
+        userListModel.clear();
+        userListModel.addAll(sorted);
+    }
 
-            if (autoScrollBox.isSelected()) {
-                chatPane.setCaretPosition(doc.getLength());
-            }
-        } catch (BadLocationException e) {
-            e.printStackTrace();
+    // applied in place on the sorted model; the connection has already put deltas in version order
+    private void applyPresenceDelta(String user, boolean joined) {
+        int index = indexOfUser(user);
+        if (joined && index < 0) {
+            userListModel.add(-index - 1, user);
+        } else if (!joined && index >= 0) {
+            userListModel.remove(index);
         }
     }
 
-    private void appendServerMessage(String msg) {
-        try {
-            Style serverStyle = chatPane.addStyle("ServerStyle", null);
-            StyleConstants.setItalic(serverStyle, true);
-            StyleConstants.setForeground(serverStyle, Color.MAGENTA);
-            StyleConstants.setFontSize(serverStyle, 12);
+    // binary search over the sorted model; returns -(insertion point) - 1 when absent
+    private int indexOfUser(String user) {
+        int low = 0;
+        int high = userListModel.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = USER_ORDER.compare(userListModel.get(mid), user);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
 
-            String timestamp = " [" + timeFormat.format(new Date()) + "]";
-            doc.insertString(doc.getLength(), msg + timestamp + "\n", serverStyle);
+    private void appendMessage(String sender, String message, boolean isSelf) {
+        appendMessage(sender, message, isSelf, new Date());
+    }
 
-            if (autoScrollBox.isSelected()) {
-                chatPane.setCaretPosition(doc.getLength());
-            }
-        } catch (BadLocationException e) {
-            e.printStackTrace();
-        }
+    private void appendMessage(String sender, String message, boolean isSelf, Date time) {
+        transcript.appendMessage(isSelf ? "You" : sender, message, isSelf, time);
     }
 
-    private void closeEverything() {
-        try {
-            if (reader != null) reader.close();
-            if (writer != null) writer.close();
-            if (socket != null) socket.close();
-        } catch (IOException ignored) {}
+    private void appendServerMessage(String msg) {
+        transcript.appendServerMessage(msg);
     }
 
     // Private Chat Window (peach themed with header)
     private class PrivateChatWindow extends JFrame {
         private final String otherUser;
         private final JTextPane dmPane;
-        private final StyledDocument dmDoc;
+        private final ChatTranscript dmTranscript;
         private final JTextField dmField;
         private final JButton dmSendBtn;
 
-        private final Deque<String> lastSent = new ArrayDeque<>(10);
-
         private final Color BG_PEACH     = new Color(0xFF, 0xE9, 0xDC); // #FFE9DC
         private final Color HEADER_PEACH = new Color(0xFF, 0xC7, 0xA9); // #FFC7A9
         private final Color YOU_COLOR    = new Color(0xE6, 0x72, 0x4C); // #E6724C
@@ -305,8 +366,8 @@ public class ChatClientGUI extends JFrame {
             dmPane = new JTextPane();
             dmPane.setEditable(false);
             dmPane.setBackground(BG_PEACH);
-            dmDoc = dmPane.getStyledDocument();
             JScrollPane scroll = new JScrollPane(dmPane);
+            dmTranscript = new ChatTranscript(dmPane, scroll, YOU_COLOR, OTHER_COLOR, TIME_COLOR, () -> true, 1_000, 10_000);
 
             JPanel bottom = new JPanel(new BorderLayout(5, 5));
             dmField = new JTextField();
@@ -328,58 +389,113 @@ public class ChatClientGUI extends JFrame {
         private void sendDM() {
             String msg = dmField.getText().trim();
             if (msg.isEmpty()) return;
-            try {
-                writer.write("__DM__:" + otherUser + ":" + msg);
-                writer.newLine();
-                writer.flush();
-
-                appendDM("You", msg, true);
-                rememberSent(msg);
-                dmField.setText("");
-            } catch (IOException e) {
+            if (connection.sendDirect(otherUser, msg) == BinaryCodec.NO_MESSAGE_ID) {
                 appendDM("Server", "Failed to send DM.", false);
-            }
-        }
-
-        void appendIncomingOrEcho(String serverOtherUser, String message) {
-            if (wasJustSent(message)) {
                 return;
             }
-            appendDM(serverOtherUser, message, false);
+            // the server acks rather than echoes, so this is the only copy we show
+            appendDM("You", msg, true);
+            dmField.setText("");
         }
 
         private void appendDM(String sender, String message, boolean isSelf) {
-            try {
-                Style userStyle = dmPane.addStyle("dmUserStyle", null);
-                StyleConstants.setBold(userStyle, true);
-                StyleConstants.setFontSize(userStyle, 14);
-                StyleConstants.setForeground(userStyle, isSelf ? YOU_COLOR : OTHER_COLOR);
-
-                Style msgStyle = dmPane.addStyle("dmMsgStyle", null);
-                StyleConstants.setFontSize(msgStyle, 14);
-
-                Style timeStyle = dmPane.addStyle("dmTimeStyle", null);
-                StyleConstants.setFontSize(timeStyle, 10);
-                StyleConstants.setForeground(timeStyle, TIME_COLOR);
-
-                String timestamp = " [" + timeFormat.format(new Date()) + "]";
-                dmDoc.insertString(dmDoc.getLength(), sender + ": ", userStyle);
-                dmDoc.insertString(dmDoc.getLength(), message, msgStyle);
-                dmDoc.insertString(dmDoc.getLength(), timestamp + "\n", timeStyle);
-
-                dmPane.setCaretPosition(dmDoc.getLength());
-            } catch (BadLocationException e) {
-                e.printStackTrace();
-            }
+            appendDM(sender, message, isSelf, new Date());
         }
 
-        private void rememberSent(String msg) {
-            if (lastSent.size() == 10) lastSent.removeFirst();
-            lastSent.addLast(msg);
+        private void appendDM(String sender, String message, boolean isSelf, Date time) {
+            dmTranscript.appendMessage(sender, message, isSelf, time);
         }
+    }
+
+    // Searches the server's message history. Results arrive a page at a time, newest first, and are listed as
+    // they come; "Older results" asks for the next page. Only the latest search is shown, so hits still
+    // arriving for one the user has replaced are dropped.
+    private class SearchWindow extends JFrame {
+        private static final long serialVersionUID = 1L;
+
+        private final JTextField queryField;
+        private final DefaultListModel<String> resultModel = new DefaultListModel<>();
+        private final JLabel statusLabel;
+        private final JButton olderButton;
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+        private String query;
+        private int searchId;
+        // where the next page starts; NO_SEQ when there are no older matches
+        private long next = BinaryCodec.NO_SEQ;
+
+        SearchWindow() {
+            setTitle("Search History - " + username);
+            setSize(600, 450);
+            setLayout(new BorderLayout(5, 5));
+            setDefaultCloseOperation(HIDE_ON_CLOSE);
 
-        private boolean wasJustSent(String msg) {
-            return lastSent.remove(msg);
+            queryField = new JTextField();
+            queryField.setFont(new Font("SansSerif", Font.PLAIN, 14));
+            JButton searchBtn = new JButton("Search");
+            searchBtn.setFont(new Font("SansSerif", Font.BOLD, 14));
+            JPanel top = new JPanel(new BorderLayout(5, 5));
+            top.setBorder(BorderFactory.createEmptyBorder(5, 5, 0, 5));
+            top.add(queryField, BorderLayout.CENTER);
+            top.add(searchBtn, BorderLayout.EAST);
+
+            JList<String> results = new JList<>(resultModel);
+            results.setFont(new Font("SansSerif", Font.PLAIN, 13));
+
+            statusLabel = new JLabel("Messages containing every word, newest first.");
+            olderButton = new JButton("Older results");
+            olderButton.setEnabled(false);
+            JPanel bottom = new JPanel(new BorderLayout(5, 5));
+            bottom.setBorder(BorderFactory.createEmptyBorder(0, 5, 5, 5));
+            bottom.add(statusLabel, BorderLayout.CENTER);
+            bottom.add(olderButton, BorderLayout.EAST);
+
+            searchBtn.addActionListener(e -> startSearch());
+            queryField.addActionListener(e -> startSearch());
+            olderButton.addActionListener(e -> requestPage(next));
+
+            add(top, BorderLayout.NORTH);
+            add(new JScrollPane(results), BorderLayout.CENTER);
+            add(bottom, BorderLayout.SOUTH);
+        }
+
+        private void startSearch() {
+            String text = queryField.getText().trim();
+            if (text.isEmpty()) return;
+            query = text;
+            resultModel.clear();
+            requestPage(BinaryCodec.NO_SEQ);
+        }
+
+        private void requestPage(long before) {
+            olderButton.setEnabled(false);
+            searchId = connection.search(query, before);
+            statusLabel.setText(searchId != 0 ? "Searching..." : "Failed to send search.");
+        }
+
+        void addHit(ChatEvent event) {
+            if (event.getMessageId() != searchId) return;
+            String time = "[" + timeFormat.format(new Date(event.getTime())) + "] ";
+            String who = event.isFromSelf() ? "You" : event.getUser();
+            if (event.getRoom() == null) {
+                resultModel.addElement(time + "DM " + (event.isFromSelf() ? "to " : "from ") + event.getUser()
+                        + ": " + event.getText());
+            } else if (event.getRoom().equals(ChatHub.LOBBY)) {
+                resultModel.addElement(time + who + ": " + event.getText());
+            } else {
+                resultModel.addElement(time + "#" + event.getRoom() + " " + who + ": " + event.getText());
+            }
+        }
+
+        void endPage(ChatEvent event) {
+            if (event.getMessageId() != searchId) return;
+            next = event.getSeq();
+            olderButton.setEnabled(next != BinaryCodec.NO_SEQ);
+            if (resultModel.isEmpty() && next == BinaryCodec.NO_SEQ) {
+                statusLabel.setText("No messages found.");
+            } else {
+                statusLabel.setText(resultModel.size() + " result(s)" + (next != BinaryCodec.NO_SEQ ? ", more available." : "."));
+            }
         }
     }
 
@@ -391,8 +507,9 @@ public class ChatClientGUI extends JFrame {
                 return;
             }
             try {
-                Socket socket = new Socket("localhost", 1234);
-                new ChatClientGUI(socket, username.trim());
+                ChatConnection connection = new ChatConnection("localhost", 1234, username.trim());
+                connection.open();
+                new ChatClientGUI(connection);
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(null, "Unable to connect to server.");
             }
@@ -0,0 +1,724 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Inflater;
+
+// Client side of the binary protocol with no UI attached. Sends are queued and written by a writer thread,
+// inbound frames are decoded on a reader thread into ChatEvents, and the consumer takes those in batches with
+// drainEvents() (a UI once per frame) or one at a time with pollEvent(). When the connection drops it is
+// re-established with exponential backoff; rooms are rejoined and history is requested from the last seq
+// seen, so nothing sent in between is missed.
+public class ChatConnection {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final int OUTBOUND_CAPACITY = 1024;
+    // if the consumer stops draining, the reader blocks and the server's own overflow policy takes over
+    private static final int INBOUND_CAPACITY = 64 * 1024;
+    private static final int MAX_WRITE_BATCH = 64;
+    // session ids start at 1; DM_OPEN with this id binds the name alone
+    private static final int OFFLINE_ID = 0;
+
+    private final String host;
+    private final int port;
+    private final String username;
+
+    // survives reconnects, so messages sent while the connection is down go out once it is back; a writer that
+    // loses its connection puts what it had not written back at the front
+    private final BlockingDeque<ByteBuffer> outbound = new LinkedBlockingDeque<>(OUTBOUND_CAPACITY);
+    private final BlockingQueue<ChatEvent> inbound = new LinkedBlockingQueue<>(INBOUND_CAPACITY);
+    // binary frames name users by id; written by the reader thread, read by callers of sendDirect()
+    private final Map<Integer, String> userNames = new ConcurrentHashMap<>();
+    private final Map<String, Integer> userIds = new ConcurrentHashMap<>();
+
+    // DM handles bound on the current session, user -> handle, least recently used first.
+    // A handle is bound with DM_OPEN the first time we write to a user (or to a new id of theirs, or once they
+    // went offline) and reused after that, so each DM_SEND is routed by the server without a lookup.
+    // Guarded by dmLock, which also keeps a DM_OPEN ahead of the DM_SENDs that rely on it in the send queue.
+    private final ReentrantLock dmLock = new ReentrantLock();
+    private final LinkedHashMap<String, DmHandle> dmHandles = new LinkedHashMap<>(16, 0.75f, true);
+    private int nextDmHandle;
+    private final AtomicLong dmIds = new AtomicLong();
+    // DMs not acked yet, message id -> target
+    private final Map<Long, String> pendingDms = new ConcurrentHashMap<>();
+    private final AtomicInteger searchIds = new AtomicInteger();
+
+    // owned by the reader thread
+    private long presenceVersion = -1;
+    // a snapshot arriving in SNAPSHOT_PART frames, until the USER_SNAPSHOT that ends it; null when none is
+    private List<String> snapshotUsers;
+    private Map<Integer, String> snapshotNames;
+    private long snapshotVersion;
+    private final Set<String> joinedRooms = new HashSet<>();
+    private final Set<String> rejoining = new HashSet<>();
+    // seqs of live messages that arrived while a history replay was in flight, so the replay skips them;
+    // null when no replay is running
+    private Set<Long> liveDuringReplay;
+    // seqs of DMs replayed on this session: an inbox delivery logs its DMs just before sending them, so a
+    // replay running at the same time can hand them over first
+    private final Set<Long> replayedDms = new HashSet<>();
+    private long lastSeq = BinaryCodec.NO_SEQ;
+    private long historyRequestedAfter;
+    private long lastHistorySeq;
+    // the delay a server going down asked for, used instead of the backoff for the next reconnect; -1 if none
+    private long reconnectHintMillis = -1;
+    // COMPRESSED frames are inflated into a fresh array and read through their own cursor
+    private final Inflater inflater = new Inflater(true);
+    private final BinaryCodec.Cursor inflatedBody = new BinaryCodec.Cursor();
+
+    private volatile Socket socket;
+    private volatile Thread writerThread;
+    private volatile boolean closed;
+    private volatile String closeReason = "Connection closed.";
+    private boolean joinedOnce;
+
+    public ChatConnection(String host, int port, String username) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    // the first attempt is made on the caller's thread so it can report a server that is not there at all;
+    // from then on the connection keeps itself up until close()
+    public void open() throws IOException {
+        Socket first = connect();
+        Thread reader = new Thread(() -> run(first), "chat-connection-" + username);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public boolean isConnected() {
+        Socket current = socket;
+        return current != null && !current.isClosed();
+    }
+
+    // false when the send queue is full; frames queued while disconnected are sent after the reconnect
+    public boolean send(ByteBuffer frame) {
+        return !closed && outbound.offer(frame);
+    }
+
+    // room null or the lobby sends a group message
+    public boolean sendMessage(String room, String text) {
+        if (room == null || room.equals(ChatHub.LOBBY)) {
+            return send(BinaryCodec.text(BinaryCodec.GROUP, text));
+        }
+        return send(BinaryCodec.clientRoomMessage(room, text));
+    }
+
+    // returns the message id the DM_ACK event will carry, or NO_MESSAGE_ID when the send queue is full. Users
+    // who are offline can be written to as well; the server keeps the DM for them if it knows the name
+    public long sendDirect(String user, String text) {
+        if (closed) return BinaryCodec.NO_MESSAGE_ID;
+        Integer online = userIds.get(user);
+        int id = online != null ? online : OFFLINE_ID;
+        dmLock.lock();
+        try {
+            DmHandle handle = dmHandles.get(user);
+            if (handle == null || handle.targetId != id) {
+                handle = bindDmHandle(user, id);
+                if (!outbound.offer(BinaryCodec.clientDmOpen(handle.number, id, user))) {
+                    dmHandles.remove(user);
+                    return BinaryCodec.NO_MESSAGE_ID;
+                }
+            }
+            long messageId = dmIds.incrementAndGet();
+            pendingDms.put(messageId, user);
+            if (!outbound.offer(BinaryCodec.clientDmSend(handle.number, messageId, text))) {
+                pendingDms.remove(messageId);
+                return BinaryCodec.NO_MESSAGE_ID;
+            }
+            return messageId;
+        } finally {
+            dmLock.unlock();
+        }
+    }
+
+    // caller holds dmLock; once all handles are in use the least recently used one is taken over
+    private DmHandle bindDmHandle(String user, int targetId) {
+        DmHandle previous = dmHandles.remove(user);
+        int number;
+        if (previous != null) {
+            number = previous.number;
+        } else if (nextDmHandle < PeerHandles.MAX_HANDLES) {
+            number = nextDmHandle++;
+        } else {
+            Map.Entry<String, DmHandle> eldest = dmHandles.entrySet().iterator().next();
+            number = eldest.getValue().number;
+            dmHandles.remove(eldest.getKey());
+        }
+        DmHandle handle = new DmHandle(number, targetId);
+        dmHandles.put(user, handle);
+        return handle;
+    }
+
+    public boolean joinRoom(String room) {
+        return send(BinaryCodec.text(BinaryCodec.ROOM_JOIN, room));
+    }
+
+    public boolean leaveRoom(String room) {
+        return send(BinaryCodec.text(BinaryCodec.ROOM_LEAVE, room));
+    }
+
+    public boolean requestRoomList() {
+        return send(BinaryCodec.empty(BinaryCodec.ROOM_LIST));
+    }
+
+    // asks for a page of logged messages containing every word of the query, older than beforeSeq (NO_SEQ for
+    // the newest). Returns the id the SEARCH_HIT and SEARCH_END events will carry, or 0 when the send queue
+    // is full; a search sent while disconnected goes out after the reconnect
+    public int search(String query, long beforeSeq) {
+        int searchId = searchIds.incrementAndGet();
+        return send(BinaryCodec.clientSearch(searchId, beforeSeq, 0, query)) ? searchId : 0;
+    }
+
+    public boolean isOnline(String user) {
+        return userIds.containsKey(user);
+    }
+
+    // moves everything decoded so far into target without blocking; returns how many events were moved
+    public int drainEvents(Collection<? super ChatEvent> target) {
+        return inbound.drainTo(target);
+    }
+
+    public ChatEvent pollEvent(long timeout, TimeUnit unit) throws InterruptedException {
+        return inbound.poll(timeout, unit);
+    }
+
+    public void close() {
+        closed = true;
+        closeSocket(socket);
+        outbound.clear();
+    }
+
+    private void run(Socket first) {
+        Socket current = first;
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        while (!closed) {
+            boolean dropped = false;
+            if (current != null) {
+                if (readLoop(current)) {
+                    backoff = INITIAL_BACKOFF_MILLIS;
+                    dropped = true;
+                }
+                current = null;
+                if (closed) break;
+                if (!joinedOnce) {
+                    // refused before we ever joined (e.g. the username is taken): retrying will not help
+                    break;
+                }
+            }
+            // jitter over the upper half, so clients dropped together do not come back together
+            long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            String reason = dropped ? "Connection lost" : "Reconnect failed";
+            if (reconnectHintMillis >= 0) {
+                // the server already spread its clients out
+                delay = reconnectHintMillis;
+                reason = "Server restarting";
+                reconnectHintMillis = -1;
+            }
+            publish(ChatEvent.notice(ChatEvent.Kind.DISCONNECTED, String.format(Locale.ROOT, "%s, retrying in %.1fs.",
+                    reason, delay / 1000.0)));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            if (closed) break;
+            try {
+                current = connect();
+            } catch (IOException e) {
+                current = null;
+            }
+        }
+        closed = true;
+        publish(ChatEvent.notice(ChatEvent.Kind.CLOSED, closeReason));
+    }
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            s.setTcpNoDelay(true);
+            return s;
+        } catch (IOException e) {
+            closeSocket(s);
+            throw e;
+        }
+    }
+
+    // returns false when the handshake did not complete
+    private boolean readLoop(Socket s) {
+        FrameReader reader;
+        socket = s;
+        try {
+            // the server's frames carry a header around text that may itself be as long as a body
+            reader = new FrameReader(s.getInputStream(), BinaryCodec.MAX_RELAYED_BODY_LENGTH);
+            BufferedOutputStream stream = new BufferedOutputStream(s.getOutputStream());
+            WritableByteChannel out = Channels.newChannel(stream);
+            handshake(reader, out, stream);
+            Thread writer = new Thread(() -> writeLoop(s, out, stream), "chat-writer-" + username);
+            writer.setDaemon(true);
+            writerThread = writer;
+            writer.start();
+        } catch (IOException e) {
+            closeSocket(s);
+            socket = null;
+            return false;
+        }
+        publish(ChatEvent.notice(ChatEvent.Kind.CONNECTED, "Connected to " + host + ":" + port + "."));
+        try {
+            int type;
+            while ((type = reader.readFrame()) != -1) {
+                decode(type, reader.body());
+            }
+        } catch (IOException e) {
+            // dropped, reported by run()
+        } finally {
+            closeSocket(s);
+            socket = null;
+            Thread writer = writerThread;
+            writerThread = null;
+            if (writer != null) {
+                // the next connection's writer must not share the queue with this one
+                writer.interrupt();
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return true;
+    }
+
+    // written before the writer thread starts, so it goes out ahead of anything the user queued meanwhile
+    private void handshake(FrameReader reader, WritableByteChannel out, BufferedOutputStream stream) throws IOException {
+        out.write(Frames.encodeLine(WireProtocol.hello(username, true)));
+        stream.flush();
+        String ack = reader.readLine();
+        // a server without compression, or with it turned off, answers the plain ack and never compresses
+        if (!WireProtocol.HELLO_ACK.equals(ack) && !WireProtocol.helloAck(true).equals(ack)) {
+            closed = true;
+            closeReason = "Server does not speak binary protocol version " + WireProtocol.BINARY_VERSION + ".";
+            throw new ProtocolException("Server does not speak binary protocol version " + WireProtocol.BINARY_VERSION);
+        }
+        List<ByteBuffer> queued = rebindQueued();
+        replayedDms.clear();
+        snapshotUsers = null;
+        snapshotNames = null;
+        try {
+            // a new session starts in the lobby only; history is filtered by membership, so rejoin first
+            rejoining.clear();
+            for (String room : joinedRooms) {
+                out.write(BinaryCodec.text(BinaryCodec.ROOM_JOIN, room));
+                rejoining.add(room);
+            }
+            out.write(historyRequest(lastSeq));
+            for (ByteBuffer frame : queued) {
+                out.write(frame.duplicate());
+            }
+            stream.flush();
+        } catch (IOException e) {
+            requeue(queued);
+            throw e;
+        }
+    }
+
+    // Takes what was queued for the old session, to be written by the handshake ahead of anything queued from
+    // here on. Handles belong to the old session, so its DM_OPENs are dropped and each DM still waiting is sent
+    // on a handle opened afresh, by name, since ids may have changed too. DMs that went out on the old session
+    // but were never acked are forgotten.
+    private List<ByteBuffer> rebindQueued() throws ProtocolException {
+        List<ByteBuffer> queued = new ArrayList<>();
+        dmLock.lock();
+        try {
+            dmHandles.clear();
+            nextDmHandle = 0;
+            outbound.drainTo(queued);
+            Map<Long, String> waiting = new HashMap<>();
+            List<ByteBuffer> frames = new ArrayList<>(queued.size());
+            BinaryCodec.Cursor body = new BinaryCodec.Cursor();
+            for (ByteBuffer frame : queued) {
+                int type = frame.get(frame.position());
+                if (type == BinaryCodec.DM_OPEN) continue;
+                if (type != BinaryCodec.DM_SEND) {
+                    frames.add(frame);
+                    continue;
+                }
+                byte[] bytes = new byte[frame.remaining()];
+                frame.duplicate().get(bytes);
+                body.reset(bytes, 1, bytes.length - 1);
+                body.readVarInt();
+                body.readVarInt();
+                long messageId = body.readVarLong();
+                String user = pendingDms.get(messageId);
+                if (user == null) continue;
+                waiting.put(messageId, user);
+                DmHandle handle = dmHandles.get(user);
+                if (handle == null) {
+                    handle = bindDmHandle(user, OFFLINE_ID);
+                    frames.add(BinaryCodec.clientDmOpen(handle.number, OFFLINE_ID, user));
+                }
+                frames.add(BinaryCodec.clientDmSend(handle.number, messageId, body.readRemaining()));
+            }
+            pendingDms.keySet().retainAll(waiting.keySet());
+            return frames;
+        } finally {
+            dmLock.unlock();
+        }
+    }
+
+    private ByteBuffer historyRequest(long afterSeq) {
+        historyRequestedAfter = afterSeq;
+        lastHistorySeq = BinaryCodec.NO_SEQ;
+        if (liveDuringReplay == null) liveDuringReplay = new HashSet<>();
+        return BinaryCodec.sequence(BinaryCodec.HISTORY, afterSeq);
+    }
+
+    private void writeLoop(Socket s, WritableByteChannel out, BufferedOutputStream stream) {
+        List<ByteBuffer> batch = new ArrayList<>(MAX_WRITE_BATCH);
+        try {
+            while (!closed) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch, MAX_WRITE_BATCH - 1);
+                // frames are copied into the stream buffer and leave in as few writes as they fit in; written
+                // through duplicates, so a batch that fails can be queued again
+                for (ByteBuffer frame : batch) {
+                    out.write(frame.duplicate());
+                }
+                stream.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // the reader saw the connection drop
+        } catch (IOException e) {
+            // the reader will see the socket close and reconnect
+            closeSocket(s);
+        }
+        requeue(batch);
+    }
+
+    // Frames not known to have left go back to the front of the queue for the next connection, where one may
+    // arrive twice rather than not at all. If sends filled the queue meanwhile, the newest of them are lost.
+    private void requeue(List<ByteBuffer> frames) {
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            outbound.offerFirst(frames.get(i));
+        }
+    }
+
+    private void decode(int type, BinaryCodec.Cursor body) throws IOException {
+        switch (type) {
+            case BinaryCodec.SNAPSHOT_PART:
+                readUserSnapshot(body);
+                break;
+            case BinaryCodec.USER_SNAPSHOT:
+                readUserSnapshot(body);
+                applyUserSnapshot();
+                break;
+            case BinaryCodec.USER_JOIN:
+            case BinaryCodec.USER_LEAVE:
+                applyPresenceDelta(body, type == BinaryCodec.USER_JOIN);
+                break;
+            case BinaryCodec.SERVER:
+                publish(ChatEvent.notice(ChatEvent.Kind.SERVER, body.readRemaining()));
+                break;
+            case BinaryCodec.GROUP: {
+                long seq = markLive(body.readVarLong());
+                String sender = nameOf(body.readVarInt());
+                publish(ChatEvent.message(ChatEvent.Kind.GROUP, seq, System.currentTimeMillis(), false, sender,
+                        ChatHub.LOBBY, body.readRemaining(), false));
+                break;
+            }
+            case BinaryCodec.ROOM_MESSAGE: {
+                String room = body.readString();
+                long seq = markLive(body.readVarLong());
+                String sender = nameOf(body.readVarInt());
+                publish(ChatEvent.message(ChatEvent.Kind.ROOM_MESSAGE, seq, System.currentTimeMillis(), false, sender,
+                        room, body.readRemaining(), false));
+                break;
+            }
+            case BinaryCodec.DM: {
+                long seq = markLive(body.readVarLong());
+                String peer = nameOf(body.readVarInt());
+                // our own DMs are acked, not echoed, so a live one is always from the peer
+                publish(ChatEvent.message(ChatEvent.Kind.DM, seq, System.currentTimeMillis(), false, peer, null,
+                        body.readRemaining(), false));
+                break;
+            }
+            case BinaryCodec.DM_ACK: {
+                long messageId = body.readVarLong();
+                // marked live so a history replay does not hand our own DM back
+                long seq = markLive(body.readVarLong());
+                int status = body.readVarInt();
+                String target = pendingDms.remove(messageId);
+                publish(ChatEvent.dmAck(messageId, seq, target, describeDmStatus(target, status)));
+                break;
+            }
+            case BinaryCodec.INBOX:
+                decodeInbox(body);
+                break;
+            case BinaryCodec.ROOM_JOIN: {
+                String room = body.readRemaining();
+                joinedRooms.add(room);
+                if (!rejoining.remove(room)) publish(ChatEvent.room(ChatEvent.Kind.ROOM_JOINED, room));
+                break;
+            }
+            case BinaryCodec.ROOM_LEAVE: {
+                String room = body.readRemaining();
+                joinedRooms.remove(room);
+                publish(ChatEvent.room(ChatEvent.Kind.ROOM_LEFT, room));
+                break;
+            }
+            case BinaryCodec.ROOM_LIST:
+                publish(ChatEvent.notice(ChatEvent.Kind.ROOM_LIST, formatRoomList(body)));
+                break;
+            case BinaryCodec.HISTORY:
+                decodeHistory(body);
+                break;
+            case BinaryCodec.PING:
+                send(BinaryCodec.empty(BinaryCodec.PONG));
+                break;
+            case BinaryCodec.PONG:
+                break;
+            case BinaryCodec.HISTORY_END:
+                endHistory(body.readVarLong());
+                break;
+            case BinaryCodec.SEARCH_HIT:
+                decodeSearchHit(body);
+                break;
+            case BinaryCodec.SEARCH_END: {
+                int searchId = body.readVarInt();
+                publish(ChatEvent.searchEnd(searchId, body.readVarLong()));
+                break;
+            }
+            case BinaryCodec.RECONNECT:
+                // everything the server had for us came before this; hang up now, so sends still queued here
+                // go to the next server instead of one that is about to close
+                reconnectHintMillis = body.readVarLong();
+                closeSocket(socket);
+                break;
+            case BinaryCodec.COMPRESSED: {
+                int innerType = body.readVarInt();
+                if (innerType == BinaryCodec.COMPRESSED) throw new ProtocolException("nested compressed frame");
+                byte[] inflated = FrameCompression.inflate(inflater, body);
+                decode(innerType, inflatedBody.reset(inflated, 0, inflated.length));
+                break;
+            }
+            default:
+                // newer server; skip frames we do not understand
+                break;
+        }
+    }
+
+    private long markLive(long seq) {
+        if (seq != BinaryCodec.NO_SEQ) {
+            if (liveDuringReplay != null) liveDuringReplay.add(seq);
+            lastSeq = Math.max(lastSeq, seq);
+        }
+        return seq;
+    }
+
+    private void decodeHistory(BinaryCodec.Cursor body) throws IOException {
+        long seq = body.readVarLong();
+        byte kind = (byte) body.readVarInt();
+        long time = body.readVarLong();
+        String room = body.readString();
+        String sender = body.readString();
+        String recipient = body.readString();
+        String text = body.readRemaining();
+        lastHistorySeq = seq;
+        lastSeq = Math.max(lastSeq, seq);
+        if (liveDuringReplay != null && liveDuringReplay.contains(seq)) {
+            return;
+        }
+        boolean fromSelf = sender.equals(username);
+        if (kind == LogRecord.DIRECT) {
+            replayedDms.add(seq);
+            publish(ChatEvent.message(ChatEvent.Kind.DM, seq, time, true, fromSelf ? recipient : sender, null, text,
+                    fromSelf));
+        } else if (room.equals(ChatHub.LOBBY)) {
+            publish(ChatEvent.message(ChatEvent.Kind.GROUP, seq, time, true, sender, room, text, fromSelf));
+        } else {
+            publish(ChatEvent.message(ChatEvent.Kind.ROOM_MESSAGE, seq, time, true, sender, room, text, fromSelf));
+        }
+    }
+
+    // unlike a replay, a search hit leaves the seqs we track for resuming alone
+    private void decodeSearchHit(BinaryCodec.Cursor body) throws IOException {
+        int searchId = body.readVarInt();
+        long seq = body.readVarLong();
+        byte kind = (byte) body.readVarInt();
+        long time = body.readVarLong();
+        String room = body.readString();
+        String sender = body.readString();
+        String recipient = body.readString();
+        String text = body.readRemaining();
+        boolean fromSelf = sender.equals(username);
+        if (kind == LogRecord.DIRECT) {
+            publish(ChatEvent.searchHit(searchId, seq, time, fromSelf ? recipient : sender, null, text, fromSelf));
+        } else {
+            publish(ChatEvent.searchHit(searchId, seq, time, sender, room, text, fromSelf));
+        }
+    }
+
+    // sent to us while we were offline: a live DM as far as the consumer is concerned, but with its original time
+    private void decodeInbox(BinaryCodec.Cursor body) throws IOException {
+        long seq = markLive(body.readVarLong());
+        if (seq != BinaryCodec.NO_SEQ && replayedDms.contains(seq)) return;
+        body.readVarInt();
+        long time = body.readVarLong();
+        body.readString();
+        String sender = body.readString();
+        body.readString();
+        publish(ChatEvent.message(ChatEvent.Kind.DM, seq, time, false, sender, null, body.readRemaining(), false));
+    }
+
+    private static String describeDmStatus(String target, int status) {
+        String user = target != null ? target : "The user";
+        switch (status) {
+            case BinaryCodec.DM_DELIVERED:
+                return null;
+            case BinaryCodec.DM_QUEUED:
+                return user + " is offline; the message will be delivered when they are back.";
+            case BinaryCodec.DM_NOT_DELIVERED:
+                return user + " could not be reached; the message was not delivered.";
+            default:
+                return user + " is not known to the server.";
+        }
+    }
+
+    private void endHistory(long endSeq) {
+        if (historyRequestedAfter != BinaryCodec.NO_SEQ && lastHistorySeq != BinaryCodec.NO_SEQ
+                && endSeq == lastHistorySeq && send(historyRequest(endSeq))) {
+            // a resume that filled a whole page: keep paging until the server has nothing newer
+            return;
+        }
+        liveDuringReplay = null;
+        lastSeq = Math.max(lastSeq, endSeq);
+        publish(ChatEvent.historyEnd(lastSeq));
+    }
+
+    private String formatRoomList(BinaryCodec.Cursor body) throws IOException {
+        int count = body.readVarInt();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            String room = body.readString();
+            int members = body.readVarInt();
+            double rate = body.readVarLong() / 1000.0;
+            sb.append(i == 0 ? "" : ", ").append('#').append(room)
+                    .append(" (").append(members).append(" online, ")
+                    .append(String.format(Locale.ROOT, "%.1f", rate)).append(" msg/s)");
+        }
+        return sb.toString();
+    }
+
+    private String nameOf(int userId) {
+        String name = userNames.get(userId);
+        return name != null ? name : "Unknown";
+    }
+
+    // adds the frame's entries to the snapshot of its version, starting that over if it is a different one
+    private void readUserSnapshot(BinaryCodec.Cursor body) throws IOException {
+        long version = body.readVarLong();
+        int count = body.readVarInt();
+        if (snapshotUsers == null || snapshotVersion != version) {
+            snapshotUsers = new ArrayList<>(count);
+            snapshotNames = new HashMap<>(count * 2);
+            snapshotVersion = version;
+        }
+        for (int i = 0; i < count; i++) {
+            int id = body.readVarInt();
+            String name = body.readString();
+            snapshotNames.put(id, name);
+            snapshotUsers.add(name);
+        }
+    }
+
+    private void applyUserSnapshot() {
+        userNames.clear();
+        userIds.clear();
+        for (Map.Entry<Integer, String> entry : snapshotNames.entrySet()) {
+            userNames.put(entry.getKey(), entry.getValue());
+            userIds.put(entry.getValue(), entry.getKey());
+        }
+        presenceVersion = snapshotVersion;
+        joinedOnce = true;
+        publish(ChatEvent.snapshot(snapshotUsers));
+        snapshotUsers = null;
+        snapshotNames = null;
+    }
+
+    private void applyPresenceDelta(BinaryCodec.Cursor body, boolean joined) throws IOException {
+        long version = body.readVarLong();
+        int id = body.readVarInt();
+        String user = body.readRemaining();
+        if (version <= presenceVersion) return;
+        if (version != presenceVersion + 1) {
+            // missed an update somewhere; apply this one and ask for a fresh snapshot
+            send(BinaryCodec.empty(BinaryCodec.RESYNC));
+        }
+        presenceVersion = version;
+        if (joined) {
+            userNames.put(id, user);
+            userIds.put(user, id);
+        } else {
+            userIds.remove(user, id);
+        }
+        publish(ChatEvent.presence(joined ? ChatEvent.Kind.USER_JOINED : ChatEvent.Kind.USER_LEFT, user));
+    }
+
+    private void publish(ChatEvent event) {
+        try {
+            inbound.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class DmHandle {
+        final int number;
+        final int targetId;
+
+        DmHandle(int number, int targetId) {
+            this.number = number;
+            this.targetId = targetId;
+        }
+    }
+
+    private static void closeSocket(Socket s) {
+        if (s == null) return;
+        try {
+            s.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.List;
+
+// Something a ChatConnection decoded off the wire, or a change in the connection itself. Names are already
+// resolved from ids, so a consumer never needs the presence tables; history replays arrive as the same message
+// kinds as live traffic, with history set and the time the message was originally sent.
+public final class ChatEvent {
+
+    public enum Kind {
+        // the handshake finished, on the first connect and after every reconnect
+        CONNECTED,
+        // the connection dropped; text says when the next attempt is due
+        DISCONNECTED,
+        // the connection gave up for good (closed locally, or the server refused us on the first attempt)
+        CLOSED,
+        SERVER,
+        // users: everyone online, replacing whatever the consumer had
+        USER_SNAPSHOT,
+        USER_JOINED,
+        USER_LEFT,
+        ROOM_JOINED,
+        ROOM_LEFT,
+        // text: the rooms, formatted for display
+        ROOM_LIST,
+        // lobby messages
+        GROUP,
+        ROOM_MESSAGE,
+        // user is the other side of the conversation, fromSelf tells our own messages apart; DMs that waited
+        // for us while we were offline arrive as live ones with the time they were sent
+        DM,
+        // the server's answer to sendDirect(): user is the target, messageId what sendDirect() returned, and
+        // text null if the DM was delivered, otherwise what became of it
+        DM_ACK,
+        // the history replay requested on connect is complete
+        HISTORY_END,
+        // one result of search(), newest first: messageId is the search id, the rest as for a replayed message;
+        // room is null for a DM
+        SEARCH_HIT,
+        // the page is complete; seq is where the next page starts, or NO_SEQ if there are no older matches
+        SEARCH_END
+    }
+
+    private final Kind kind;
+    private final long seq;
+    private final long time;
+    private final boolean history;
+    // the sender, the DM peer, or the user who joined or left
+    private final String user;
+    private final String room;
+    private final String text;
+    private final boolean fromSelf;
+    private final List<String> users;
+    private final long messageId;
+
+    private ChatEvent(Kind kind, long seq, long time, boolean history, String user, String room, String text,
+                      boolean fromSelf, List<String> users) {
+        this(kind, seq, time, history, user, room, text, fromSelf, users, BinaryCodec.NO_MESSAGE_ID);
+    }
+
+    private ChatEvent(Kind kind, long seq, long time, boolean history, String user, String room, String text,
+                      boolean fromSelf, List<String> users, long messageId) {
+        this.kind = kind;
+        this.seq = seq;
+        this.time = time;
+        this.history = history;
+        this.user = user;
+        this.room = room;
+        this.text = text;
+        this.fromSelf = fromSelf;
+        this.users = users;
+        this.messageId = messageId;
+    }
+
+    static ChatEvent notice(Kind kind, String text) {
+        return new ChatEvent(kind, BinaryCodec.NO_SEQ, System.currentTimeMillis(), false, null, null, text, false, null);
+    }
+
+    static ChatEvent presence(Kind kind, String user) {
+        return new ChatEvent(kind, BinaryCodec.NO_SEQ, System.currentTimeMillis(), false, user, null, null, false, null);
+    }
+
+    static ChatEvent room(Kind kind, String room) {
+        return new ChatEvent(kind, BinaryCodec.NO_SEQ, System.currentTimeMillis(), false, null, room, null, false, null);
+    }
+
+    static ChatEvent snapshot(List<String> users) {
+        return new ChatEvent(Kind.USER_SNAPSHOT, BinaryCodec.NO_SEQ, System.currentTimeMillis(), false, null, null,
+                null, false, users);
+    }
+
+    static ChatEvent historyEnd(long seq) {
+        return new ChatEvent(Kind.HISTORY_END, seq, System.currentTimeMillis(), false, null, null, null, false, null);
+    }
+
+    static ChatEvent message(Kind kind, long seq, long time, boolean history, String user, String room, String text,
+                             boolean fromSelf) {
+        return new ChatEvent(kind, seq, time, history, user, room, text, fromSelf, null);
+    }
+
+    static ChatEvent dmAck(long messageId, long seq, String target, String failure) {
+        return new ChatEvent(Kind.DM_ACK, seq, System.currentTimeMillis(), false, target, null, failure, true, null,
+                messageId);
+    }
+
+    static ChatEvent searchHit(long searchId, long seq, long time, String user, String room, String text,
+                               boolean fromSelf) {
+        return new ChatEvent(Kind.SEARCH_HIT, seq, time, true, user, room, text, fromSelf, null, searchId);
+    }
+
+    static ChatEvent searchEnd(long searchId, long next) {
+        return new ChatEvent(Kind.SEARCH_END, next, System.currentTimeMillis(), false, null, null, null, false, null,
+                searchId);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public boolean isHistory() {
+        return history;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public boolean isFromSelf() {
+        return fromSelf;
+    }
+
+    public List<String> getUsers() {
+        return users;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+}
@@ -0,0 +1,914 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
+public class ChatHub {
+
+    // every session joins it on connect; plain group messages go here
+    public static final String LOBBY = "lobby";
+    private static final String ROOM_NAME_PATTERN = "[a-z0-9_-]{1,32}";
+    // a presence batch changing more than a quarter of the users goes out as a snapshot instead of deltas
+    private static final int SNAPSHOT_INSTEAD_OF_DELTAS = 4;
+    // users named in a batched join or leave notice before it says "and N others"
+    private static final int NAMED_IN_NOTICE = 3;
+    private static final int LOG_READER_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final ServerConfig config;
+    // null when persistence is turned off; messages then carry NO_SEQ and there is no history
+    private final MessageLog log;
+    // null when offline inboxes are turned off; DMs to users who are not online are then refused
+    private final OfflineInbox inbox;
+    // null when the log or search is turned off
+    private final SearchIndex search;
+    // History replays and searches may read segments from disk, so they run here instead of on the thread that
+    // read the request, which in nio mode serves a whole reactor's sessions. A session always gets the same
+    // thread, so its answers go out in the order it asked.
+    private final ExecutorService[] logReaders = new ExecutorService[LOG_READER_THREADS];
+    private final SessionRegistry registry = new SessionRegistry();
+    private final SendStats sendStats = new SendStats();
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private final AtomicInteger sessionIds = new AtomicInteger();
+    // recipients per second for the whole server, shared by every session's Throttle; null when unlimited
+    private final TokenBucket fanOutBudget;
+    // null when compression is turned off
+    private final FrameCompression compression;
+    // null when idle connections are never closed
+    private final Heartbeats heartbeats;
+    private final EncodedMessage pong = EncodedMessage.pong();
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // the rooms each session is in, so a disconnect only touches those
+    private final ConcurrentHashMap<Session, Set<Room>> memberships = new ConcurrentHashMap<>();
+
+    // serializes membership changes with their announcements so every client sees presence versions in order;
+    // chat broadcasts never take it
+    private final ReentrantLock presenceLock = new ReentrantLock();
+    private long presenceVersion;
+    // changes made under presenceLock but not yet announced, in version order; guarded by presenceLock
+    private List<PresenceChange> pendingPresence = new ArrayList<>();
+    private volatile boolean presencePending;
+    // the one thread that announces presence changes, so batches go out in version order
+    private final Thread announcer;
+    private final long presenceWindowNanos;
+    // null unless this server is one node of a cluster
+    private volatile ClusterNode cluster;
+    // set once shutdown starts: nobody new joins, and leaves are not announced to sessions that are all closing
+    private volatile boolean draining;
+
+    public ChatHub(ServerConfig config, MessageLog log) {
+        this(config, log, null);
+    }
+
+    public ChatHub(ServerConfig config, MessageLog log, OfflineInbox inbox) {
+        this.config = config;
+        this.log = log;
+        this.inbox = inbox;
+        this.search = SearchIndex.create(log, config);
+        this.fanOutBudget = config.newFanOutBucket();
+        this.compression = FrameCompression.create(config);
+        this.presenceWindowNanos = TimeUnit.MILLISECONDS.toNanos(config.getPresenceBatchMillis());
+        rooms.put(LOBBY, new Room(LOBBY));
+        for (int i = 0; i < logReaders.length; i++) {
+            String name = "log-reader-" + i;
+            logReaders[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.announcer = new Thread(this::announceLoop, "presence-announcer");
+        announcer.setDaemon(true);
+        announcer.start();
+        this.heartbeats = Heartbeats.create(this, config);
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public SessionRegistry getRegistry() {
+        return registry;
+    }
+
+    public SendStats getSendStats() {
+        return sendStats;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public FrameCompression getCompression() {
+        return compression;
+    }
+
+    // what a session that offered compression in its hello gets; null when it is off here
+    public FrameCompression negotiateCompression(String firstLine) {
+        return compression != null && WireProtocol.offersDeflate(firstLine) ? compression : null;
+    }
+
+    // one per session, made by whoever reads it
+    public Throttle newThrottle() {
+        return new Throttle(config.newMessageBucket(), config.newByteBucket(), fanOutBudget, metrics);
+    }
+
+    public int nextSessionId() {
+        return sessionIds.incrementAndGet();
+    }
+
+    void attachCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    // null unless this server is one node of a cluster
+    ClusterNode getCluster() {
+        return cluster;
+    }
+
+    // returns false if the username is already taken; the caller is expected to close the session
+    public boolean join(Session session) {
+        if (session.getUsername().getBytes(StandardCharsets.UTF_8).length > BinaryCodec.MAX_NAME_LENGTH) {
+            session.deliver(EncodedMessage.serverNotice("Usernames can be at most " + BinaryCodec.MAX_NAME_LENGTH
+                    + " bytes long."));
+            return false;
+        }
+        presenceLock.lock();
+        try {
+            if (draining) {
+                session.deliver(EncodedMessage.serverNotice("The server is shutting down."));
+                return false;
+            }
+            if (!registry.register(session)) {
+                session.deliver(EncodedMessage.serverNotice("Username " + session.getUsername() + " is already taken."));
+                return false;
+            }
+            joinRoom(session, LOBBY, false);
+            presenceChanged(true, session);
+            if (cluster != null) cluster.userJoined(session);
+        } finally {
+            presenceLock.unlock();
+        }
+        announcePresence();
+        if (heartbeats != null) heartbeats.watch(session);
+        // binary clients ask for history themselves, with the offset they last saw
+        if (session.getProtocol() == WireProtocol.TEXT) {
+            replayHistory(session, 0);
+        }
+        if (inbox != null) deliverInbox(session);
+        return true;
+    }
+
+    public void leave(Session session) {
+        presenceLock.lock();
+        try {
+            if (registry.unregister(session)) {
+                Set<Room> joined = memberships.remove(session);
+                if (joined != null) {
+                    for (Room room : joined) {
+                        removeFromRoom(room, session);
+                    }
+                }
+                if (draining) {
+                    presenceVersion++;
+                } else {
+                    presenceChanged(false, session);
+                }
+                if (cluster != null) cluster.userLeft(session);
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+        announcePresence();
+    }
+
+    // closes sessions found dead together; their leaves are all made under one hold of presenceLock, so they go
+    // out in the same presence batch
+    public void evict(List<Session> sessions, ServerMetrics.DisconnectCause cause) {
+        presenceLock.lock();
+        try {
+            for (Session session : sessions) {
+                session.close(cause);
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+        announcePresence();
+    }
+
+    // A user came up on another node; replaces an entry the user left behind on a different node. When the name
+    // is also connected here, the node with the lower id keeps it: both nodes decide the same way, so the other
+    // one closes its session and every node ends up routing the name to the same place.
+    void remoteUserUp(String node, String username) {
+        presenceLock.lock();
+        try {
+            Session existing = registry.get(username);
+            if (existing instanceof RemoteSession) {
+                if (((RemoteSession) existing).getNode().equals(node)) return;
+                // reconnected elsewhere before the old node announced the leave
+                announceLeave((RemoteSession) existing);
+            } else if (existing != null) {
+                if (cluster.getNodeId().compareTo(node) < 0) return;
+                System.out.println("Cluster: " + username + " is connected to " + node + " too; closing it here.");
+                // leaves synchronously, under the presenceLock held here, so the name is free below
+                existing.close(ServerMetrics.DisconnectCause.REJECTED);
+            }
+            RemoteSession session = new RemoteSession(nextSessionId(), username, node);
+            registry.register(session);
+            presenceChanged(true, session);
+        } finally {
+            presenceLock.unlock();
+        }
+        announcePresence();
+    }
+
+    void remoteUserDown(String node, String username) {
+        presenceLock.lock();
+        try {
+            Session existing = registry.get(username);
+            if (existing instanceof RemoteSession && ((RemoteSession) existing).getNode().equals(node)) {
+                announceLeave((RemoteSession) existing);
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+        announcePresence();
+    }
+
+    // caller holds presenceLock
+    private void announceLeave(RemoteSession session) {
+        if (!registry.unregister(session)) return;
+        presenceChanged(false, session);
+    }
+
+    // caller holds presenceLock; the change is numbered now and sent with the next batch
+    private void presenceChanged(boolean joined, Session subject) {
+        presenceVersion++;
+        pendingPresence.add(new PresenceChange(joined, presenceVersion, subject));
+        presencePending = true;
+    }
+
+    private void announcePresence() {
+        LockSupport.unpark(announcer);
+    }
+
+    // Sends pending presence changes at most once per window, so a change that comes after a quiet spell goes
+    // out at once and a reconnect storm goes out in a few large batches. Each session that joined in a batch
+    // gets one snapshot, encoded once for all of them; everyone else gets the batch's notices and deltas as one
+    // send. That is one snapshot and one send per member per batch instead of per join.
+    private void announceLoop() {
+        long lastBatch = System.nanoTime() - presenceWindowNanos;
+        while (true) {
+            while (!presencePending) {
+                LockSupport.park(this);
+            }
+            long wait;
+            while ((wait = lastBatch + presenceWindowNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            lastBatch = System.nanoTime();
+            List<PresenceChange> batch;
+            long version;
+            Session[] everyone;
+            Session[] recipients;
+            presenceLock.lock();
+            try {
+                batch = pendingPresence;
+                pendingPresence = new ArrayList<>();
+                presencePending = false;
+                version = presenceVersion;
+                everyone = registry.snapshot();
+                recipients = registry.localSnapshot();
+            } finally {
+                presenceLock.unlock();
+            }
+            try {
+                if (!batch.isEmpty()) sendPresence(batch, version, everyone, recipients);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void sendPresence(List<PresenceChange> batch, long version, Session[] everyone, Session[] recipients) {
+        Set<Session> joiners = new HashSet<>();
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (PresenceChange change : batch) {
+            (change.joined ? joined : left).add(change.subject.getUsername());
+            if (change.joined && !(change.subject instanceof RemoteSession)) joiners.add(change.subject);
+        }
+        EncodedMessage snapshot = EncodedMessage.userSnapshot(version, everyone);
+        List<EncodedMessage> parts = new ArrayList<>();
+        if (!joined.isEmpty()) parts.add(EncodedMessage.serverNotice(namesOf(joined) + " entered the chat !"));
+        if (!left.isEmpty()) parts.add(EncodedMessage.serverNotice(namesOf(left) + " left the chat!"));
+        if (batch.size() * SNAPSHOT_INSTEAD_OF_DELTAS > everyone.length) {
+            // most of the list changed: the whole list is smaller than the changes
+            parts.add(snapshot);
+        } else {
+            for (PresenceChange change : batch) {
+                parts.add(EncodedMessage.presence(change.joined, change.version, change.subject));
+            }
+        }
+        EncodedMessage changes = EncodedMessage.batch(parts);
+        long start = System.nanoTime();
+        for (Session session : recipients) {
+            if (joiners.contains(session)) {
+                session.deliver(snapshot);
+                metrics.recordAcceptToReady(start - session.getAcceptedNanos());
+            } else {
+                session.deliver(changes);
+            }
+        }
+        metrics.recordBroadcast(System.nanoTime() - start);
+    }
+
+    // "alice has", "alice and bob have", "alice, bob, carol and 12 others have"
+    private static String namesOf(List<String> users) {
+        if (users.size() == 1) return users.get(0) + " has";
+        int named = users.size() <= NAMED_IN_NOTICE + 1 ? users.size() - 1 : NAMED_IN_NOTICE;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < named; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(users.get(i));
+        }
+        sb.append(" and ");
+        if (named == users.size() - 1) {
+            sb.append(users.get(named));
+        } else {
+            sb.append(users.size() - named).append(" others");
+        }
+        return sb.append(" have").toString();
+    }
+
+    // this node's users and non-empty rooms, taken under the presence lock so no join or leave announced to
+    // peers can fall between the snapshot and the frames that carry it
+    void clusterSync(Consumer<ByteBuffer> out) {
+        presenceLock.lock();
+        try {
+            List<String> localRooms = new ArrayList<>();
+            for (String room : rooms.keySet()) {
+                if (!room.equals(LOBBY)) localRooms.add(room);
+            }
+            ClusterNode.writeSync(registry.localSnapshot(), localRooms, out);
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // text protocol: one line from the client
+    public void onMessage(Session from, String messageFromClient) {
+        metrics.messageReceived();
+        if (messageFromClient.startsWith("__DM__:")) {
+            handlePrivateMessage(from, messageFromClient);
+        } else if (messageFromClient.equals("__RESYNC__")) {
+            resync(from);
+        } else if (messageFromClient.equals("__PING__")) {
+            from.heartbeatSeen();
+            from.deliver(pong);
+        } else if (messageFromClient.equals("__PONG__")) {
+            // reading it was the point
+            from.heartbeatSeen();
+        } else if (messageFromClient.startsWith("__JOIN_ROOM__:")) {
+            joinRoom(from, messageFromClient.substring("__JOIN_ROOM__:".length()), true);
+        } else if (messageFromClient.startsWith("__LEAVE_ROOM__:")) {
+            leaveRoom(from, messageFromClient.substring("__LEAVE_ROOM__:".length()));
+        } else if (messageFromClient.startsWith("__ROOM__:")) {
+            // format: __ROOM__:<room>:<text>
+            String withoutPrefix = messageFromClient.substring("__ROOM__:".length());
+            int colon = withoutPrefix.indexOf(':');
+            if (colon == -1) return;
+            roomMessage(from, withoutPrefix.substring(0, colon), withoutPrefix.substring(colon + 1).trim());
+        } else if (messageFromClient.startsWith("__HISTORY__:")) {
+            // format: __HISTORY__:<after seq>, 0 for the most recent messages
+            try {
+                replayHistory(from, Long.parseLong(messageFromClient.substring("__HISTORY__:".length()).trim()));
+            } catch (NumberFormatException e) {
+                from.deliver(EncodedMessage.serverNotice("Invalid history offset."));
+            }
+        } else if (messageFromClient.startsWith("__SEARCH__:")) {
+            // format: __SEARCH__:<before seq, 0 for the newest>:<query>
+            String withoutPrefix = messageFromClient.substring("__SEARCH__:".length());
+            int colon = withoutPrefix.indexOf(':');
+            try {
+                long before = colon == -1 ? 0 : Long.parseLong(withoutPrefix.substring(0, colon).trim());
+                search(from, 0, before, 0, withoutPrefix.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                from.deliver(EncodedMessage.serverNotice("Invalid search offset."));
+            }
+        } else if (messageFromClient.equals("__ROOMS__")) {
+            from.deliver(EncodedMessage.roomList(rooms.values().toArray(new Room[0])));
+        } else {
+            // clients send "<username>: <text>"; anything else is taken as text from this session
+            String prefix = from.getUsername() + ":";
+            String text = messageFromClient.startsWith(prefix)
+                    ? messageFromClient.substring(prefix.length()).trim()
+                    : messageFromClient;
+            roomMessage(from, LOBBY, text);
+        }
+    }
+
+    // binary protocol: one frame from the client
+    public void onFrame(Session from, int type, BinaryCodec.Cursor body) throws ProtocolException {
+        metrics.messageReceived();
+        switch (type) {
+            case BinaryCodec.GROUP:
+                roomMessage(from, LOBBY, body.readRemaining());
+                break;
+            case BinaryCodec.ROOM_MESSAGE: {
+                String room = body.readString();
+                roomMessage(from, room, body.readRemaining());
+                break;
+            }
+            case BinaryCodec.ROOM_JOIN:
+                joinRoom(from, body.readRemaining(), true);
+                break;
+            case BinaryCodec.ROOM_LEAVE:
+                leaveRoom(from, body.readRemaining());
+                break;
+            case BinaryCodec.ROOM_LIST:
+                from.deliver(EncodedMessage.roomList(rooms.values().toArray(new Room[0])));
+                break;
+            case BinaryCodec.DM: {
+                int targetId = body.readVarInt();
+                String message = body.readRemaining();
+                privateMessage(from, registry.get(targetId), null, BinaryCodec.NO_MESSAGE_ID, message);
+                break;
+            }
+            case BinaryCodec.DM_OPEN: {
+                int handle = body.readVarInt();
+                int targetId = body.readVarInt();
+                peerHandles(from).bind(handle, registry.handle(targetId, body.readRemaining()));
+                break;
+            }
+            case BinaryCodec.DM_SEND: {
+                int handle = body.readVarInt();
+                PeerHandles handles = peerHandles(from);
+                Session target = handles.resolve(handle);
+                String targetName = target != null ? target.getUsername() : handles.username(handle);
+                if (target == null && targetName != null) {
+                    // bound while the user was offline, or they have reconnected since: look them up once more
+                    target = registry.get(targetName);
+                    if (target != null) handles.bind(handle, registry.handle(target.getId(), targetName));
+                }
+                long messageId = body.readVarLong();
+                privateMessage(from, target, targetName, messageId, body.readRemaining());
+                break;
+            }
+            case BinaryCodec.RESYNC:
+                resync(from);
+                break;
+            case BinaryCodec.PING:
+                from.deliver(pong);
+                break;
+            case BinaryCodec.PONG:
+                // reading it was the point
+                break;
+            case BinaryCodec.HISTORY:
+                replayHistory(from, body.readVarLong());
+                break;
+            case BinaryCodec.SEARCH: {
+                int searchId = body.readVarInt();
+                long before = body.readVarLong();
+                int limit = body.readVarInt();
+                search(from, searchId, before, limit, body.readRemaining());
+                break;
+            }
+            default:
+                throw new ProtocolException("unexpected frame type " + type);
+        }
+    }
+
+    private void handlePrivateMessage(Session from, String raw) {
+        // format: __DM__:<toUsername>:<message>
+        String withoutPrefix = raw.substring("__DM__:".length());
+        int firstColon = withoutPrefix.indexOf(':');
+        if (firstColon == -1) return;
+
+        String toUser = withoutPrefix.substring(0, firstColon).trim();
+        String message = withoutPrefix.substring(firstColon + 1).trim();
+
+        privateMessage(from, registry.get(toUser), toUser, BinaryCodec.NO_MESSAGE_ID, message);
+    }
+
+    private static PeerHandles peerHandles(Session session) throws ProtocolException {
+        PeerHandles handles = session.getPeerHandles();
+        if (handles == null) throw new ProtocolException("session cannot bind DM handles");
+        return handles;
+    }
+
+    // with a message id the sender gets a DM_ACK instead of its message echoed back. targetName is null when the
+    // client named the target by an id that is not (or no longer) in use
+    private void privateMessage(Session from, Session target, String targetName, long messageId, String message) {
+        PrivateMessageEvent event = new PrivateMessageEvent();
+        event.begin();
+        long start = System.nanoTime();
+        if (target instanceof RemoteSession) {
+            // logged here for the sender's history; the target's node logs its own copy and reports back
+            long seq = log != null
+                    ? log.append(LogRecord.DIRECT, "", from.getUsername(), target.getUsername(), message)
+                    : BinaryCodec.NO_SEQ;
+            if (!cluster.forwardDirect(from, (RemoteSession) target, messageId, seq, message)) {
+                answerUndelivered(from, target.getUsername(), messageId, seq, BinaryCodec.DM_NOT_DELIVERED);
+            } else if (messageId == BinaryCodec.NO_MESSAGE_ID) {
+                from.deliver(EncodedMessage.direct(seq, target, message));
+            }
+        } else if (target != null) {
+            long seq = log != null
+                    ? log.append(LogRecord.DIRECT, "", from.getUsername(), target.getUsername(), message)
+                    : BinaryCodec.NO_SEQ;
+            // send to target
+            target.deliver(EncodedMessage.direct(seq, from, message));
+            if (messageId != BinaryCodec.NO_MESSAGE_ID) {
+                from.send(BinaryCodec.dmAck(messageId, seq, BinaryCodec.DM_DELIVERED));
+            } else {
+                // echo back to sender
+                from.deliver(EncodedMessage.direct(seq, target, message));
+            }
+        } else if (targetName != null && inbox != null
+                && targetName.getBytes(StandardCharsets.UTF_8).length <= BinaryCodec.MAX_NAME_LENGTH) {
+            storeOffline(from.getUsername(), targetName, message,
+                    status -> answerUndelivered(from, targetName, messageId, BinaryCodec.NO_SEQ, status));
+        } else {
+            answerUndelivered(from, targetName, messageId, BinaryCodec.NO_SEQ, BinaryCodec.DM_UNKNOWN_USER);
+        }
+        metrics.recordDirectMessage(System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.sender = from.getUsername();
+            event.target = targetName != null ? targetName : "?";
+            event.delivered = target != null;
+            event.commit();
+        }
+    }
+
+    private void roomMessage(Session from, String roomName, String text) {
+        Room room = rooms.get(roomName);
+        if (room == null || !room.contains(from)) {
+            from.deliver(EncodedMessage.serverNotice("You are not in room " + roomName + "."));
+            return;
+        }
+        room.recordMessage();
+        long seq = log != null
+                ? log.append(LogRecord.ROOM, room.getName(), from.getUsername(), "", text)
+                : BinaryCodec.NO_SEQ;
+        Session[] members = room.snapshot();
+        fanOut(room.getName(), members, from, EncodedMessage.room(seq, room, from, text));
+        if (cluster != null) cluster.forwardRoomMessage(room.getName(), from, text);
+        Throttle throttle = from.getThrottle();
+        if (throttle != null) throttle.onFanOut(members.length);
+    }
+
+    // a message another node accepted for a room that has members here
+    void remoteRoomMessage(String roomName, RemoteSession sender, String text) {
+        Room room = rooms.get(roomName);
+        if (room == null) return;
+        room.recordMessage();
+        long seq = log != null
+                ? log.append(LogRecord.ROOM, room.getName(), sender.getUsername(), "", text)
+                : BinaryCodec.NO_SEQ;
+        fanOut(room.getName(), room.snapshot(), null, EncodedMessage.room(seq, room, sender, text));
+    }
+
+    // done gets the DM_ACK status: delivered, waiting in the inbox of a user who last connected here, or unknown
+    void remoteDirect(RemoteSession sender, String targetName, String text, IntConsumer done) {
+        Session target = registry.get(targetName);
+        if (target != null && !(target instanceof RemoteSession)) {
+            long seq = log != null
+                    ? log.append(LogRecord.DIRECT, "", sender.getUsername(), target.getUsername(), text)
+                    : BinaryCodec.NO_SEQ;
+            target.deliver(EncodedMessage.direct(seq, sender, text));
+            done.accept(BinaryCodec.DM_DELIVERED);
+        } else if (target == null && inbox != null) {
+            storeOffline(sender.getUsername(), targetName, text, done);
+        } else {
+            done.accept(BinaryCodec.DM_UNKNOWN_USER);
+        }
+    }
+
+    // what became of a DM this node forwarded: acked if the sender gave it an id, reported only on failure if not
+    void remoteDirectResult(String senderName, String targetName, long messageId, long seq, int status) {
+        Session sender = registry.get(senderName);
+        if (sender == null || sender instanceof RemoteSession) return;
+        if (messageId != BinaryCodec.NO_MESSAGE_ID || status != BinaryCodec.DM_DELIVERED) {
+            answerUndelivered(sender, targetName, messageId, seq, status);
+        }
+    }
+
+    // a DM_ACK for senders that gave the DM an id, a notice for the others
+    private void answerUndelivered(Session from, String targetName, long messageId, long seq, int status) {
+        if (messageId != BinaryCodec.NO_MESSAGE_ID) {
+            from.send(BinaryCodec.dmAck(messageId, seq, status));
+        } else if (status == BinaryCodec.DM_QUEUED) {
+            from.deliver(EncodedMessage.serverNotice(
+                    "User " + targetName + " is offline; the message will be delivered when they are back."));
+        } else if (status == BinaryCodec.DM_NOT_DELIVERED) {
+            from.deliver(EncodedMessage.serverNotice(
+                    "Your message to " + targetName + " could not be delivered; try sending it again."));
+        } else {
+            from.deliver(EncodedMessage.serverNotice(targetName != null ? "User " + targetName + " not found." : "User not found."));
+        }
+    }
+
+    private void storeOffline(String senderName, String targetName, String text, IntConsumer done) {
+        LogRecord record = new LogRecord(BinaryCodec.NO_SEQ, LogRecord.DIRECT, System.currentTimeMillis(), "",
+                senderName, targetName, text);
+        inbox.store(record, stored -> {
+            if (stored) {
+                metrics.inboxStored();
+                // the target may have connected while this was queued, after its own delivery had run
+                Session target = registry.get(targetName);
+                if (target != null && !(target instanceof RemoteSession)) deliverInbox(target);
+            }
+            done.accept(stored ? BinaryCodec.DM_QUEUED : BinaryCodec.DM_UNKNOWN_USER);
+        });
+    }
+
+    // on the inbox thread, so the handshake that triggers it never waits for the disk
+    private void deliverInbox(Session session) {
+        inbox.drain(session.getUsername(), records -> deliverOffline(session, records));
+    }
+
+    // the whole inbox in one send; false keeps it for next time when the session has already gone again
+    private boolean deliverOffline(Session session, List<LogRecord> records) {
+        if (registry.get(session.getUsername()) != session) return false;
+        List<ByteBuffer> frames = new ArrayList<>(records.size());
+        int total = 0;
+        for (LogRecord stored : records) {
+            LogRecord record = stored;
+            if (log != null) {
+                // logged now, with the time it was sent, so the user's history can resume past it
+                long seq = log.append(LogRecord.DIRECT, stored.getTimestamp(), "", stored.getSender(),
+                        stored.getRecipient(), stored.getText());
+                record = new LogRecord(seq, LogRecord.DIRECT, stored.getTimestamp(), "", stored.getSender(),
+                        stored.getRecipient(), stored.getText());
+            }
+            ByteBuffer frame = EncodedMessage.inbox(record).frame(session.getProtocol());
+            frames.add(frame);
+            total += frame.remaining();
+        }
+        ByteBuffer burst = ByteBuffer.allocate(total);
+        for (ByteBuffer frame : frames) {
+            burst.put(frame.duplicate());
+        }
+        session.send(burst.flip());
+        metrics.inboxDelivered(records.size());
+        return true;
+    }
+
+    private void fanOut(String scope, Session[] targets, Session except, EncodedMessage message) {
+        BroadcastEvent event = new BroadcastEvent();
+        event.begin();
+        long start = System.nanoTime();
+        for (Session session : targets) {
+            if (session != except) {
+                session.deliver(message);
+            }
+        }
+        metrics.recordBroadcast(System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.scope = scope;
+            event.recipients = targets.length;
+            event.commit();
+        }
+    }
+
+    private void readLog(Session session, Runnable task) {
+        logReaders[Math.floorMod(session.getId(), logReaders.length)].execute(task);
+    }
+
+    private void replayHistory(Session session, long afterSeq) {
+        readLog(session, () -> replayHistoryNow(session, afterSeq));
+    }
+
+    // afterSeq 0 replays the last few messages the session can see; otherwise everything after that offset,
+    // up to the replay limit. Always ends with HISTORY_END carrying the offset to resume from.
+    private void replayHistoryNow(Session session, long afterSeq) {
+        if (log == null) {
+            session.deliver(EncodedMessage.historyEnd(BinaryCodec.NO_SEQ));
+            return;
+        }
+        long lastSeq = log.lastSequence();
+        Predicate<LogRecord> visible = visibleTo(session);
+        List<LogRecord> records;
+        try {
+            records = afterSeq == 0
+                    ? log.recent(visible, config.getHistoryReplayCount())
+                    : log.since(afterSeq, visible, config.getHistoryMaxReplay());
+        } catch (IOException e) {
+            e.printStackTrace();
+            session.deliver(EncodedMessage.serverNotice("History is not available right now."));
+            return;
+        }
+        String username = session.getUsername();
+        for (LogRecord record : records) {
+            session.deliver(EncodedMessage.history(record, username));
+        }
+        if (!records.isEmpty()) {
+            long replayed = records.get(records.size() - 1).getSeq();
+            // a full page of `since` means there may be more: the client resumes from the last one it got
+            lastSeq = afterSeq != 0 && records.size() == config.getHistoryMaxReplay()
+                    ? replayed : Math.max(lastSeq, replayed);
+        }
+        session.deliver(EncodedMessage.historyEnd(lastSeq));
+    }
+
+    private void search(Session session, int searchId, long beforeSeq, int limit, String query) {
+        readLog(session, () -> searchNow(session, searchId, beforeSeq, limit, query));
+    }
+
+    // one page of logged messages the session can see that contain every word of the query, newest first.
+    // Always ends with SEARCH_END carrying the offset the next page starts before.
+    private void searchNow(Session session, int searchId, long beforeSeq, int limit, String query) {
+        if (search == null) {
+            session.deliver(EncodedMessage.serverNotice("Search is not available on this server."));
+            session.deliver(EncodedMessage.searchEnd(searchId, BinaryCodec.NO_SEQ));
+            return;
+        }
+        long start = System.nanoTime();
+        SearchIndex.Page page;
+        try {
+            page = search.search(query, beforeSeq, limit, visibleTo(session));
+        } catch (IOException e) {
+            e.printStackTrace();
+            session.deliver(EncodedMessage.serverNotice("Search is not available right now."));
+            session.deliver(EncodedMessage.searchEnd(searchId, BinaryCodec.NO_SEQ));
+            return;
+        }
+        String username = session.getUsername();
+        for (LogRecord record : page.getHits()) {
+            session.deliver(EncodedMessage.searchHit(searchId, record, username));
+        }
+        session.deliver(EncodedMessage.searchEnd(searchId, page.getNext()));
+        metrics.recordSearch(System.nanoTime() - start);
+    }
+
+    // messages in rooms the session is currently in, and its own direct messages
+    private Predicate<LogRecord> visibleTo(Session session) {
+        String username = session.getUsername();
+        Set<Room> joined = memberships.get(session);
+        return record -> {
+            if (record.getKind() == LogRecord.DIRECT) return record.involves(username);
+            Room room = rooms.get(record.getRoom());
+            return room != null && joined != null && joined.contains(room);
+        };
+    }
+
+    private void joinRoom(Session session, String roomName, boolean announce) {
+        String name = roomName.trim().toLowerCase();
+        if (!name.matches(ROOM_NAME_PATTERN)) {
+            session.deliver(EncodedMessage.serverNotice("Invalid room name " + roomName + "."));
+            return;
+        }
+        // compute() makes the add atomic with removeFromRoom dropping an emptied room
+        Room room = rooms.compute(name, (key, existing) -> {
+            Room target = existing != null ? existing : new Room(key);
+            target.add(session);
+            // announced inside compute() so peers see creation and removal of one room in order
+            if (existing == null && cluster != null) cluster.roomChanged(key, true);
+            return target;
+        });
+        memberships.computeIfAbsent(session, key -> ConcurrentHashMap.newKeySet()).add(room);
+        if (registry.get(session.getUsername()) != session) {
+            // the session disconnected while joining; leave() has already cleaned up its other rooms
+            memberships.remove(session);
+            removeFromRoom(room, session);
+            return;
+        }
+        if (announce) {
+            session.deliver(EncodedMessage.roomMembership(true, room));
+        }
+    }
+
+    private void leaveRoom(Session session, String roomName) {
+        String name = roomName.trim().toLowerCase();
+        Room room = rooms.get(name);
+        Set<Room> joined = memberships.get(session);
+        if (room == null || joined == null || !joined.remove(room)) {
+            session.deliver(EncodedMessage.serverNotice("You are not in room " + name + "."));
+            return;
+        }
+        removeFromRoom(room, session);
+        session.deliver(EncodedMessage.roomMembership(false, room));
+    }
+
+    private void removeFromRoom(Room room, Session session) {
+        rooms.computeIfPresent(room.getName(), (key, existing) -> {
+            existing.remove(session);
+            if (existing.isEmpty() && !key.equals(LOBBY)) {
+                if (cluster != null) cluster.roomChanged(key, false);
+                return null;
+            }
+            return existing;
+        });
+    }
+
+    // Shutdown, once nothing new is accepted: every local session is told to reconnect after a random delay
+    // within the window, queued behind whatever it has still to receive, and is closed once that is written or
+    // at the deadline, whichever comes first. Returns how many were cut off at the deadline.
+    public int drain(long drainMillis, int reconnectWindowMillis) {
+        presenceLock.lock();
+        try {
+            draining = true;
+        } finally {
+            presenceLock.unlock();
+        }
+        Session[] sessions = registry.localSnapshot();
+        for (Session session : sessions) {
+            session.deliver(EncodedMessage.reconnect(ThreadLocalRandom.current().nextInt(Math.max(1, reconnectWindowMillis))));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        int pending = sessions.length;
+        while (pending > 0 && deadline - System.nanoTime() > 0) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            pending = 0;
+            for (Session session : sessions) {
+                if (!session.isFlushed()) pending++;
+            }
+        }
+        int cutOff = 0;
+        for (Session session : sessions) {
+            if (!session.isFlushed()) cutOff++;
+            session.close();
+        }
+        return cutOff;
+    }
+
+    public Room getRoom(String name) {
+        return rooms.get(name);
+    }
+
+    // one line per room: members, total messages and current message rate
+    public String roomStatsReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Room room : rooms.values()) {
+            sb.append('#').append(room.getName())
+                    .append(" members=").append(room.memberCount())
+                    .append(" messages=").append(room.messageCount())
+                    .append(" rate=").append(String.format(Locale.ROOT, "%.2f/s", room.messageRate()))
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    public void broadcast(Session except, EncodedMessage message) {
+        fanOut("*", registry.localSnapshot(), except, message);
+    }
+
+    private void resync(Session session) {
+        presenceLock.lock();
+        try {
+            session.deliver(EncodedMessage.userSnapshot(presenceVersion, registry.snapshot()));
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // one line per session: queue depth, high-water mark and messages dropped on overflow
+    public String queueStatsReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Session session : registry.localSnapshot()) {
+            OutboundQueue<?> queue = session.getOutboundQueue();
+            sb.append(session.getUsername())
+                    .append(" depth=").append(queue.depth())
+                    .append('/').append(queue.capacity())
+                    .append(" max=").append(queue.maxDepth())
+                    .append(" enqueued=").append(queue.enqueued())
+                    .append(" dropped=").append(queue.dropped())
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static final class PresenceChange {
+        final boolean joined;
+        final long version;
+        final Session subject;
+
+        PresenceChange(boolean joined, long version, Session subject) {
+            this.joined = joined;
+            this.version = version;
+            this.subject = subject;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import javax.swing.*;
+import javax.swing.text.*;
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+// Chat transcript for a JTextPane that stays responsive under load. append() may be called from any thread;
+// lines are queued and applied on the EDT at most once per frame, as a single bulk document insert with styles
+// built once. Only the newest maxLines lines stay in the document; older ones move to a bounded archive and
+// are put back a page at a time when the user scrolls to the top. While the user reads older lines, nothing
+// above them is removed: new lines are added below until the document holds twice the window, then wait and
+// come in a page at a time when the user scrolls to the bottom, with the view held still as pages come and go.
+public class ChatTranscript {
+
+    private static final int PAGE_LINES = 200;
+    // at most one document update per frame, however fast lines arrive
+    private static final int FLUSH_INTERVAL_MILLIS = 16;
+
+    private final JTextPane pane;
+    private final JScrollPane scrollPane;
+    private final TranscriptDocument doc = new TranscriptDocument();
+    private final BooleanSupplier followTail;
+    private final int maxLines;
+    private final int archiveLines;
+
+    private final SimpleAttributeSet selfStyle = new SimpleAttributeSet();
+    private final SimpleAttributeSet otherStyle = new SimpleAttributeSet();
+    private final SimpleAttributeSet messageStyle = new SimpleAttributeSet();
+    private final SimpleAttributeSet timeStyle = new SimpleAttributeSet();
+    private final SimpleAttributeSet serverStyle = new SimpleAttributeSet();
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
+
+    private final ConcurrentLinkedQueue<Line> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Timer flushTimer = new Timer(FLUSH_INTERVAL_MILLIS, e -> flush());
+    // EDT only: the lines in the document, the ones trimmed off its top, and the newer ones waiting below it
+    // while the user reads older lines; all oldest first
+    private final ArrayDeque<Line> shown = new ArrayDeque<>();
+    private final ArrayDeque<Line> archive = new ArrayDeque<>();
+    private final ArrayDeque<Line> held = new ArrayDeque<>();
+
+    public ChatTranscript(JTextPane pane, JScrollPane scrollPane, Color selfColor, Color otherColor, Color timeColor,
+                          BooleanSupplier followTail, int maxLines, int archiveLines) {
+        this.pane = pane;
+        this.scrollPane = scrollPane;
+        this.followTail = followTail;
+        this.maxLines = maxLines;
+        this.archiveLines = archiveLines;
+
+        StyleConstants.setBold(selfStyle, true);
+        StyleConstants.setFontSize(selfStyle, 14);
+        StyleConstants.setForeground(selfStyle, selfColor);
+        StyleConstants.setBold(otherStyle, true);
+        StyleConstants.setFontSize(otherStyle, 14);
+        if (otherColor != null) StyleConstants.setForeground(otherStyle, otherColor);
+        StyleConstants.setFontSize(messageStyle, 14);
+        StyleConstants.setFontSize(timeStyle, 10);
+        StyleConstants.setForeground(timeStyle, timeColor);
+        StyleConstants.setItalic(serverStyle, true);
+        StyleConstants.setForeground(serverStyle, Color.MAGENTA);
+        StyleConstants.setFontSize(serverStyle, 12);
+
+        flushTimer.setRepeats(false);
+        pane.setStyledDocument(doc);
+        // the caret would otherwise chase every insert; scrolling is done once per batch instead
+        ((DefaultCaret) pane.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValueIsAdjusting()) return;
+            if (e.getValue() == 0 && !archive.isEmpty()) {
+                SwingUtilities.invokeLater(this::loadOlder);
+            } else if (!held.isEmpty() && isAtBottom()) {
+                SwingUtilities.invokeLater(this::loadNewer);
+            }
+        });
+    }
+
+    // sender is shown as-is, e.g. "You" for the user's own messages
+    public void appendMessage(String sender, String message, boolean isSelf, Date time) {
+        append(new Line(sender, message, isSelf, time.getTime()));
+    }
+
+    public void appendServerMessage(String message) {
+        append(new Line(null, message, false, System.currentTimeMillis()));
+    }
+
+    private void append(Line line) {
+        incoming.add(line);
+        if (flushScheduled.compareAndSet(false, true)) {
+            flushTimer.start();
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        List<Line> batch = new ArrayList<>();
+        Line line;
+        while ((line = incoming.poll()) != null) {
+            batch.add(line);
+        }
+        if (batch.isEmpty() && held.isEmpty()) return;
+        if (!followTail.getAsBoolean() || !isAtBottom()) {
+            hold(batch);
+            return;
+        }
+        if (!held.isEmpty()) {
+            held.addAll(batch);
+            batch = new ArrayList<>(held);
+            held.clear();
+        }
+        // a burst bigger than the window never needs laying out; it goes straight to the archive, after
+        // everything currently shown so the archive stays in order
+        int skip = Math.max(0, batch.size() - maxLines);
+        if (skip > 0) trimTop(shown.size());
+        for (int i = 0; i < skip; i++) {
+            archive(batch.get(i));
+        }
+        List<Line> visible = batch.subList(skip, batch.size());
+        doc.appendLines(specsFor(visible));
+        shown.addAll(visible);
+        int excess = shown.size() - maxLines;
+        if (excess > 0) trimTop(excess);
+        pane.setCaretPosition(doc.getLength());
+    }
+
+    // not following: lines go in below the document until it holds twice the window, so nothing above the
+    // user's view moves, and wait after that. The wait is as bounded as the archive, losing its oldest lines
+    private void hold(List<Line> batch) {
+        List<Line> below = new ArrayList<>();
+        for (Line line : batch) {
+            if (held.isEmpty() && shown.size() + below.size() < 2 * maxLines) {
+                below.add(line);
+            } else {
+                if (held.size() == archiveLines) held.removeFirst();
+                held.addLast(line);
+            }
+        }
+        doc.appendLines(specsFor(below));
+        shown.addAll(below);
+        // a user already at the bottom cannot scroll further to ask for them
+        if (!held.isEmpty() && isAtBottom()) loadNewer();
+    }
+
+    private boolean isAtBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+    }
+
+    private void trimTop(int lines) {
+        if (lines == 0) return;
+        doc.removeLines(lines);
+        for (int i = 0; i < lines; i++) {
+            archive(shown.removeFirst());
+        }
+    }
+
+    // the line at that height in the document
+    private int lineAt(int y) {
+        return doc.getDefaultRootElement().getElementIndex(pane.viewToModel2D(new Point(0, y)));
+    }
+
+    // how far down the document that line starts, which is the height of the lines above it
+    private int heightOf(int lines) {
+        try {
+            Rectangle2D start = pane.modelToView2D(doc.getDefaultRootElement().getElement(lines).getStartOffset());
+            return start != null ? (int) start.getY() : 0;
+        } catch (BadLocationException e) {
+            return 0;
+        }
+    }
+
+    private void archive(Line line) {
+        if (archive.size() == archiveLines) archive.removeFirst();
+        archive.addLast(line);
+    }
+
+    // scroll-back reached the top: put the newest page of archived lines back and keep the view where it was
+    private void loadOlder() {
+        if (archive.isEmpty() || scrollPane.getVerticalScrollBar().getValue() != 0) return;
+        ArrayDeque<Line> page = new ArrayDeque<>(PAGE_LINES);
+        while (page.size() < PAGE_LINES && !archive.isEmpty()) {
+            page.addFirst(archive.removeLast());
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        int heightBefore = bar.getMaximum();
+        doc.prependLines(specsFor(page));
+        for (Iterator<Line> newestFirst = page.descendingIterator(); newestFirst.hasNext(); ) {
+            shown.addFirst(newestFirst.next());
+        }
+        SwingUtilities.invokeLater(() -> bar.setValue(bar.getMaximum() - heightBefore));
+    }
+
+    // scroll-back reached the bottom with lines waiting: jump to the newest if following, otherwise put the next
+    // page in and trim the top back toward twice the window, moving the view up by what was trimmed so it stays
+    private void loadNewer() {
+        if (held.isEmpty() || !isAtBottom()) return;
+        if (followTail.getAsBoolean()) {
+            flush();
+            return;
+        }
+        List<Line> page = new ArrayList<>(PAGE_LINES);
+        while (page.size() < PAGE_LINES && !held.isEmpty()) {
+            page.add(held.removeFirst());
+        }
+        doc.appendLines(specsFor(page));
+        shown.addAll(page);
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        int value = bar.getValue();
+        // only lines above the view, and not the last of them, which keeps the view off the top and loadOlder
+        int excess = Math.max(0, Math.min(shown.size() - 2 * maxLines, lineAt(value) - 1));
+        int trimmedHeight = heightOf(excess);
+        trimTop(excess);
+        SwingUtilities.invokeLater(() -> bar.setValue(value - trimmedHeight));
+    }
+
+    private List<DefaultStyledDocument.ElementSpec> specsFor(Iterable<Line> lines) {
+        List<DefaultStyledDocument.ElementSpec> specs = new ArrayList<>();
+        for (Line line : lines) {
+            // closing the current paragraph first is what lets the same sequence both append and prepend
+            specs.add(new DefaultStyledDocument.ElementSpec(null, DefaultStyledDocument.ElementSpec.EndTagType));
+            specs.add(new DefaultStyledDocument.ElementSpec(null, DefaultStyledDocument.ElementSpec.StartTagType));
+            String timestamp = " [" + timeFormat.format(new Date(line.time)) + "]\n";
+            if (line.sender == null) {
+                content(specs, serverStyle, line.text + timestamp);
+            } else {
+                content(specs, line.isSelf ? selfStyle : otherStyle, line.sender + ": ");
+                content(specs, messageStyle, line.text);
+                content(specs, timeStyle, timestamp);
+            }
+        }
+        return specs;
+    }
+
+    private static void content(List<DefaultStyledDocument.ElementSpec> specs, AttributeSet style, String text) {
+        char[] chars = text.toCharArray();
+        specs.add(new DefaultStyledDocument.ElementSpec(style, DefaultStyledDocument.ElementSpec.ContentType,
+                chars, 0, chars.length));
+    }
+
+    private static final class Line {
+        // null for server notices
+        final String sender;
+        final String text;
+        final boolean isSelf;
+        final long time;
+
+        Line(String sender, String text, boolean isSelf, long time) {
+            this.sender = sender;
+            this.text = text;
+            this.isSelf = isSelf;
+            this.time = time;
+        }
+    }
+
+    // one paragraph per line; the bulk insert is protected in DefaultStyledDocument
+    private final class TranscriptDocument extends DefaultStyledDocument {
+        private static final long serialVersionUID = 1L;
+
+        void appendLines(List<ElementSpec> specs) {
+            if (specs.isEmpty()) return;
+            try {
+                insert(getLength(), specs.toArray(new ElementSpec[0]));
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void prependLines(List<ElementSpec> specs) {
+            if (specs.isEmpty()) return;
+            try {
+                insert(0, specs.toArray(new ElementSpec[0]));
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void removeLines(int lines) {
+            try {
+                remove(0, getDefaultRootElement().getElement(lines).getStartOffset());
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
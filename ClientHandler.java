@@ -1,140 +1,337 @@
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, Session {
 
-    public static ArrayList<ClientHandler> clientHandlers = new ArrayList<>();
-    public static Map<String, ClientHandler> userMap = new HashMap<>();
+    private static final int MAX_GATHER = 64;
 
+    private final ChatHub hub;
+    private final Executor executor;
     private Socket socket;
-    private BufferedReader bufferedReader;
-    private BufferedWriter bufferedWriter;
+    private FrameReader frameReader;
+    // the socket's own channel when accepted through a ServerSocketChannel, which allows gathering writes
+    private WritableByteChannel out;
+    // drained only by this client's writer task, so a slow reader never blocks the thread that broadcasts
+    private final OutboundQueue<QueuedFrame> outbound;
+    private final SendStats sendStats;
+    private final Throttle throttle;
+    private final long coalesceWindowNanos;
+    private final int coalesceMaxBytes;
+    private volatile Thread writerThread;
+    // set while the writer holds frames it took off the queue
+    private volatile boolean writing;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final int id;
+    private final long acceptedNanos;
+    private final long handshakeDeadline;
+    private volatile long lastReadNanos;
+    // a text client that has sent __PING__ or __PONG__, and so can be pinged
+    private volatile boolean heartbeats;
+    private WireProtocol protocol = WireProtocol.TEXT;
+    private FrameCompression compression;
     String clientUsername;
+    // created on the first DM handle the client binds; only the reading thread touches it
+    private PeerHandles peerHandles;
 
-    public ClientHandler(Socket socket){
-        try{
-            this.socket = socket;
-            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.clientUsername = bufferedReader.readLine();
+    public ClientHandler(Socket socket, ChatHub hub, Executor executor){
+        this.hub = hub;
+        this.executor = executor;
+        this.id = hub.nextSessionId();
+        hub.getMetrics().connectionAccepted();
+        this.outbound = hub.getConfig().newOutboundQueue();
+        this.sendStats = hub.getSendStats();
+        this.throttle = hub.newThrottle();
+        this.coalesceWindowNanos = TimeUnit.MICROSECONDS.toNanos(hub.getConfig().getCoalesceWindowMicros());
+        this.coalesceMaxBytes = hub.getConfig().getCoalesceMaxBytes();
+        this.socket = socket;
+        this.acceptedNanos = System.nanoTime();
+        this.lastReadNanos = acceptedNanos;
+        this.handshakeDeadline = acceptedNanos
+                + TimeUnit.MILLISECONDS.toNanos(hub.getConfig().getHandshakeTimeoutMillis());
+    }
 
-            clientHandlers.add(this);
-            userMap.put(clientUsername, this);
+    // runs on the client's own thread rather than the accept loop, so a client slow to send its hello holds
+    // up nobody else; one that has not sent all of it within the handshake timeout of being accepted is dropped
+    private boolean handshake() {
+        try{
+            // legacy text clients never answer heartbeats, so the kernel's probes are what finds them gone
+            socket.setKeepAlive(true);
+            this.out = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+            HandshakeInput in = new HandshakeInput(socket.getInputStream());
+            this.frameReader = new FrameReader(in);
+            String firstLine = frameReader.readLine();
+            in.done = true;
+            socket.setSoTimeout(0);
+            if (firstLine != null) {
+                this.protocol = WireProtocol.fromFirstLine(firstLine);
+                this.clientUsername = WireProtocol.usernameFromFirstLine(firstLine);
+                if (protocol == WireProtocol.BINARY) {
+                    this.compression = hub.negotiateCompression(firstLine);
+                    // the ack has to be the first thing in the queue: the client switches to binary after it
+                    sendLine(WireProtocol.helloAck(compression != null));
+                }
+            }
 
-            broadcastMessage("Server : " + clientUsername + " has entered the chat !");
-            broadcastUserList();
+            if (clientUsername == null || !hub.join(this)) {
+                // not registered, so nobody else writes to this socket: deliver the rejection reason inline
+                QueuedFrame frame;
+                while ((frame = outbound.poll()) != null) {
+                    while (frame.buffer.hasRemaining()) out.write(frame.buffer);
+                }
+                closeEverything(socket, ServerMetrics.DisconnectCause.REJECTED);
+                return false;
+            }
+            return true;
+        }catch (SocketTimeoutException e){
+            closeEverything(socket, ServerMetrics.DisconnectCause.HANDSHAKE_TIMEOUT);
         }catch (IOException e){
-            closeEverything(socket , bufferedReader ,bufferedWriter);
+            closeEverything(socket, ServerMetrics.DisconnectCause.IO_ERROR);
+        }
+        return false;
+    }
+
+    // Until the hello is in, every read waits only for what is left of the handshake timeout, counted from the
+    // accept as in NioSession, so a client that trickles its hello a byte at a time is still dropped on time.
+    private final class HandshakeInput extends FilterInputStream {
+        // reading thread only
+        boolean done;
+
+        HandshakeInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            waitNoLongerThanTheDeadline();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            waitNoLongerThanTheDeadline();
+            return super.read(buffer, offset, length);
         }
+
+        private void waitNoLongerThanTheDeadline() throws IOException {
+            if (done) return;
+            long left = TimeUnit.NANOSECONDS.toMillis(handshakeDeadline - System.nanoTime());
+            if (left <= 0) throw new SocketTimeoutException("handshake deadline passed");
+            socket.setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+        }
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public WireProtocol getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public String getUsername() {
+        return clientUsername;
+    }
+
+    @Override
+    public OutboundQueue<?> getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public PeerHandles getPeerHandles() {
+        if (peerHandles == null) peerHandles = new PeerHandles();
+        return peerHandles;
+    }
+
+    @Override
+    public FrameCompression getCompression() {
+        return compression;
+    }
+
+    @Override
+    public long getAcceptedNanos() {
+        return acceptedNanos;
+    }
+
+    @Override
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    @Override
+    public boolean answersPings() {
+        return protocol == WireProtocol.BINARY || heartbeats;
+    }
+
+    @Override
+    public void heartbeatSeen() {
+        heartbeats = true;
+    }
+
+    @Override
+    public Throttle getThrottle() {
+        return throttle;
     }
 
     @Override
     public void run() {
-        String messageFromClient;
-        while (socket.isConnected()){
+        if (!handshake()) return;
+        executor.execute(this::writeLoop);
+        // isConnected() stays true once a socket has connected, even after the peer is gone; a half-open
+        // connection blocks the read below until Heartbeats closes the socket under it
+        while (!closed.get()){
             try{
-                messageFromClient = bufferedReader.readLine();
+                if (protocol == WireProtocol.BINARY) {
+                    int type = frameReader.readFrame();
+                    if (type == -1) {
+                        closeEverything(socket, ServerMetrics.DisconnectCause.CLIENT_CLOSED);
+                        break;
+                    }
+                    lastReadNanos = System.nanoTime();
+                    BinaryCodec.Cursor body = frameReader.body();
+                    throttle.onMessage(body.remaining());
+                    hub.onFrame(this, type, body);
+                    waitOutThrottle();
+                    continue;
+                }
+                String messageFromClient = frameReader.readLine();
                 if (messageFromClient == null) {
-                    closeEverything(socket, bufferedReader, bufferedWriter);
+                    closeEverything(socket, ServerMetrics.DisconnectCause.CLIENT_CLOSED);
                     break;
                 }
+                lastReadNanos = System.nanoTime();
 
-                if (messageFromClient.startsWith("__DM__:")) {
-                    handlePrivateMessage(messageFromClient);
-                } else {
-                    broadcastMessage(messageFromClient);
-                }
+                throttle.onMessage(frameReader.lastLineBytes());
+                hub.onMessage(this, messageFromClient);
+                waitOutThrottle();
+            } catch (ProtocolException e) {
+                closeEverything(socket, ServerMetrics.DisconnectCause.PROTOCOL_ERROR);
+                break;
             } catch (IOException e) {
-                closeEverything(socket , bufferedReader ,bufferedWriter);
+                closeEverything(socket, ServerMetrics.DisconnectCause.IO_ERROR);
                 break;
             }
         }
     }
 
-    private void handlePrivateMessage(String raw) {
-        // format: __DM__:<toUsername>:<message>
+    // over a limit: stop reading until back under it, so the client's sends back up in its own socket buffers
+    private void waitOutThrottle() {
+        long pause;
+        while ((pause = throttle.pauseNanos(System.nanoTime())) > 0 && !closed.get()) {
+            LockSupport.parkNanos(pause);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer frame) {
+        if (closed.get()) return;
+        if (!outbound.offer(new QueuedFrame(frame.duplicate(), System.nanoTime()))) {
+            // overflow policy is DISCONNECT: this client cannot keep up
+            closeEverything(socket, ServerMetrics.DisconnectCause.SLOW_CONSUMER);
+        }
+    }
+
+    // coalesces everything queued, plus whatever arrives within the window of the oldest frame, into one
+    // gathering write; the byte threshold or a full batch cuts the window short
+    private void writeLoop() {
+        writerThread = Thread.currentThread();
+        QueuedFrame[] queued = new QueuedFrame[MAX_GATHER];
+        ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
         try {
-            String withoutPrefix = raw.substring("__DM__:".length());
-            int firstColon = withoutPrefix.indexOf(':');
-            if (firstColon == -1) return;
-
-            String toUser = withoutPrefix.substring(0, firstColon).trim();
-            String message = withoutPrefix.substring(firstColon + 1).trim();
-
-            ClientHandler toHandler = userMap.get(toUser);
-            if (toHandler != null) {
-                // send to target
-                String payloadToTarget = "__DM__:" + clientUsername + ":" + message;
-                toHandler.bufferedWriter.write(payloadToTarget);
-                toHandler.bufferedWriter.newLine();
-                toHandler.bufferedWriter.flush();
-                // echo back to sender
-                String payloadToSelf = "__DM__:" + toUser + ":" + message;
-                this.bufferedWriter.write(payloadToSelf);
-                this.bufferedWriter.newLine();
-                this.bufferedWriter.flush();
-            } else {
-                this.bufferedWriter.write("Server : User " + toUser + " not found.");
-                this.bufferedWriter.newLine();
-                this.bufferedWriter.flush();
+            while (!closed.get()) {
+                queued[0] = outbound.take();
+                writing = true;
+                batch[0] = queued[0].buffer;
+                long bytes = batch[0].remaining();
+                long deadline = queued[0].enqueuedNanos + coalesceWindowNanos;
+                int count = 1;
+                while (count < MAX_GATHER && bytes < coalesceMaxBytes) {
+                    QueuedFrame next = outbound.poll();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || (next = outbound.poll(wait, TimeUnit.NANOSECONDS)) == null) break;
+                    }
+                    queued[count] = next;
+                    batch[count++] = next.buffer;
+                    bytes += next.buffer.remaining();
+                }
+                writeFully(batch, count);
+                long now = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    sendStats.recordDelivered(queued[i], now);
+                    queued[i] = null;
+                }
+                writing = false;
             }
+        } catch (InterruptedException e) {
+            // closed while waiting for the next message
         } catch (IOException e) {
-            closeEverything(socket, bufferedReader, bufferedWriter);
+            closeEverything(socket, ServerMetrics.DisconnectCause.IO_ERROR);
         }
     }
 
-    public void broadcastMessage(String messageToSend){
-        for (ClientHandler clientHandler : clientHandlers){
-            try{
-                if(!clientHandler.clientUsername.equals(clientUsername)){
-                    clientHandler.bufferedWriter.write(messageToSend);
-                    clientHandler.bufferedWriter.newLine();
-                    clientHandler.bufferedWriter.flush();
+    private void writeFully(ByteBuffer[] batch, int count) throws IOException {
+        if (out instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) out;
+            int first = 0;
+            while (first < count) {
+                sendStats.recordWrite(gathering.write(batch, first, count - first));
+                while (first < count && !batch[first].hasRemaining()) {
+                    batch[first++] = null;
                 }
-            }catch (IOException e){
-                closeEverything(socket , bufferedReader , bufferedWriter);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                while (batch[i].hasRemaining()) sendStats.recordWrite(out.write(batch[i]));
+                batch[i] = null;
             }
         }
     }
 
-    private void broadcastUserList() {
-        StringBuilder sb = new StringBuilder("__USER_LIST__:");
-        for (int i = 0; i < clientHandlers.size(); i++) {
-            sb.append(clientHandlers.get(i).clientUsername);
-            if (i < clientHandlers.size() - 1) sb.append(",");
-        }
-        String payload = sb.toString();
+    @Override
+    public boolean isFlushed() {
+        return closed.get() || (!writing && outbound.isEmpty());
+    }
 
-        for (ClientHandler ch : clientHandlers) {
-            try {
-                ch.bufferedWriter.write(payload);
-                ch.bufferedWriter.newLine();
-                ch.bufferedWriter.flush();
-            } catch (IOException e) {
-                ch.closeEverything(ch.socket, ch.bufferedReader, ch.bufferedWriter);
-            }
-        }
+    @Override
+    public void close() {
+        closeEverything(socket, ServerMetrics.DisconnectCause.SERVER);
+    }
+
+    @Override
+    public void close(ServerMetrics.DisconnectCause cause) {
+        closeEverything(socket, cause);
     }
 
     public void removeClientHandler(){
-        clientHandlers.remove(this);
-        userMap.remove(clientUsername);
-        broadcastMessage("Server : " + clientUsername + " has left the chat!");
-        broadcastUserList();
+        hub.leave(this);
     }
 
-    public void closeEverything(Socket socket , BufferedReader bufferedReader , BufferedWriter bufferedWriter){
+    public void closeEverything(Socket socket, ServerMetrics.DisconnectCause cause){
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        hub.getMetrics().connectionClosed(cause);
         removeClientHandler();
+        Thread writer = writerThread;
+        if (writer != null) {
+            writer.interrupt();
+        }
+        outbound.clear();
         try{
-            if(bufferedReader != null){
-                bufferedReader.close();
-            }
-            if (bufferedWriter != null){
-                bufferedWriter.close();
-            }
             if (socket != null){
                 socket.close();
             }
@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+// Transport between the nodes of a cluster. It moves frames in the BinaryCodec layout (with ClusterNode's
+// frame types) and keeps them in order per destination; what they mean is up to the listener. Delivery is best
+// effort: frames for a peer that is down are dropped, and the periodic presence sync repairs what was lost.
+// send() says whether a frame was queued, so a DM that cannot be passed on is reported to its sender.
+public interface ClusterBus {
+
+    interface Listener {
+
+        // frames can now be sent to the node
+        void onPeerUp(String node);
+
+        // the node stopped sending to us; nothing more arrives from it until it is up again
+        void onPeerDown(String node);
+
+        // body is only valid for the duration of the call
+        void onFrame(String fromNode, int type, BinaryCodec.Cursor body) throws ProtocolException;
+    }
+
+    String getNodeId();
+
+    void start(Listener listener) throws IOException;
+
+    // to every peer that is up; frames may be shared, so implementations must not move their position
+    void publish(ByteBuffer frame);
+
+    // false if the node is not up or its queue is full, in which case the frame is dropped
+    boolean send(String node, ByteBuffer frame);
+
+    // frames dropped because a peer's queue was full or the link to it went down with frames still queued
+    default long dropped() {
+        return 0;
+    }
+
+    void close();
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// This server's membership in a cluster. Local joins and leaves are announced to every peer and peers' users are
+// mirrored into the hub as RemoteSessions, so presence lists are cluster-wide. A room message is forwarded once
+// per node that has members in the room (every node for the lobby) and fanned out there; a DM goes only to the
+// node its target is on. Presence is eventually consistent: deltas are best effort, and every node re-sends its
+// full state to a peer when the link comes up and to all peers every talkhub.cluster.syncIntervalSeconds.
+public class ClusterNode implements ClusterBus.Listener {
+
+    // body: name
+    static final int USER_UP = 1;
+    // body: name
+    static final int USER_DOWN = 2;
+    // body: room; the sending node has members in it
+    static final int ROOM_ADD = 3;
+    // body: room; the sending node's last member left
+    static final int ROOM_REMOVE = 4;
+    // body: empty; the USER_UP and ROOM_ADD frames up to SYNC_END are the sender's complete state
+    static final int SYNC_BEGIN = 5;
+    static final int SYNC_END = 6;
+    // body: room, sender, text
+    static final int ROOM_MESSAGE = 7;
+    // body: sender, target (length-prefixed), messageId, seq, text; messageId and seq are the sending node's
+    static final int DIRECT = 8;
+    // body: sender, target (length-prefixed), messageId, seq, status; answers DIRECT with a DM_ACK status
+    static final int DIRECT_RESULT = 9;
+
+    private final ChatHub hub;
+    private final ClusterBus bus;
+    private final int syncIntervalSeconds;
+    private ScheduledExecutorService syncTimer;
+
+    // node -> names of its users / rooms it has members in, as last heard from it
+    private final ConcurrentHashMap<String, Set<String>> usersByNode = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> roomsByNode = new ConcurrentHashMap<>();
+    // room -> nodes to forward its messages to
+    private final ConcurrentHashMap<String, Set<String>> roomNodes = new ConcurrentHashMap<>();
+    // what a sync in progress has not confirmed yet; dropped at SYNC_END. Only touched by the peer's inbound thread
+    private final ConcurrentHashMap<String, Set<String>> staleUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> staleRooms = new ConcurrentHashMap<>();
+
+    public ClusterNode(ChatHub hub, ClusterBus bus, int syncIntervalSeconds) {
+        this.hub = hub;
+        this.bus = bus;
+        this.syncIntervalSeconds = syncIntervalSeconds;
+    }
+
+    public String getNodeId() {
+        return bus.getNodeId();
+    }
+
+    public void start() throws IOException {
+        hub.attachCluster(this);
+        bus.start(this);
+        if (syncIntervalSeconds > 0) {
+            syncTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "cluster-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncTimer.scheduleAtFixedRate(() -> hub.clusterSync(bus::publish),
+                    syncIntervalSeconds, syncIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public void close() {
+        if (syncTimer != null) syncTimer.shutdownNow();
+        bus.close();
+    }
+
+    // called by the hub under its presence lock, so peers see joins and leaves in the order they happened here
+    void userJoined(Session session) {
+        bus.publish(BinaryCodec.text(USER_UP, session.getUsername()));
+    }
+
+    void userLeft(Session session) {
+        bus.publish(BinaryCodec.text(USER_DOWN, session.getUsername()));
+    }
+
+    // called while the hub holds the room's map entry, which keeps adds and removes for one room in order
+    void roomChanged(String room, boolean hasMembers) {
+        bus.publish(BinaryCodec.text(hasMembers ? ROOM_ADD : ROOM_REMOVE, room));
+    }
+
+    void forwardRoomMessage(String room, Session sender, String text) {
+        ByteBuffer frame = BinaryCodec.strings(ROOM_MESSAGE, room, sender.getUsername(), text);
+        if (room.equals(ChatHub.LOBBY)) {
+            bus.publish(frame);
+            return;
+        }
+        Set<String> nodes = roomNodes.get(room);
+        if (nodes == null) return;
+        for (String node : nodes) {
+            bus.send(node, frame);
+        }
+    }
+
+    // false if the DM could not be queued for the target's node, which then never answers it
+    boolean forwardDirect(Session sender, RemoteSession target, long messageId, long seq, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = directStart(DIRECT, sender.getUsername(), target.getUsername(), messageId, seq, utf8.length);
+        frame.put(utf8);
+        return bus.send(target.getNode(), BinaryCodec.finish(frame));
+    }
+
+    // frames the bus dropped on the way to peers
+    long getDropped() {
+        return bus.dropped();
+    }
+
+    private void answerDirect(String node, String sender, String target, long messageId, long seq, int status) {
+        ByteBuffer frame = directStart(DIRECT_RESULT, sender, target, messageId, seq, BinaryCodec.varIntSize(status));
+        BinaryCodec.putVarInt(frame, status);
+        bus.send(node, BinaryCodec.finish(frame));
+    }
+
+    // the fields DIRECT and DIRECT_RESULT share, leaving room for tailLength more bytes
+    private static ByteBuffer directStart(int type, String sender, String target, long messageId, long seq,
+                                          int tailLength) {
+        byte[] senderUtf8 = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] targetUtf8 = target.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = BinaryCodec.start(type,
+                BinaryCodec.varIntSize(senderUtf8.length) + senderUtf8.length
+                        + BinaryCodec.varIntSize(targetUtf8.length) + targetUtf8.length
+                        + BinaryCodec.varLongSize(messageId) + BinaryCodec.varLongSize(seq) + tailLength);
+        BinaryCodec.putVarInt(frame, senderUtf8.length);
+        frame.put(senderUtf8);
+        BinaryCodec.putVarInt(frame, targetUtf8.length);
+        frame.put(targetUtf8);
+        BinaryCodec.putVarLong(frame, messageId);
+        BinaryCodec.putVarLong(frame, seq);
+        return frame;
+    }
+
+    @Override
+    public void onPeerUp(String node) {
+        hub.clusterSync(frame -> bus.send(node, frame));
+    }
+
+    @Override
+    public void onPeerDown(String node) {
+        Set<String> users = usersByNode.remove(node);
+        if (users != null) {
+            for (String name : users) {
+                removeUser(node, name);
+            }
+        }
+        Set<String> rooms = roomsByNode.remove(node);
+        if (rooms != null) {
+            for (String room : rooms) {
+                removeRoomNode(room, node);
+            }
+        }
+        staleUsers.remove(node);
+        staleRooms.remove(node);
+    }
+
+    @Override
+    public void onFrame(String fromNode, int type, BinaryCodec.Cursor body) throws ProtocolException {
+        switch (type) {
+            case USER_UP:
+                addUser(fromNode, body.readRemaining());
+                break;
+            case USER_DOWN: {
+                String name = body.readRemaining();
+                nodeSet(usersByNode, fromNode).remove(name);
+                removeUser(fromNode, name);
+                break;
+            }
+            case ROOM_ADD:
+                addRoom(fromNode, body.readRemaining());
+                break;
+            case ROOM_REMOVE: {
+                String room = body.readRemaining();
+                nodeSet(roomsByNode, fromNode).remove(room);
+                removeRoomNode(room, fromNode);
+                break;
+            }
+            case SYNC_BEGIN:
+                staleUsers.put(fromNode, new HashSet<>(nodeSet(usersByNode, fromNode)));
+                staleRooms.put(fromNode, new HashSet<>(nodeSet(roomsByNode, fromNode)));
+                break;
+            case SYNC_END:
+                endSync(fromNode);
+                break;
+            case ROOM_MESSAGE: {
+                String room = body.readString();
+                String sender = body.readString();
+                hub.remoteRoomMessage(room, remoteSender(fromNode, sender), body.readRemaining());
+                break;
+            }
+            case DIRECT: {
+                String sender = body.readString();
+                String target = body.readString();
+                long messageId = body.readVarLong();
+                long seq = body.readVarLong();
+                hub.remoteDirect(remoteSender(fromNode, sender), target, body.readRemaining(),
+                        status -> answerDirect(fromNode, sender, target, messageId, seq, status));
+                break;
+            }
+            case DIRECT_RESULT: {
+                String sender = body.readString();
+                String target = body.readString();
+                long messageId = body.readVarLong();
+                long seq = body.readVarLong();
+                hub.remoteDirectResult(sender, target, messageId, seq, body.readVarInt());
+                break;
+            }
+            default:
+                // a newer node; ignore what we do not understand
+                break;
+        }
+    }
+
+    private void addUser(String node, String name) {
+        Set<String> stale = staleUsers.get(node);
+        if (stale != null) stale.remove(name);
+        nodeSet(usersByNode, node).add(name);
+        hub.remoteUserUp(node, name);
+    }
+
+    private void removeUser(String node, String name) {
+        hub.remoteUserDown(node, name);
+        // a clash may have left another node's claim to the name set aside; it holds the name now
+        for (Map.Entry<String, Set<String>> entry : usersByNode.entrySet()) {
+            if (!entry.getKey().equals(node) && entry.getValue().contains(name)) {
+                hub.remoteUserUp(entry.getKey(), name);
+                return;
+            }
+        }
+    }
+
+    private void addRoom(String node, String room) {
+        Set<String> stale = staleRooms.get(node);
+        if (stale != null) stale.remove(room);
+        nodeSet(roomsByNode, node).add(room);
+        nodeSet(roomNodes, room).add(node);
+    }
+
+    private void removeRoomNode(String room, String node) {
+        roomNodes.computeIfPresent(room, (key, nodes) -> {
+            nodes.remove(node);
+            return nodes.isEmpty() ? null : nodes;
+        });
+    }
+
+    private void endSync(String node) {
+        Set<String> users = staleUsers.remove(node);
+        if (users != null) {
+            nodeSet(usersByNode, node).removeAll(users);
+            for (String name : users) {
+                removeUser(node, name);
+            }
+        }
+        Set<String> rooms = staleRooms.remove(node);
+        if (rooms != null) {
+            nodeSet(roomsByNode, node).removeAll(rooms);
+            for (String room : rooms) {
+                removeRoomNode(room, node);
+            }
+        }
+    }
+
+    // the registered session for the sender, or a stand-in when its USER_UP has not been applied yet
+    private RemoteSession remoteSender(String node, String name) {
+        Session existing = hub.getRegistry().get(name);
+        if (existing instanceof RemoteSession) return (RemoteSession) existing;
+        return new RemoteSession(0, name, node);
+    }
+
+    private static Set<String> nodeSet(ConcurrentHashMap<String, Set<String>> map, String key) {
+        return map.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    // the frames of one full sync, in order
+    static void writeSync(Session[] localSessions, Iterable<String> localRooms, Consumer<ByteBuffer> out) {
+        out.accept(BinaryCodec.empty(SYNC_BEGIN));
+        for (Session session : localSessions) {
+            out.accept(BinaryCodec.text(USER_UP, session.getUsername()));
+        }
+        for (String room : localRooms) {
+            out.accept(BinaryCodec.text(ROOM_ADD, room));
+        }
+        out.accept(BinaryCodec.empty(SYNC_END));
+    }
+}
@@ -0,0 +1,239 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+// One outbound message, encoded at most once per wire protocol (and compressed at most once) no matter how many
+// sessions receive it.
+public final class EncodedMessage {
+
+    private final Supplier<ByteBuffer> textEncoder;
+    private final Supplier<ByteBuffer> binaryEncoder;
+    // racing threads may both encode; either result is correct
+    private volatile ByteBuffer text;
+    private volatile ByteBuffer binary;
+    private volatile ByteBuffer compressed;
+    // set for a batch: its frames back to back, each compressed on its own
+    private final List<EncodedMessage> parts;
+
+    public EncodedMessage(Supplier<ByteBuffer> textEncoder, Supplier<ByteBuffer> binaryEncoder) {
+        this(textEncoder, binaryEncoder, null);
+    }
+
+    private EncodedMessage(Supplier<ByteBuffer> textEncoder, Supplier<ByteBuffer> binaryEncoder,
+                           List<EncodedMessage> parts) {
+        this.textEncoder = textEncoder;
+        this.binaryEncoder = binaryEncoder;
+        this.parts = parts;
+    }
+
+    public ByteBuffer frame(WireProtocol protocol) {
+        if (protocol == WireProtocol.BINARY) {
+            ByteBuffer frame = binary;
+            if (frame == null) binary = frame = binaryEncoder.get();
+            return frame;
+        }
+        ByteBuffer frame = text;
+        if (frame == null) text = frame = textEncoder.get();
+        return frame;
+    }
+
+    // the binary frame as sent to sessions that negotiated compression, compressed once for all of them
+    public ByteBuffer compressedFrame(FrameCompression compression) {
+        ByteBuffer frame = compressed;
+        if (frame == null) {
+            if (parts == null) {
+                frame = compressEach(compression, frame(WireProtocol.BINARY));
+            } else {
+                List<ByteBuffer> frames = new ArrayList<>(parts.size());
+                for (EncodedMessage part : parts) {
+                    frames.add(part.compressedFrame(compression));
+                }
+                frame = concat(frames);
+            }
+            compressed = frame;
+        }
+        return frame;
+    }
+
+    // a large user snapshot is several frames back to back; each is compressed on its own
+    private static ByteBuffer compressEach(FrameCompression compression, ByteBuffer frames) {
+        int start = frames.position();
+        int end = BinaryCodec.frameEnd(frames, start);
+        if (end == frames.limit()) return compression.compress(frames);
+        List<ByteBuffer> compressed = new ArrayList<>();
+        while (true) {
+            compressed.add(compression.compress(frames.duplicate().position(start).limit(end)));
+            if (end == frames.limit()) return concat(compressed);
+            start = end;
+            end = BinaryCodec.frameEnd(frames, start);
+        }
+    }
+
+    // several messages delivered as one send, in order; each keeps its own frame on the wire
+    public static EncodedMessage batch(List<EncodedMessage> parts) {
+        if (parts.size() == 1) return parts.get(0);
+        return new EncodedMessage(
+                () -> concat(framesOf(parts, WireProtocol.TEXT)),
+                () -> concat(framesOf(parts, WireProtocol.BINARY)),
+                parts);
+    }
+
+    private static List<ByteBuffer> framesOf(List<EncodedMessage> parts, WireProtocol protocol) {
+        List<ByteBuffer> frames = new ArrayList<>(parts.size());
+        for (EncodedMessage part : parts) {
+            frames.add(part.frame(protocol));
+        }
+        return frames;
+    }
+
+    private static ByteBuffer concat(List<ByteBuffer> frames) {
+        int length = 0;
+        for (ByteBuffer frame : frames) {
+            length += frame.remaining();
+        }
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for (ByteBuffer frame : frames) {
+            joined.put(frame.duplicate());
+        }
+        return joined.flip();
+    }
+
+    // format: Server : <text>
+    public static EncodedMessage serverNotice(String text) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine("Server : " + text),
+                () -> BinaryCodec.text(BinaryCodec.SERVER, text));
+    }
+
+    // format: <sender>: <text>
+    public static EncodedMessage group(long seq, Session sender, String text) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine(sender.getUsername() + ": " + text),
+                () -> BinaryCodec.group(seq, sender.getId(), text));
+    }
+
+    // the lobby keeps the plain group format so legacy clients still see it; other rooms use
+    // __ROOM__:<room>:<sender>: <text>
+    public static EncodedMessage room(long seq, Room room, Session sender, String text) {
+        if (room.getName().equals(ChatHub.LOBBY)) {
+            return group(seq, sender, text);
+        }
+        return new EncodedMessage(
+                () -> Frames.encodeLine("__ROOM__:" + room.getName() + ":" + sender.getUsername() + ": " + text),
+                () -> BinaryCodec.roomMessage(room.getName(), seq, sender.getId(), text));
+    }
+
+    // confirmation to the member only: a notice for text clients, ROOM_JOIN / ROOM_LEAVE echoed for binary ones
+    public static EncodedMessage roomMembership(boolean joined, Room room) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine("Server : " + (joined
+                        ? "You joined room " + room.getName() + " (" + room.memberCount() + " members)."
+                        : "You left room " + room.getName() + ".")),
+                () -> BinaryCodec.text(joined ? BinaryCodec.ROOM_JOIN : BinaryCodec.ROOM_LEAVE, room.getName()));
+    }
+
+    // format: __ROOM_LIST__:<room>=<members>/<messages per second>,...
+    public static EncodedMessage roomList(Room[] rooms) {
+        return new EncodedMessage(() -> {
+            StringBuilder sb = new StringBuilder("__ROOM_LIST__:");
+            for (int i = 0; i < rooms.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(rooms[i].getName()).append('=').append(rooms[i].memberCount())
+                        .append('/').append(String.format(Locale.ROOT, "%.2f", rooms[i].messageRate()));
+            }
+            return Frames.encodeLine(sb.toString());
+        }, () -> BinaryCodec.roomList(rooms));
+    }
+
+    // format: __DM__:<peer>:<text>, where peer is the sender for the recipient's copy and the target for the echo
+    public static EncodedMessage direct(long seq, Session peer, String text) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine("__DM__:" + peer.getUsername() + ":" + text),
+                () -> BinaryCodec.dm(seq, peer.getId(), text));
+    }
+
+    // a logged message replayed to `viewer`; text clients get the same line they would have seen live
+    public static EncodedMessage history(LogRecord record, String viewer) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine(historyLine(record, viewer)),
+                () -> BinaryCodec.history(record));
+    }
+
+    // format: __SEARCH_HIT__:<seq>:<the line history would show>
+    public static EncodedMessage searchHit(int searchId, LogRecord record, String viewer) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine("__SEARCH_HIT__:" + record.getSeq() + ":" + historyLine(record, viewer)),
+                () -> BinaryCodec.searchHit(searchId, record));
+    }
+
+    // format: __SEARCH_END__:<seq to continue before, 0 when there is nothing further back>
+    public static EncodedMessage searchEnd(int searchId, long next) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine("__SEARCH_END__:" + next),
+                () -> BinaryCodec.searchEnd(searchId, next));
+    }
+
+    private static String historyLine(LogRecord record, String viewer) {
+        if (record.getKind() == LogRecord.DIRECT) {
+            String peer = record.getSender().equals(viewer) ? record.getRecipient() : record.getSender();
+            return "__DM__:" + peer + ":" + record.getText();
+        }
+        if (record.getRoom().equals(ChatHub.LOBBY)) {
+            return record.getSender() + ": " + record.getText();
+        }
+        return "__ROOM__:" + record.getRoom() + ":" + record.getSender() + ": " + record.getText();
+    }
+
+    // a DM that waited for `record`'s recipient while they were offline; text clients see it as a plain DM
+    public static EncodedMessage inbox(LogRecord record) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine("__DM__:" + record.getSender() + ":" + record.getText()),
+                () -> BinaryCodec.inbox(record));
+    }
+
+    // format: __RECONNECT__:<delay in milliseconds>
+    public static EncodedMessage reconnect(long delayMillis) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine("__RECONNECT__:" + delayMillis),
+                () -> BinaryCodec.sequence(BinaryCodec.RECONNECT, delayMillis));
+    }
+
+    // format: __PING__
+    public static EncodedMessage ping() {
+        return new EncodedMessage(() -> Frames.encodeLine("__PING__"), () -> BinaryCodec.empty(BinaryCodec.PING));
+    }
+
+    // format: __PONG__
+    public static EncodedMessage pong() {
+        return new EncodedMessage(() -> Frames.encodeLine("__PONG__"), () -> BinaryCodec.empty(BinaryCodec.PONG));
+    }
+
+    // format: __HISTORY_END__:<last seq>
+    public static EncodedMessage historyEnd(long lastSeq) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine("__HISTORY_END__:" + lastSeq),
+                () -> BinaryCodec.sequence(BinaryCodec.HISTORY_END, lastSeq));
+    }
+
+    // format: __USER_JOIN__:<version>:<username> or __USER_LEAVE__:<version>:<username>
+    public static EncodedMessage presence(boolean joined, long version, Session subject) {
+        return new EncodedMessage(
+                () -> Frames.encodeLine((joined ? "__USER_JOIN__:" : "__USER_LEAVE__:") + version + ":" + subject.getUsername()),
+                () -> BinaryCodec.presence(joined ? BinaryCodec.USER_JOIN : BinaryCodec.USER_LEAVE,
+                        version, subject.getId(), subject.getUsername()));
+    }
+
+    // format: __USER_SNAPSHOT__:<version>:<user1>,<user2>,...
+    public static EncodedMessage userSnapshot(long version, Session[] sessions) {
+        return new EncodedMessage(() -> {
+            StringBuilder sb = new StringBuilder("__USER_SNAPSHOT__:").append(version).append(':');
+            for (int i = 0; i < sessions.length; i++) {
+                sb.append(sessions[i].getUsername());
+                if (i < sessions.length - 1) sb.append(",");
+            }
+            return Frames.encodeLine(sb.toString());
+        }, () -> BinaryCodec.userSnapshot(version, sessions));
+    }
+}
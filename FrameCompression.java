@@ -0,0 +1,139 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// DEFLATE for binary frames, used with clients that offered it in their hello. Every frame is compressed on
+// its own against a preset dictionary of common chat text, rather than through a stream context per
+// connection: a context would compress a little better, but a broadcast would then have to be compressed once
+// per recipient instead of once. Only bodies of at least minBytes are compressed, and a frame is sent as it
+// was whenever compressing did not make it smaller.
+public final class FrameCompression {
+
+    // both ends must use exactly these bytes; changing them needs a new WireProtocol.DEFLATE token. Deflate
+    // reaches the end of the dictionary most cheaply, so the most common strings come last
+    static final byte[] DICTIONARY = (
+            "https://www. .com .org .html .png .jpg "
+            + "thanks thank you please sorry sure okay good morning good night see you later "
+            + "what when where why how who which would could should there their they them then than "
+            + "about after again also because been before being but can did does doing don't "
+            + "from for get got have has had here just know like make more now not one only "
+            + "some that the this time to was we well what will with yes you your "
+            + "has left the chat! has entered the chat ! You joined room You left room "
+            + "You are not in room is offline; the message will be delivered when they are back. "
+            + "is not known to the server. lobby general random dev ").getBytes(StandardCharsets.UTF_8);
+
+    // a compressed frame may claim at most this much once inflated, so a small frame cannot make the client
+    // allocate without bound
+    public static final int MAX_INFLATED_LENGTH = 16 * BinaryCodec.MAX_BODY_LENGTH;
+
+    private final int minBytes;
+    private final int level;
+    // Deflaters hold native memory and are slow to create, so they are pooled rather than made per thread:
+    // with virtual threads, every reader thread would otherwise end up with its own
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder framesCompressed = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+
+    private FrameCompression(int minBytes, int level) {
+        this.minBytes = minBytes;
+        this.level = level;
+    }
+
+    // returns null when compression is turned off
+    public static FrameCompression create(ServerConfig config) {
+        if (config.getCompressionMinBytes() <= 0) return null;
+        return new FrameCompression(config.getCompressionMinBytes(), config.getCompressionLevel());
+    }
+
+    // frame is a complete binary frame as built by BinaryCodec; returns it unchanged or a COMPRESSED frame
+    public ByteBuffer compress(ByteBuffer frame) {
+        int type = frame.get(frame.position()) & 0xFF;
+        int bodyStart = frame.position() + 1;
+        while ((frame.get(bodyStart++) & 0x80) != 0) {
+            // skip the length varint
+        }
+        int bodyLength = frame.limit() - bodyStart;
+        if (bodyLength < minBytes) return frame;
+        long start = System.nanoTime();
+        byte[] body = new byte[bodyLength];
+        frame.get(bodyStart, body);
+        byte[] deflated = new byte[bodyLength];
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(level, true);
+        int deflatedLength;
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(body);
+            deflater.finish();
+            deflatedLength = deflater.deflate(deflated);
+            if (!deflater.finished()) deflatedLength = -1;
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+        ByteBuffer result = frame;
+        if (deflatedLength > 0) {
+            int compressedLength = BinaryCodec.varIntSize(type) + BinaryCodec.varIntSize(bodyLength) + deflatedLength;
+            if (compressedLength < bodyLength && compressedLength <= BinaryCodec.MAX_BODY_LENGTH) {
+                ByteBuffer compressed = BinaryCodec.start(BinaryCodec.COMPRESSED, compressedLength);
+                BinaryCodec.putVarInt(compressed, type);
+                BinaryCodec.putVarInt(compressed, bodyLength);
+                compressed.put(deflated, 0, deflatedLength);
+                result = BinaryCodec.finish(compressed);
+            }
+        }
+        framesCompressed.increment();
+        bytesIn.add(frame.remaining());
+        bytesOut.add(result.remaining());
+        compressNanos.add(System.nanoTime() - start);
+        return result;
+    }
+
+    // client side: the body of a COMPRESSED frame, after its inner type, inflated with a reader-owned Inflater
+    // made with nowrap
+    public static byte[] inflate(Inflater inflater, BinaryCodec.Cursor body) throws ProtocolException {
+        int length = body.readVarInt();
+        if (length > MAX_INFLATED_LENGTH) throw new ProtocolException("compressed frame too large: " + length);
+        byte[] inflated = new byte[length];
+        try {
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(body.readRemainingBytes());
+            int n = 0;
+            while (n < length) {
+                int chunk = inflater.inflate(inflated, n, length - n);
+                if (chunk == 0 && (inflater.finished() || inflater.needsInput())) break;
+                n += chunk;
+            }
+            if (n != length) throw new ProtocolException("compressed frame is truncated");
+        } catch (DataFormatException e) {
+            throw new ProtocolException("corrupt compressed frame: " + e.getMessage());
+        }
+        return inflated;
+    }
+
+    // frames that went through compress(), whether or not they came out smaller
+    public long getFramesCompressed() {
+        return framesCompressed.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+}
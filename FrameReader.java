@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+// Blocking reader for both wire protocols over one stream, so a connection can switch from text to binary
+// right after the handshake line without losing bytes that were already buffered. Not thread-safe.
+public class FrameReader {
+
+    private final InputStream in;
+    private final int maxBodyLength;
+    private final byte[] readBuffer = new byte[8 * 1024];
+    private int readPosition;
+    private int readLimit;
+
+    // holds the last line or frame body
+    private byte[] message = new byte[256];
+    private int messageLength;
+    // what the last line took on the wire, its newline included
+    private int lineBytes;
+    private final BinaryCodec.Cursor cursor = new BinaryCodec.Cursor();
+
+    // for what clients send
+    public FrameReader(InputStream in) {
+        this(in, BinaryCodec.MAX_BODY_LENGTH);
+    }
+
+    // lines and frame bodies longer than maxBodyLength are a protocol error
+    public FrameReader(InputStream in, int maxBodyLength) {
+        this.in = in;
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    // returns null at end of stream
+    public String readLine() throws IOException {
+        messageLength = 0;
+        int b;
+        while ((b = read()) != -1 && b != '\n') {
+            if (messageLength == maxBodyLength) throw new ProtocolException("line too long");
+            append((byte) b);
+        }
+        if (b == -1 && messageLength == 0) return null;
+        lineBytes = b == '\n' ? messageLength + 1 : messageLength;
+        int length = messageLength;
+        if (length > 0 && message[length - 1] == '\r') length--;
+        return new String(message, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // returns the frame type, or -1 at end of stream; the body is then available through body()
+    public int readFrame() throws IOException {
+        int type = read();
+        if (type == -1) return -1;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = read();
+            if (b == -1) throw new ProtocolException("truncated frame header");
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            if (shift >= 21) throw new ProtocolException("frame length too long");
+        }
+        if (length > maxBodyLength) throw new ProtocolException("frame too large: " + length);
+        if (message.length < length) message = new byte[Math.max(length, message.length * 2)];
+        int copied = 0;
+        while (copied < length) {
+            if (readPosition == readLimit && !fill()) throw new ProtocolException("truncated frame body");
+            int chunk = Math.min(length - copied, readLimit - readPosition);
+            System.arraycopy(readBuffer, readPosition, message, copied, chunk);
+            readPosition += chunk;
+            copied += chunk;
+        }
+        messageLength = length;
+        return type;
+    }
+
+    // the UTF-8 bytes of the last line readLine() returned, counted as the NIO path counts them
+    public int lastLineBytes() {
+        return lineBytes;
+    }
+
+    public BinaryCodec.Cursor body() {
+        return cursor.reset(message, 0, messageLength);
+    }
+
+    private void append(byte b) {
+        if (messageLength == message.length) {
+            byte[] larger = new byte[message.length * 2];
+            System.arraycopy(message, 0, larger, 0, messageLength);
+            message = larger;
+        }
+        message[messageLength++] = b;
+    }
+
+    private int read() throws IOException {
+        if (readPosition == readLimit && !fill()) return -1;
+        return readBuffer[readPosition++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(readBuffer, 0, readBuffer.length);
+        if (n <= 0) return false;
+        readPosition = 0;
+        readLimit = n;
+        return true;
+    }
+}
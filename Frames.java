@@ -0,0 +1,17 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class Frames {
+
+    private Frames() {
+    }
+
+    // UTF-8 bytes plus the newline terminator, read-only so one buffer can be shared by every recipient
+    public static ByteBuffer encodeLine(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        byte[] framed = new byte[text.length + 1];
+        System.arraycopy(text, 0, framed, 0, text.length);
+        framed[text.length] = '\n';
+        return ByteBuffer.wrap(framed).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// One thread and one ring of buckets for any number of timeouts. A timeout goes into the bucket its deadline
+// falls in, with the number of whole turns of the ring still to wait, so scheduling and cancelling are O(1) and
+// each tick only walks the bucket under the hand. Deadlines are rounded up to the next tick. Tasks run on the
+// timer thread and must be quick; anything slow should be handed on.
+public final class HashedWheelTimer {
+
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    // scheduled by any thread, moved into the wheel by the timer thread at the next tick
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startNanos;
+    // timer thread only
+    private long tick;
+    private volatile boolean stopped;
+
+    // wheelSize is rounded up to a power of two
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Timeout[Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1];
+        this.mask = wheel.length - 1;
+        this.startNanos = System.nanoTime();
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (!stopped) {
+            // tick n runs once startNanos + (n + 1) ticks have passed
+            long wait;
+            while ((wait = startNanos + (tick + 1) * tickNanos - System.nanoTime()) > 0 && !stopped) {
+                LockSupport.parkNanos(this, wait);
+            }
+            if (stopped) break;
+            transferPending();
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) continue;
+            // the first tick that runs at or after the deadline; one already past goes into this tick
+            long due = Math.max(tick, ceilDiv(timeout.deadline - startNanos, tickNanos) - 1);
+            timeout.rounds = (due - tick) / wheel.length;
+            int bucket = (int) (due & mask);
+            timeout.next = wheel[bucket];
+            wheel[bucket] = timeout;
+        }
+    }
+
+    private void expire(int bucket) {
+        Timeout previous = null;
+        Timeout timeout = wheel[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean remove = timeout.cancelled || timeout.rounds == 0;
+            if (remove) {
+                if (previous == null) wheel[bucket] = next;
+                else previous.next = next;
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    private static long ceilDiv(long x, long y) {
+        return -Math.floorDiv(-x, y);
+    }
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        // timer thread only
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // the task will not run, unless it already has or is running now
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
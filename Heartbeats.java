@@ -0,0 +1,85 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Finds connections whose client is gone without the socket noticing, such as a phone that dropped off Wi-Fi.
+// Anything a client sends counts as a sign of life, so busy clients are never pinged. A session that has been
+// quiet for the ping interval gets a PING, which clients answer with a PONG; one still quiet at the idle timeout
+// is closed. Every session is watched by one check on the server's HashedWheelTimer that re-arms itself for
+// when the session could next need attention, so there is no thread or timer per connection and a check costs
+// one clock read while the client is active. Text clients that have never sent a __PING__ or __PONG__ are
+// not pinged or closed, since legacy ones cannot answer; their check only looks again each ping interval in
+// case they start.
+public class Heartbeats {
+
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 1024;
+
+    private final ChatHub hub;
+    private final HashedWheelTimer timer;
+    private final long pingNanos;
+    private final long idleNanos;
+    private final EncodedMessage ping = EncodedMessage.ping();
+    // found dead since the last reap; timer thread only
+    private final List<Session> dead = new ArrayList<>();
+
+    private Heartbeats(ChatHub hub, long pingNanos, long idleNanos) {
+        this.hub = hub;
+        this.pingNanos = pingNanos;
+        this.idleNanos = idleNanos;
+        this.timer = new HashedWheelTimer("heartbeats", TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    }
+
+    // returns null when the idle timeout is turned off
+    public static Heartbeats create(ChatHub hub, ServerConfig config) {
+        if (config.getIdleTimeoutMillis() <= 0) {
+            return null;
+        }
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+        long pingNanos = config.getHeartbeatIntervalMillis() > 0
+                ? Math.min(TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatIntervalMillis()), idleNanos)
+                : idleNanos;
+        return new Heartbeats(hub, pingNanos, idleNanos);
+    }
+
+    // from the session's join until it leaves
+    public void watch(Session session) {
+        timer.schedule(() -> check(session), pingNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    // timer thread
+    private void check(Session session) {
+        if (hub.getRegistry().get(session.getUsername()) != session) return;
+        if (!session.answersPings()) {
+            timer.schedule(() -> check(session), pingNanos, TimeUnit.NANOSECONDS);
+            return;
+        }
+        long quiet = System.nanoTime() - session.getLastReadNanos();
+        long next;
+        if (quiet >= idleNanos) {
+            // reaped together at the next tick, so a network blip that takes many clients with it ends in one
+            // presence update rather than one per client
+            dead.add(session);
+            if (dead.size() == 1) timer.schedule(this::reap, 0, TimeUnit.NANOSECONDS);
+            return;
+        } else if (quiet >= pingNanos) {
+            session.deliver(ping);
+            hub.getMetrics().pingSent();
+            next = Math.min(pingNanos, idleNanos - quiet);
+        } else {
+            next = pingNanos - quiet;
+        }
+        timer.schedule(() -> check(session), next, TimeUnit.NANOSECONDS);
+    }
+
+    private void reap() {
+        List<Session> batch = new ArrayList<>(dead);
+        dead.clear();
+        System.out.println("Closing " + batch.size() + " idle connection(s).");
+        hub.evict(batch, ServerMetrics.DisconnectCause.IDLE_TIMEOUT);
+    }
+}
@@ -0,0 +1,92 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Several nodes in one JVM, for tests and benchmarks. Frames are copied and handed to the receiving node on
+// its own thread, one at a time, so the nodes behave as they would over the TCP mesh minus the sockets.
+public class InProcessBus implements ClusterBus {
+
+    // the nodes that can see each other
+    public static final class Network {
+        private final ConcurrentHashMap<String, InProcessBus> nodes = new ConcurrentHashMap<>();
+
+        public InProcessBus join(String nodeId) {
+            return new InProcessBus(this, nodeId);
+        }
+    }
+
+    private final Network network;
+    private final String nodeId;
+    private final ExecutorService inbox;
+    private volatile Listener listener;
+
+    private InProcessBus(Network network, String nodeId) {
+        this.network = network;
+        this.nodeId = nodeId;
+        this.inbox = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "cluster-inbox-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        if (network.nodes.putIfAbsent(nodeId, this) != null) {
+            throw new IllegalStateException("node " + nodeId + " is already on this network");
+        }
+        for (InProcessBus other : network.nodes.values()) {
+            if (other == this) continue;
+            other.inbox.execute(() -> other.listener.onPeerUp(nodeId));
+            inbox.execute(() -> listener.onPeerUp(other.nodeId));
+        }
+    }
+
+    @Override
+    public void publish(ByteBuffer frame) {
+        for (InProcessBus other : network.nodes.values()) {
+            if (other != this) other.receive(nodeId, frame);
+        }
+    }
+
+    @Override
+    public boolean send(String node, ByteBuffer frame) {
+        InProcessBus other = network.nodes.get(node);
+        if (other == null) return false;
+        other.receive(nodeId, frame);
+        return true;
+    }
+
+    private void receive(String from, ByteBuffer frame) {
+        ByteBuffer copy = frame.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        inbox.execute(() -> {
+            BinaryCodec.Cursor header = new BinaryCodec.Cursor().reset(bytes, 1, bytes.length - 1);
+            try {
+                int length = header.readVarInt();
+                int bodyOffset = bytes.length - length;
+                listener.onFrame(from, bytes[0] & 0xFF, new BinaryCodec.Cursor().reset(bytes, bodyOffset, length));
+            } catch (ProtocolException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if (!network.nodes.remove(nodeId, this)) return;
+        for (InProcessBus other : network.nodes.values()) {
+            other.inbox.execute(() -> other.listener.onPeerDown(nodeId));
+        }
+        inbox.shutdown();
+    }
+}
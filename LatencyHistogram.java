@@ -0,0 +1,112 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram of non-negative values (nanoseconds by convention): every power of two is split into
+// SUB_BUCKETS linear buckets, so a percentile is accurate to within 1/SUB_BUCKETS of its value. record() is a
+// couple of atomic increments and never allocates, so it is cheap enough for the send path. The bucket counts
+// are striped by thread, so threads recording at once mostly increment different cache lines; reads add the
+// stripes up.
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    // the smallest power of two at least the core count
+    private static final int STRIPES =
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private volatile long max;
+
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            counts[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[stripe()].incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        long currentMax;
+        while (value > (currentMax = max)) {
+            // lost races only ever lower the reported max by a concurrent sample
+            max = Math.max(value, currentMax);
+        }
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        // thread ids are handed out in sequence; spread them before taking the low bits
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> (exponent - 1)) & (SUB_BUCKETS - 1);
+        return exponent * SUB_BUCKETS + subBucket;
+    }
+
+    // the largest value that falls into bucket `index`
+    private static long upperBoundOf(int index) {
+        int exponent = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+        if (exponent == 0) return subBucket;
+        return (((long) (SUB_BUCKETS | subBucket) + 1) << (exponent - 1)) - 1;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // percentile in (0, 100]; the answer is the upper bound of the bucket holding that rank, capped at max()
+    public long percentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (AtomicLongArray stripe : counts) {
+                seen += stripe.get(i);
+            }
+            if (seen >= rank) return Math.min(upperBoundOf(i), max);
+        }
+        return max;
+    }
+
+    public void reset() {
+        for (AtomicLongArray stripe : counts) {
+            for (int i = 0; i < BUCKETS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+        total.reset();
+        sum.reset();
+        max = 0;
+    }
+
+    // count, mean and tail percentiles in microseconds
+    public String summary() {
+        return String.format(Locale.ROOT, "n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                count(), mean() / 1000.0, percentile(50) / 1000.0, percentile(90) / 1000.0,
+                percentile(99) / 1000.0, percentile(99.9) / 1000.0, max() / 1000.0);
+    }
+}
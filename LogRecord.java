@@ -0,0 +1,98 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// One persisted chat message. Payload layout inside a log entry:
+// [seq:8][kind:1][timestamp:8] then room, sender, recipient and text as varint length + UTF-8.
+public final class LogRecord {
+
+    public static final byte ROOM = 1;
+    public static final byte DIRECT = 2;
+
+    private final long seq;
+    private final byte kind;
+    private final long timestamp;
+    // empty for direct messages
+    private final String room;
+    private final String sender;
+    // empty for room messages
+    private final String recipient;
+    private final String text;
+
+    public LogRecord(long seq, byte kind, long timestamp, String room, String sender, String recipient, String text) {
+        this.seq = seq;
+        this.kind = kind;
+        this.timestamp = timestamp;
+        this.room = room;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.text = text;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public byte getKind() {
+        return kind;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public boolean involves(String username) {
+        return kind == DIRECT && (sender.equals(username) || recipient.equals(username));
+    }
+
+    byte[] encode() {
+        byte[] roomUtf8 = room.getBytes(StandardCharsets.UTF_8);
+        byte[] senderUtf8 = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] recipientUtf8 = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] textUtf8 = text.getBytes(StandardCharsets.UTF_8);
+        int size = 8 + 1 + 8
+                + BinaryCodec.varIntSize(roomUtf8.length) + roomUtf8.length
+                + BinaryCodec.varIntSize(senderUtf8.length) + senderUtf8.length
+                + BinaryCodec.varIntSize(recipientUtf8.length) + recipientUtf8.length
+                + BinaryCodec.varIntSize(textUtf8.length) + textUtf8.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putLong(seq).put(kind).putLong(timestamp);
+        putString(buffer, roomUtf8);
+        putString(buffer, senderUtf8);
+        putString(buffer, recipientUtf8);
+        putString(buffer, textUtf8);
+        return buffer.array();
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] utf8) {
+        BinaryCodec.putVarInt(buffer, utf8.length);
+        buffer.put(utf8);
+    }
+
+    static LogRecord decode(byte[] payload, int length) throws ProtocolException {
+        if (length < 17) throw new ProtocolException("log record too short");
+        ByteBuffer header = ByteBuffer.wrap(payload, 0, 17);
+        long seq = header.getLong();
+        byte kind = header.get();
+        long timestamp = header.getLong();
+        BinaryCodec.Cursor cursor = new BinaryCodec.Cursor().reset(payload, 17, length - 17);
+        return new LogRecord(seq, kind, timestamp,
+                cursor.readString(), cursor.readString(), cursor.readString(), cursor.readString());
+    }
+}
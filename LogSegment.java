@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// One memory-mapped log file named after the sequence number of its first record.
+// Entry layout: [payload length:4][crc32 of payload:4][payload]; a zero length marks the end.
+// The position of every INDEX_INTERVAL-th record is kept in memory, so finding a record by seq reads at most
+// that many entry headers.
+final class LogSegment {
+
+    private static final int ENTRY_HEADER = 8;
+    private static final int INDEX_INTERVAL = 16;
+
+    private final long baseSeq;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    // writer thread only
+    private int writePosition;
+    private long lastSeq;
+    // everything before it has been forced to disk and may be read by other threads
+    private volatile int committedPosition;
+    // written before committedPosition, so a reader that sees a position sees at least its records' seqs
+    private volatile long committedSeq;
+    // position of record baseSeq + i * INDEX_INTERVAL at i; filled by whoever scans or appends
+    private volatile int[] index = new int[64];
+    // sealed segments that were not recovered at startup are scanned on first read
+    private volatile boolean scanned;
+    private final ReentrantLock scanLock = new ReentrantLock();
+
+    private LogSegment(long baseSeq, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.baseSeq = baseSeq;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.lastSeq = baseSeq - 1;
+        this.committedSeq = baseSeq - 1;
+    }
+
+    static LogSegment open(Path directory, long baseSeq, int size) throws IOException {
+        Path path = directory.resolve(String.format("%020d.log", baseSeq));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // an existing segment keeps its own size even if the configured size changed
+        long mapSize = Math.max(channel.size(), size);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+        return new LogSegment(baseSeq, path, channel, buffer);
+    }
+
+    // a new segment for the writer to roll to; nothing in it to scan
+    static LogSegment create(Path directory, long baseSeq, int size) throws IOException {
+        LogSegment segment = open(directory, baseSeq, size);
+        segment.scanned = true;
+        return segment;
+    }
+
+    long getBaseSeq() {
+        return baseSeq;
+    }
+
+    long getLastSeq() {
+        return lastSeq;
+    }
+
+    boolean isEmpty() {
+        return writePosition == 0;
+    }
+
+    // scans from the start and stops at the first entry that is missing, torn, corrupt or out of sequence;
+    // appends then continue from there, overwriting whatever half-written data a crash left behind
+    void recover(Consumer<LogRecord> visitor) {
+        scanLock.lock();
+        try {
+            int position = scan(visitor);
+            writePosition = position;
+            lastSeq = committedSeq;
+            if (position + 4 <= buffer.capacity()) {
+                buffer.putInt(position, 0);
+            }
+            committedPosition = position;
+            scanned = true;
+        } finally {
+            scanLock.unlock();
+        }
+    }
+
+    private void ensureScanned() {
+        if (scanned) return;
+        scanLock.lock();
+        try {
+            if (!scanned) {
+                committedPosition = scan(null);
+                scanned = true;
+            }
+        } finally {
+            scanLock.unlock();
+        }
+    }
+
+    // returns the end of the valid entries, after indexing them and setting committedSeq to the last one
+    private int scan(Consumer<LogRecord> visitor) {
+        CRC32 crc = new CRC32();
+        int position = 0;
+        long expectedSeq = baseSeq;
+        byte[] payload = new byte[256];
+        while (true) {
+            if (position + ENTRY_HEADER > buffer.capacity()) break;
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + ENTRY_HEADER + length > buffer.capacity()) break;
+            if (payload.length < length) payload = new byte[length];
+            buffer.get(position + ENTRY_HEADER, payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) break;
+            LogRecord record;
+            try {
+                record = LogRecord.decode(payload, length);
+            } catch (IOException e) {
+                break;
+            }
+            if (record.getSeq() != expectedSeq) break;
+            indexPosition(expectedSeq, position);
+            if (visitor != null) visitor.accept(record);
+            expectedSeq++;
+            position += ENTRY_HEADER + length;
+        }
+        committedSeq = expectedSeq - 1;
+        return position;
+    }
+
+    private void indexPosition(long seq, int position) {
+        long offset = seq - baseSeq;
+        if (offset % INDEX_INTERVAL != 0) return;
+        int slot = (int) (offset / INDEX_INTERVAL);
+        int[] current = index;
+        if (slot >= current.length) {
+            current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+            index = current;
+        }
+        current[slot] = position;
+    }
+
+    // returns false when the entry does not fit; the caller then rolls to a new segment
+    boolean append(LogRecord record, byte[] payload, CRC32 crc) {
+        int entryLength = ENTRY_HEADER + payload.length;
+        if (writePosition + entryLength + 4 > buffer.capacity()) {
+            return false;
+        }
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        // terminator first, so a reader that races past committedPosition never runs into stale data
+        buffer.putInt(writePosition + entryLength, 0);
+        buffer.put(writePosition + ENTRY_HEADER, payload);
+        buffer.putInt(writePosition + 4, (int) crc.getValue());
+        buffer.putInt(writePosition, payload.length);
+        indexPosition(record.getSeq(), writePosition);
+        writePosition += entryLength;
+        lastSeq = record.getSeq();
+        return true;
+    }
+
+    void flush() {
+        buffer.force();
+        committedSeq = lastSeq;
+        committedPosition = writePosition;
+    }
+
+    // committed records with seq > afterSeq, in order, until the visitor returns false
+    void read(long afterSeq, Predicate<LogRecord> visitor) throws IOException {
+        ensureScanned();
+        int limit = committedPosition;
+        int position = seek(Math.max(afterSeq + 1, baseSeq), limit);
+        byte[] payload = new byte[256];
+        while (position + ENTRY_HEADER <= limit) {
+            int length = buffer.getInt(position);
+            if (length <= 0) break;
+            // the payload starts with the seq, so skipped entries are never copied or decoded
+            if (buffer.getLong(position + ENTRY_HEADER) > afterSeq) {
+                if (payload.length < length) payload = new byte[length];
+                buffer.get(position + ENTRY_HEADER, payload, 0, length);
+                if (!visitor.test(LogRecord.decode(payload, length))) return;
+            }
+            position += ENTRY_HEADER + length;
+        }
+    }
+
+    // the committed record with that seq, or null if it is not in this segment
+    LogRecord get(long seq) throws IOException {
+        ensureScanned();
+        int limit = committedPosition;
+        int position = seek(seq, limit);
+        while (position + ENTRY_HEADER <= limit) {
+            int length = buffer.getInt(position);
+            if (length <= 0) break;
+            long entrySeq = buffer.getLong(position + ENTRY_HEADER);
+            if (entrySeq == seq) {
+                byte[] payload = new byte[length];
+                buffer.get(position + ENTRY_HEADER, payload, 0, length);
+                return LogRecord.decode(payload, length);
+            }
+            if (entrySeq > seq) break;
+            position += ENTRY_HEADER + length;
+        }
+        return null;
+    }
+
+    // a position at or before the entry for seq; limit when seq is not committed as of that position
+    private int seek(long seq, int limit) {
+        if (seq < baseSeq) return 0;
+        if (seq > committedSeq) return limit;
+        int slot = (int) ((seq - baseSeq) / INDEX_INTERVAL);
+        int[] current = index;
+        return slot < current.length ? Math.min(current[slot], limit) : 0;
+    }
+
+    void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// Append-only, segmented message log. append() only assigns a sequence number and queues the record, so the
+// broadcast path never waits for disk; a single writer thread copies queued records into the mapped segment
+// and forces it once per batch (group commit). Recent records are also kept in memory for replay on join.
+public class MessageLog {
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int syncIntervalMillis;
+
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private LogSegment active;
+
+    // guards nextSeq and recent so sequence order, ring order and queue order always agree
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private long nextSeq;
+    private final ArrayDeque<LogRecord> recent = new ArrayDeque<>();
+    private final int recentCapacity;
+
+    private final LinkedBlockingQueue<LogRecord> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    // every record up to it is on disk and readable with get()
+    private volatile long committedSeq;
+    // the last record the writer is done with, written or not; notified each time it moves
+    private volatile long handledSeq;
+    private final Object commitSignal = new Object();
+    // told about each batch once it is on disk, on the writer thread; null when nobody asked
+    private volatile Consumer<List<LogRecord>> commitListener;
+
+    private MessageLog(Path directory, int segmentBytes, int syncIntervalMillis, int recentCapacity) {
+        this.directory = directory;
+        // a segment must always have room for the largest possible record
+        this.segmentBytes = Math.max(segmentBytes, 1024 * 1024);
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.recentCapacity = recentCapacity;
+        this.writer = new Thread(this::writeLoop, "message-log-writer");
+        this.writer.setDaemon(true);
+    }
+
+    // returns null when the log is turned off
+    public static MessageLog open(ServerConfig config) throws IOException {
+        if (config.getLogDirectory().isEmpty()) {
+            return null;
+        }
+        MessageLog log = new MessageLog(Paths.get(config.getLogDirectory()),
+                config.getLogSegmentBytes(), config.getLogSyncIntervalMillis(), config.getHistoryMaxReplay());
+        log.recover();
+        log.writer.start();
+        return log;
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Long> baseSeqs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseSeqs.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+            }
+        }
+        baseSeqs.sort(null);
+        for (Long baseSeq : baseSeqs) {
+            segments.put(baseSeq, LogSegment.open(directory, baseSeq, segmentBytes));
+        }
+        if (segments.isEmpty()) {
+            segments.put(1L, LogSegment.open(directory, 1, segmentBytes));
+        }
+        // earlier segments were sealed by rolling; only the newest can have a torn tail, but the one before it
+        // is scanned too so the in-memory ring is warm right after a roll
+        Map.Entry<Long, LogSegment> previous = segments.lowerEntry(segments.lastKey());
+        if (previous != null) {
+            previous.getValue().recover(this::remember);
+        }
+        active = segments.lastEntry().getValue();
+        active.recover(this::remember);
+        nextSeq = active.getLastSeq() + 1;
+        committedSeq = nextSeq - 1;
+        handledSeq = committedSeq;
+        System.out.println("Message log recovered up to #" + (nextSeq - 1) + " from " + active);
+    }
+
+    public long append(byte kind, String room, String sender, String recipient, String text) {
+        return append(kind, System.currentTimeMillis(), room, sender, recipient, text);
+    }
+
+    // for messages sent earlier than they are logged, such as DMs that waited in an offline user's inbox
+    public long append(byte kind, long timestamp, String room, String sender, String recipient, String text) {
+        appendLock.lock();
+        try {
+            LogRecord record = new LogRecord(nextSeq++, kind, timestamp, room, sender, recipient, text);
+            remember(record);
+            pending.add(record);
+            return record.getSeq();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void remember(LogRecord record) {
+        if (recent.size() == recentCapacity) {
+            recent.removeFirst();
+        }
+        recent.addLast(record);
+    }
+
+    public long lastSequence() {
+        appendLock.lock();
+        try {
+            return nextSeq - 1;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public long committedSequence() {
+        return committedSeq;
+    }
+
+    // the listener gets a copy of each committed batch, in seq order, on the writer thread, so it should only
+    // hand the batch on
+    public void onCommit(Consumer<List<LogRecord>> listener) {
+        this.commitListener = listener;
+    }
+
+    // a committed record by seq, or null if there is none; reads the segment it is in
+    public LogRecord get(long seq) throws IOException {
+        if (seq > committedSeq) return null;
+        Map.Entry<Long, LogSegment> segment = segments.floorEntry(seq);
+        return segment != null ? segment.getValue().get(seq) : null;
+    }
+
+    // committed records after afterSeq up to and including upToSeq, oldest first, until the visitor returns
+    // false; read from the segments, not the ring
+    public void scan(long afterSeq, long upToSeq, Predicate<LogRecord> visitor) throws IOException {
+        boolean[] more = {true};
+        Long first = segments.floorKey(afterSeq + 1);
+        for (LogSegment segment : segments.tailMap(first != null ? first : segments.firstKey()).values()) {
+            if (segment.getBaseSeq() > upToSeq) break;
+            segment.read(afterSeq, record -> {
+                more[0] = record.getSeq() <= upToSeq && visitor.test(record);
+                return more[0];
+            });
+            if (!more[0]) break;
+        }
+    }
+
+    // the newest `max` records matching the filter, oldest first; served from memory
+    public List<LogRecord> recent(Predicate<LogRecord> filter, int max) {
+        ArrayDeque<LogRecord> matches = new ArrayDeque<>(max);
+        appendLock.lock();
+        try {
+            Iterator<LogRecord> newestFirst = recent.descendingIterator();
+            while (newestFirst.hasNext() && matches.size() < max) {
+                LogRecord record = newestFirst.next();
+                if (filter.test(record)) matches.addFirst(record);
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        return new ArrayList<>(matches);
+    }
+
+    // up to `max` records after afterSeq matching the filter, oldest first; reads segments only for the part
+    // that has already left the in-memory ring, waiting for the writer if that part is not on disk yet
+    public List<LogRecord> since(long afterSeq, Predicate<LogRecord> filter, int max) throws IOException {
+        List<LogRecord> matches = new ArrayList<>();
+        long ringStart;
+        appendLock.lock();
+        try {
+            ringStart = recent.isEmpty() ? nextSeq : recent.peekFirst().getSeq();
+        } finally {
+            appendLock.unlock();
+        }
+        long[] last = {afterSeq};
+        if (afterSeq + 1 < ringStart) {
+            // what left the ring before the writer got to it is in neither place yet
+            awaitCommitted(ringStart - 1);
+            Long first = segments.floorKey(afterSeq + 1);
+            for (LogSegment segment : segments.tailMap(first != null ? first : segments.firstKey()).values()) {
+                segment.read(afterSeq, record -> {
+                    if (record.getSeq() >= ringStart) return false;
+                    if (filter.test(record)) matches.add(record);
+                    last[0] = record.getSeq();
+                    return matches.size() < max;
+                });
+                if (matches.size() >= max || last[0] >= ringStart - 1) break;
+            }
+        }
+        if (matches.size() < max) {
+            appendLock.lock();
+            try {
+                for (LogRecord record : recent) {
+                    if (record.getSeq() <= last[0]) continue;
+                    if (filter.test(record)) matches.add(record);
+                    if (matches.size() >= max) break;
+                }
+            } finally {
+                appendLock.unlock();
+            }
+        }
+        return matches;
+    }
+
+    private void awaitCommitted(long seq) throws IOException {
+        synchronized (commitSignal) {
+            while (handledSeq < seq && writer.isAlive()) {
+                try {
+                    commitSignal.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("waiting for message #" + seq + " to be written");
+                }
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<LogRecord> batch = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        while (running || !pending.isEmpty()) {
+            try {
+                LogRecord first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                // group commit: give concurrent appends a moment to join this batch
+                if (syncIntervalMillis > 0) Thread.sleep(syncIntervalMillis);
+                batch.add(first);
+                pending.drainTo(batch);
+                for (LogRecord record : batch) {
+                    write(record, crc);
+                }
+                active.flush();
+                committedSeq = batch.get(batch.size() - 1).getSeq();
+                handled(batch);
+                Consumer<List<LogRecord>> listener = commitListener;
+                if (listener != null) listener.accept(new ArrayList<>(batch));
+                batch.clear();
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                e.printStackTrace();
+                handled(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void handled(List<LogRecord> batch) {
+        if (batch.isEmpty()) return;
+        handledSeq = batch.get(batch.size() - 1).getSeq();
+        synchronized (commitSignal) {
+            commitSignal.notifyAll();
+        }
+    }
+
+    private void write(LogRecord record, CRC32 crc) throws IOException {
+        byte[] payload = record.encode();
+        if (active.append(record, payload, crc)) {
+            return;
+        }
+        if (!active.isEmpty()) {
+            active.flush();
+            LogSegment next = LogSegment.create(directory, record.getSeq(), segmentBytes);
+            segments.put(record.getSeq(), next);
+            active = next;
+            if (active.append(record, payload, crc)) {
+                return;
+            }
+        }
+        // only possible with a segment size below the frame limit; the record stays in memory only
+        System.out.println("Message #" + record.getSeq() + " does not fit in a log segment of " + segmentBytes + " bytes");
+    }
+
+    public void close() throws IOException {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (LogSegment segment : segments.values()) {
+            segment.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// GET /metrics on the loopback interface, in the Prometheus text format (readable as plain text too).
+public class MetricsEndpoint {
+
+    private final HttpServer httpServer;
+
+    private MetricsEndpoint(HttpServer httpServer) {
+        this.httpServer = httpServer;
+    }
+
+    public static MetricsEndpoint start(ServerMetrics metrics, int port) throws IOException {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> respond(exchange, metrics));
+        // the default executor is the single dispatcher thread, which is plenty for a scraper
+        httpServer.start();
+        System.out.println("Metrics on http://" + httpServer.getAddress().getHostString() + ":" + port + "/metrics");
+        return new MetricsEndpoint(httpServer);
+    }
+
+    private static void respond(HttpExchange exchange, ServerMetrics metrics) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+    }
+}
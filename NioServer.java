@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class NioServer {
+
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+    private int nextReactor;
+
+    private final ChatHub hub;
+
+    public NioServer(ServerSocketChannel serverChannel, int reactorCount, ChatHub hub) throws IOException {
+        this.serverChannel = serverChannel;
+        this.hub = hub;
+        this.reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor(this, "reactor-" + i);
+        }
+    }
+
+    public void startServer() {
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+        try {
+            // accept stays blocking; each accepted channel is handed to a reactor round-robin
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("A new client has connected !");
+                Reactor reactor = reactors[nextReactor];
+                nextReactor = (nextReactor + 1) % reactors.length;
+                reactor.register(channel);
+            }
+        } catch (IOException e) {
+            // a listener closed by stopAccepting() leaves the reactors running for the shutdown drain
+            if (serverChannel.isOpen()) closeServerSocket();
+        }
+    }
+
+    public void closeServerSocket() {
+        stopAccepting();
+        stopReactors();
+    }
+
+    public void stopAccepting() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void stopReactors() {
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+    }
+
+    void onLine(NioSession session, String line) {
+        if (session.clientUsername == null) {
+            session.protocol = WireProtocol.fromFirstLine(line);
+            session.clientUsername = WireProtocol.usernameFromFirstLine(line);
+            if (session.protocol == WireProtocol.BINARY) {
+                session.compression = hub.negotiateCompression(line);
+                // queued ahead of anything join() sends; the client switches to binary after it
+                session.sendLine(WireProtocol.helloAck(session.compression != null));
+            }
+            if (!hub.join(session)) {
+                session.closeAfterFlush();
+            }
+        } else {
+            hub.onMessage(session, line);
+        }
+    }
+
+    void onFrame(NioSession session, int type, BinaryCodec.Cursor body) throws ProtocolException {
+        hub.onFrame(session, type, body);
+    }
+
+    void onClosed(NioSession session) {
+        hub.leave(session);
+    }
+
+    ChatHub getHub() {
+        return hub;
+    }
+
+    public static NioServer open(InetSocketAddress address, int reactorCount, ChatHub hub) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        return new NioServer(serverChannel, reactorCount, hub);
+    }
+}
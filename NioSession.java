@@ -0,0 +1,361 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NioSession implements Session {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_GATHER = 64;
+    private static final int MAX_MESSAGE_LENGTH = BinaryCodec.MAX_BODY_LENGTH + 8;
+
+    private final NioServer server;
+    private final Reactor reactor;
+    private final SocketChannel channel;
+    SelectionKey key;
+
+    // owned by the reactor thread
+    private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final BinaryCodec.Cursor cursor = new BinaryCodec.Cursor();
+    // frames taken off the queue and handed to one gathering write; [gatherHead, gatherCount) is unwritten
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final QueuedFrame[] gatherFrames = new QueuedFrame[MAX_GATHER];
+    private int gatherHead;
+    private int gatherCount;
+    private final Throttle throttle;
+    // while set, OP_READ is off and what is already buffered waits; the reactor resumes the session at resumeReadAt
+    private boolean readPaused;
+    long resumeReadAt;
+
+    private final OutboundQueue<QueuedFrame> outbound;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final SendStats sendStats;
+    private final long coalesceWindowNanos;
+    private final int coalesceMaxBytes;
+    // bytes queued since the last flush, only tracked while coalescing; frames dropped on overflow are still
+    // counted until the queue is next drained, which at worst makes that flush a little early
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private final AtomicBoolean closing = new AtomicBoolean();
+    private volatile boolean closed;
+    private volatile boolean closeAfterFlush;
+
+    private final int id;
+    private final long acceptedNanos;
+    // written by the reactor, read by Heartbeats
+    private volatile long lastReadNanos;
+    // a text client that has sent __PING__ or __PONG__, and so can be pinged
+    private volatile boolean heartbeats;
+    // the reactor closes the connection if no hello has come by then
+    final long handshakeDeadline;
+    volatile WireProtocol protocol = WireProtocol.TEXT;
+    volatile FrameCompression compression;
+    volatile String clientUsername;
+    // created on the first DM handle the client binds; only the reading thread touches it
+    private PeerHandles peerHandles;
+
+    NioSession(NioServer server, Reactor reactor, SocketChannel channel, long acceptedNanos) {
+        this.id = server.getHub().nextSessionId();
+        this.acceptedNanos = acceptedNanos;
+        this.lastReadNanos = acceptedNanos;
+        this.handshakeDeadline = acceptedNanos
+                + TimeUnit.MILLISECONDS.toNanos(server.getHub().getConfig().getHandshakeTimeoutMillis());
+        server.getHub().getMetrics().connectionAccepted();
+        this.server = server;
+        this.reactor = reactor;
+        this.channel = channel;
+        this.outbound = server.getHub().getConfig().newOutboundQueue();
+        this.sendStats = server.getHub().getSendStats();
+        this.throttle = server.getHub().newThrottle();
+        this.coalesceWindowNanos = TimeUnit.MICROSECONDS.toNanos(server.getHub().getConfig().getCoalesceWindowMicros());
+        this.coalesceMaxBytes = server.getHub().getConfig().getCoalesceMaxBytes();
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public WireProtocol getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public String getUsername() {
+        return clientUsername;
+    }
+
+    @Override
+    public OutboundQueue<?> getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public PeerHandles getPeerHandles() {
+        if (peerHandles == null) peerHandles = new PeerHandles();
+        return peerHandles;
+    }
+
+    @Override
+    public FrameCompression getCompression() {
+        return compression;
+    }
+
+    @Override
+    public long getAcceptedNanos() {
+        return acceptedNanos;
+    }
+
+    @Override
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    @Override
+    public boolean answersPings() {
+        return protocol == WireProtocol.BINARY || heartbeats;
+    }
+
+    @Override
+    public void heartbeatSeen() {
+        heartbeats = true;
+    }
+
+    @Override
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    @Override
+    public void send(ByteBuffer frame) {
+        if (closed) return;
+        int size = frame.remaining();
+        if (!outbound.offer(new QueuedFrame(frame.duplicate(), System.nanoTime()))) {
+            // overflow policy is DISCONNECT: this client cannot keep up
+            close(ServerMetrics.DisconnectCause.SLOW_CONSUMER);
+            return;
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            reactor.requestWrite(this);
+        } else if (coalesceWindowNanos > 0) {
+            int queued = queuedBytes.addAndGet(size);
+            if (queued >= coalesceMaxBytes && queued - size < coalesceMaxBytes) {
+                // crossed the byte threshold while the reactor holds the write back: flush without waiting
+                reactor.requestWrite(this);
+            }
+        }
+    }
+
+    @Override
+    public boolean isFlushed() {
+        // cleared only once the gathered frames are written and the queue is empty
+        return closed || (!writeScheduled.get() && outbound.isEmpty());
+    }
+
+    // reactor thread: when a scheduled write should go out; a deadline at or before now means immediately
+    long flushDeadline() {
+        QueuedFrame oldest = outbound.peek();
+        if (oldest == null || queuedBytes.get() >= coalesceMaxBytes) return 0;
+        return oldest.enqueuedNanos + coalesceWindowNanos;
+    }
+
+    void onReadable() {
+        try {
+            if (closeAfterFlush || readPaused) return;
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close(ServerMetrics.DisconnectCause.CLIENT_CLOSED);
+                return;
+            }
+            if (read > 0) lastReadNanos = System.nanoTime();
+            dispatchBuffered();
+        } catch (ProtocolException e) {
+            close(ServerMetrics.DisconnectCause.PROTOCOL_ERROR);
+        } catch (IOException e) {
+            close(ServerMetrics.DisconnectCause.IO_ERROR);
+        }
+    }
+
+    // reactor thread, once resumeReadAt has passed: handles what was buffered when the session went over its
+    // limit and reads again unless that puts it over once more
+    void resumeReading() {
+        if (closed) return;
+        long pause = throttle.pauseNanos(System.nanoTime());
+        if (pause > 0) {
+            pauseReading(pause);
+            return;
+        }
+        readPaused = false;
+        try {
+            dispatchBuffered();
+        } catch (ProtocolException e) {
+            close(ServerMetrics.DisconnectCause.PROTOCOL_ERROR);
+            return;
+        }
+        if (!readPaused && !closed && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    // readBuffer is in write mode on entry and exit
+    private void dispatchBuffered() throws ProtocolException {
+        readBuffer.flip();
+        while (!closed && !closeAfterFlush && (protocol == WireProtocol.BINARY ? nextFrame() : nextLine())) {
+            // the handshake line can switch the protocol, so it is checked again for every message
+            long pause = throttle.pauseNanos(System.nanoTime());
+            if (pause > 0 && !closed) {
+                pauseReading(pause);
+                break;
+            }
+        }
+        if (closed) return;
+        readBuffer.compact();
+        if (!readPaused && !readBuffer.hasRemaining()) {
+            // no complete line or frame in a full buffer: grow up to the message limit, then give up on the client
+            if (readBuffer.capacity() >= MAX_MESSAGE_LENGTH) {
+                close(ServerMetrics.DisconnectCause.PROTOCOL_ERROR);
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_MESSAGE_LENGTH));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    // leaves the rest in the buffer and the socket, so a flooding client backs up instead of us
+    private void pauseReading(long pauseNanos) {
+        if (!key.isValid()) return;
+        readPaused = true;
+        resumeReadAt = System.nanoTime() + pauseNanos;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        reactor.pauseReading(this);
+    }
+
+    private boolean nextLine() {
+        byte[] bytes = readBuffer.array();
+        int start = readBuffer.position();
+        int limit = readBuffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (bytes[i] == '\n') {
+                int end = i;
+                if (end > start && bytes[end - 1] == '\r') end--;
+                readBuffer.position(i + 1);
+                throttle.onMessage(i + 1 - start);
+                server.onLine(this, new String(bytes, start, end - start, StandardCharsets.UTF_8));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // decodes the frame body in place in readBuffer; see BinaryCodec for the layout
+    private boolean nextFrame() throws ProtocolException {
+        byte[] bytes = readBuffer.array();
+        int start = readBuffer.position();
+        int limit = readBuffer.limit();
+        if (limit - start < 2) return false;
+        int type = bytes[start] & 0xFF;
+        int length = 0;
+        int i = start + 1;
+        for (int shift = 0; ; shift += 7) {
+            if (i == limit) return false;
+            byte b = bytes[i++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            if (shift >= 21) throw new ProtocolException("frame length too long");
+        }
+        if (length > BinaryCodec.MAX_BODY_LENGTH) throw new ProtocolException("frame too large: " + length);
+        if (limit - i < length) return false;
+        readBuffer.position(i + length);
+        throttle.onMessage(length);
+        server.onFrame(this, type, cursor.reset(bytes, i, length));
+        return true;
+    }
+
+    void onWritable() {
+        if (closed || !key.isValid()) return;
+        try {
+            while (true) {
+                if (gatherHead == gatherCount) {
+                    refillGather();
+                    if (gatherCount == 0) break;
+                }
+                sendStats.recordWrite(channel.write(gather, gatherHead, gatherCount - gatherHead));
+                long now = System.nanoTime();
+                while (gatherHead < gatherCount && !gather[gatherHead].hasRemaining()) {
+                    sendStats.recordDelivered(gatherFrames[gatherHead], now);
+                    gatherFrames[gatherHead] = null;
+                    gather[gatherHead++] = null;
+                }
+                if (gatherHead < gatherCount) {
+                    // socket buffer is full, let the selector tell us when to continue
+                    key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (closeAfterFlush) {
+                close(ServerMetrics.DisconnectCause.REJECTED);
+                return;
+            }
+            key.interestOps(readInterest());
+            writeScheduled.set(false);
+            if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+                reactor.requestWrite(this);
+            }
+        } catch (IOException e) {
+            close(ServerMetrics.DisconnectCause.IO_ERROR);
+        }
+    }
+
+    private int readInterest() {
+        return readPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    private void refillGather() {
+        gatherHead = 0;
+        gatherCount = 0;
+        QueuedFrame frame;
+        while (gatherCount < MAX_GATHER && (frame = outbound.poll()) != null) {
+            gatherFrames[gatherCount] = frame;
+            gather[gatherCount++] = frame.buffer;
+        }
+        if (gatherCount == 0) {
+            queuedBytes.set(0);
+        }
+    }
+
+    // used on the reactor thread when the handshake is rejected, so the reason still reaches the client
+    void closeAfterFlush() {
+        closeAfterFlush = true;
+        if (writeScheduled.compareAndSet(false, true)) {
+            reactor.requestWrite(this);
+        }
+    }
+
+    @Override
+    public void close() {
+        close(ServerMetrics.DisconnectCause.SERVER);
+    }
+
+    @Override
+    public void close(ServerMetrics.DisconnectCause cause) {
+        // send() can close from a broadcasting thread while the reactor closes on EOF; count the connection once
+        if (!closing.compareAndSet(false, true)) return;
+        closed = true;
+        server.getHub().getMetrics().connectionClosed(cause);
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        outbound.clear();
+        server.onClosed(this);
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// DMs waiting for users who are offline, one file per user. The file's path is computed from the username, so a
+// lookup is one file open and nothing is indexed or loaded at startup. Entries use the message log layout,
+// [payload length:4][crc32 of payload:4][LogRecord payload]; reading stops at the first torn or corrupt entry, so
+// a crash mid-write costs at most what was appended behind it before the inbox is next emptied.
+// Every disk access runs on one thread in the order it was asked for, so neither the sender's read loop nor
+// the handshake of the user coming back waits for the disk, and a store is never overtaken by a delivery.
+// Only users who have connected to this server before have an inbox; that is what tells an offline user from
+// a name nobody has used.
+public class OfflineInbox {
+
+    private static final int ENTRY_HEADER = 8;
+    // base64url of the name, or its SHA-256 when that would make too long a file name
+    private static final int MAX_PLAIN_NAME = 128;
+
+    private final Path directory;
+    private final int maxBytes;
+    private final ExecutorService io;
+
+    private OfflineInbox(Path directory, int maxBytes) {
+        this.directory = directory;
+        // an inbox must always have room for the largest possible DM
+        this.maxBytes = Math.max(maxBytes, 4 * BinaryCodec.MAX_BODY_LENGTH);
+        this.io = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "offline-inbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // returns null when inboxes are turned off
+    public static OfflineInbox open(ServerConfig config) throws IOException {
+        if (config.getInboxDirectory().isEmpty()) {
+            return null;
+        }
+        Path directory = Paths.get(config.getInboxDirectory());
+        Files.createDirectories(directory);
+        return new OfflineInbox(directory, config.getInboxMaxBytes());
+    }
+
+    // appends the DM to its recipient's inbox; done gets false if the recipient has never connected here or
+    // the write failed
+    public void store(LogRecord record, Consumer<Boolean> done) {
+        io.execute(() -> {
+            boolean stored;
+            try {
+                stored = append(record);
+            } catch (IOException e) {
+                e.printStackTrace();
+                stored = false;
+            }
+            done.accept(stored);
+        });
+    }
+
+    // hands everything waiting for the user to deliver, oldest first, and empties the inbox once deliver
+    // accepts it; nothing is called when the inbox is empty. Also creates the inbox on the user's first visit
+    public void drain(String username, Predicate<List<LogRecord>> deliver) {
+        io.execute(() -> {
+            try {
+                Path file = fileOf(username);
+                if (!Files.exists(file)) {
+                    Files.createDirectories(file.getParent());
+                    Files.createFile(file);
+                    return;
+                }
+                if (Files.size(file) == 0) return;
+                List<LogRecord> records = read(file);
+                if (records.isEmpty() || deliver.test(records)) {
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        channel.truncate(0);
+                        channel.force(false);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    public void close() {
+        io.shutdown();
+        try {
+            io.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean append(LogRecord record) throws IOException {
+        Path file = fileOf(record.getRecipient());
+        if (!Files.exists(file)) return false;
+        ByteBuffer entry = entry(record.encode());
+        if (Files.size(file) + entry.remaining() > maxBytes) {
+            compact(file, record.getRecipient(), maxBytes * 3 / 4 - entry.remaining());
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (entry.hasRemaining()) channel.write(entry);
+            channel.force(false);
+        }
+        return true;
+    }
+
+    // keeps the newest entries that fit in budget bytes; rewritten beside the inbox and moved over it, so a
+    // crash leaves either the old file or the new one
+    private void compact(Path file, String username, int budget) throws IOException {
+        List<LogRecord> records = read(file);
+        List<ByteBuffer> kept = new ArrayList<>();
+        int size = 0;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            ByteBuffer entry = entry(records.get(i).encode());
+            if (size + entry.remaining() > budget) break;
+            kept.add(0, entry);
+            size += entry.remaining();
+        }
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (ByteBuffer entry : kept) {
+                while (entry.hasRemaining()) channel.write(entry);
+            }
+            channel.force(false);
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Inbox of " + username + " is full; dropped the " + (records.size() - kept.size())
+                + " oldest messages.");
+    }
+
+    private static List<LogRecord> read(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<LogRecord> records = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= ENTRY_HEADER) {
+            int length = buffer.getInt(buffer.position());
+            if (length <= 0 || length > buffer.remaining() - ENTRY_HEADER) break;
+            byte[] payload = new byte[length];
+            buffer.get(buffer.position() + ENTRY_HEADER, payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(buffer.position() + 4)) break;
+            records.add(LogRecord.decode(payload, length));
+            buffer.position(buffer.position() + ENTRY_HEADER + length);
+        }
+        return records;
+    }
+
+    private static ByteBuffer entry(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER + payload.length);
+        entry.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        return entry.flip();
+    }
+
+    // <2 hex digits of the name's hash>/<name>.inbox, so no directory grows past a fraction of the users
+    private Path fileOf(String username) {
+        byte[] utf8 = username.getBytes(StandardCharsets.UTF_8);
+        String name = Base64.getUrlEncoder().withoutPadding().encodeToString(utf8);
+        if (name.length() > MAX_PLAIN_NAME) {
+            try {
+                name = toHex(MessageDigest.getInstance("SHA-256").digest(utf8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return directory.resolve(String.format("%02x", username.hashCode() & 0xFF)).resolve(name + ".inbox");
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
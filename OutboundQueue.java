@@ -0,0 +1,99 @@
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OutboundQueue<T> {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DISCONNECT;
+
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final ArrayBlockingQueue<T> queue;
+    private final OverflowPolicy policy;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int maxDepth;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+    }
+
+    // never blocks the caller; returns false when the policy says the consumer should be disconnected
+    public boolean offer(T item) {
+        while (!queue.offer(item)) {
+            if (policy == OverflowPolicy.DISCONNECT) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (queue.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+        enqueued.incrementAndGet();
+        int depth = queue.size();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        return true;
+    }
+
+    public T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    public T poll() {
+        return queue.poll();
+    }
+
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    public T peek() {
+        return queue.peek();
+    }
+
+    public int drainTo(Collection<? super T> target, int maxItems) {
+        return queue.drainTo(target, maxItems);
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public void clear() {
+        queue.clear();
+    }
+
+    public int depth() {
+        return queue.size();
+    }
+
+    public int capacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public long enqueued() {
+        return enqueued.get();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public OverflowPolicy policy() {
+        return policy;
+    }
+}
@@ -0,0 +1,35 @@
+import java.net.ProtocolException;
+
+// The DM targets one session has bound with DM_OPEN, indexed by the handle number its client chose. A DM_SEND
+// then costs an array read and a volatile check instead of a map lookup. Only touched by the thread that reads
+// the session's frames.
+public final class PeerHandles {
+
+    public static final int MAX_HANDLES = 256;
+
+    private final SessionRegistry.Handle[] handles = new SessionRegistry.Handle[MAX_HANDLES];
+
+    // target null binds the handle to nobody: DMs sent on it are answered as to an unknown user
+    void bind(int handle, SessionRegistry.Handle target) throws ProtocolException {
+        check(handle);
+        handles[handle] = target;
+    }
+
+    // null when the handle is unbound or its session has left
+    Session resolve(int handle) throws ProtocolException {
+        check(handle);
+        SessionRegistry.Handle target = handles[handle];
+        return target != null ? target.session() : null;
+    }
+
+    // the user the handle was bound to, online or not; null when unbound
+    String username(int handle) throws ProtocolException {
+        check(handle);
+        SessionRegistry.Handle target = handles[handle];
+        return target != null ? target.username() : null;
+    }
+
+    private static void check(int handle) throws ProtocolException {
+        if (handle < 0 || handle >= MAX_HANDLES) throw new ProtocolException("DM handle out of range " + handle);
+    }
+}
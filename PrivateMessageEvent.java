@@ -0,0 +1,23 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// JFR event around routing one private message in ChatHub, from target lookup to the echo being queued.
+@Name("talkhub.PrivateMessage")
+@Label("Private Message")
+@Category("TalkHub")
+@Description("One private message routed to its target")
+public class PrivateMessageEvent extends Event {
+
+    @Label("Sender")
+    String sender;
+
+    @Label("Target")
+    String target;
+
+    @Label("Delivered")
+    @Description("False when the target was not online")
+    boolean delivered;
+}
@@ -0,0 +1,14 @@
+import java.nio.ByteBuffer;
+
+// An entry in a session's outbound queue: this session's view of a (possibly shared) frame, and when it was
+// queued so the writer can measure delivery latency and decide when a coalescing window has run out.
+public final class QueuedFrame {
+
+    final ByteBuffer buffer;
+    final long enqueuedNanos;
+
+    QueuedFrame(ByteBuffer buffer, long enqueuedNanos) {
+        this.buffer = buffer;
+        this.enqueuedNanos = enqueuedNanos;
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+public class Reactor implements Runnable {
+
+    private final NioServer server;
+    private final Selector selector;
+    private final Thread thread;
+
+    // hand-offs from other threads; only the reactor thread touches keys and buffers
+    private final Queue<Registration> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioSession> pendingWrites = new ConcurrentLinkedQueue<>();
+    // sessions whose write is held back for the coalescing window; reactor thread only
+    private final ArrayList<NioSession> delayedWrites = new ArrayList<>();
+    private final boolean coalescing;
+    private long nextFlushNanos;
+    // sessions over a rate limit, not read until their resumeReadAt; reactor thread only
+    private final ArrayList<NioSession> pausedReads = new ArrayList<>();
+    private long nextResumeNanos;
+    // sessions that have not sent their hello yet, in accept order and so in deadline order; reactor thread only
+    private final ArrayDeque<NioSession> handshaking = new ArrayDeque<>();
+    private final boolean handshakeTimeout;
+
+    private volatile boolean running = true;
+
+    public Reactor(NioServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.coalescing = server.getHub().getConfig().getCoalesceWindowMicros() > 0;
+        this.handshakeTimeout = server.getHub().getConfig().getHandshakeTimeoutMillis() > 0;
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+        pendingRegistrations.add(new Registration(channel, System.nanoTime()));
+        selector.wakeup();
+    }
+
+    void requestWrite(NioSession session) {
+        pendingWrites.add(session);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (delayedWrites.isEmpty() && pausedReads.isEmpty() && handshaking.isEmpty()) {
+                    selector.select();
+                } else {
+                    long now = System.nanoTime();
+                    long waitNanos = Long.MAX_VALUE;
+                    if (!delayedWrites.isEmpty()) waitNanos = nextFlushNanos - now;
+                    if (!pausedReads.isEmpty()) waitNanos = Math.min(waitNanos, nextResumeNanos - now);
+                    if (!handshaking.isEmpty()) waitNanos = Math.min(waitNanos, handshaking.peek().handshakeDeadline - now);
+                    // select() only has millisecond resolution, so short windows round up to 1ms here
+                    if (waitNanos > 0) selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                    else selector.selectNow();
+                }
+                processRegistrations();
+                processWrites();
+                if (!pausedReads.isEmpty() && nextResumeNanos - System.nanoTime() <= 0) {
+                    resumeDueReads();
+                }
+                if (!handshaking.isEmpty()) {
+                    expireHandshakes();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    NioSession session = (NioSession) key.attachment();
+                    if (!key.isValid()) continue;
+                    if (key.isReadable()) {
+                        session.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.onWritable();
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((NioSession) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void processRegistrations() {
+        Registration registration;
+        while ((registration = pendingRegistrations.poll()) != null) {
+            SocketChannel channel = registration.channel;
+            try {
+                channel.configureBlocking(false);
+                // see ClientHandler.handshake: keepalive covers the text clients heartbeats leave alone
+                channel.socket().setKeepAlive(true);
+                NioSession session = new NioSession(server, this, channel, registration.acceptedNanos);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                if (handshakeTimeout) handshaking.add(session);
+            } catch (ClosedChannelException e) {
+                // client went away before we got to it
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void processWrites() {
+        NioSession session;
+        while ((session = pendingWrites.poll()) != null) {
+            if (coalescing) {
+                delayedWrites.add(session);
+            } else {
+                session.onWritable();
+            }
+        }
+        if (!delayedWrites.isEmpty()) {
+            flushDueWrites();
+        }
+    }
+
+    // reactor thread: the session stopped reading until its resumeReadAt
+    void pauseReading(NioSession session) {
+        pausedReads.add(session);
+        if (pausedReads.size() == 1 || session.resumeReadAt - nextResumeNanos < 0) {
+            nextResumeNanos = session.resumeReadAt;
+        }
+    }
+
+    // closes sessions still without a hello at their deadline; the rest are dropped from the queue as they reach
+    // its head
+    private void expireHandshakes() {
+        long now = System.nanoTime();
+        NioSession session;
+        while ((session = handshaking.peek()) != null) {
+            if (session.clientUsername == null) {
+                if (session.handshakeDeadline - now > 0) return;
+                session.close(ServerMetrics.DisconnectCause.HANDSHAKE_TIMEOUT);
+            }
+            handshaking.poll();
+        }
+    }
+
+    private void resumeDueReads() {
+        long now = System.nanoTime();
+        for (int i = pausedReads.size() - 1; i >= 0; i--) {
+            NioSession session = pausedReads.get(i);
+            if (session.resumeReadAt - now <= 0) {
+                // swap-remove; resuming can pause the session again, which appends it behind the walk
+                pausedReads.set(i, pausedReads.get(pausedReads.size() - 1));
+                pausedReads.remove(pausedReads.size() - 1);
+                session.resumeReading();
+            }
+        }
+        if (pausedReads.isEmpty()) return;
+        long next = pausedReads.get(0).resumeReadAt;
+        for (NioSession session : pausedReads) {
+            if (session.resumeReadAt - next < 0) next = session.resumeReadAt;
+        }
+        nextResumeNanos = next;
+    }
+
+    private void flushDueWrites() {
+        long now = System.nanoTime();
+        // the furthest point that still compares as after now, so any pending deadline replaces it
+        long next = now + Long.MAX_VALUE;
+        for (int i = delayedWrites.size() - 1; i >= 0; i--) {
+            NioSession session = delayedWrites.get(i);
+            long deadline = session.flushDeadline();
+            if (deadline - now <= 0) {
+                // order does not matter here, so swap-remove
+                delayedWrites.set(i, delayedWrites.get(delayedWrites.size() - 1));
+                delayedWrites.remove(delayedWrites.size() - 1);
+                session.onWritable();
+            } else if (deadline - next < 0) {
+                next = deadline;
+            }
+        }
+        nextFlushNanos = next;
+    }
+
+    private static final class Registration {
+        final SocketChannel channel;
+        final long acceptedNanos;
+
+        Registration(SocketChannel channel, long acceptedNanos) {
+            this.channel = channel;
+            this.acceptedNanos = acceptedNanos;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.nio.ByteBuffer;
+
+// A user connected to another node of the cluster. It sits in the local registry so names and ids resolve and
+// presence lists are cluster-wide, but it has no connection here: fan-out skips it and messages addressed to it
+// are routed to its node by ClusterNode.
+public final class RemoteSession implements Session {
+
+    // never filled; lets queue statistics treat every registered session alike
+    private static final OutboundQueue<Object> NO_QUEUE = new OutboundQueue<>(1, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+    private final int id;
+    private final String username;
+    private final String node;
+
+    RemoteSession(int id, String username, String node) {
+        this.id = id;
+        this.username = username;
+        this.node = node;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    @Override
+    public WireProtocol getProtocol() {
+        return WireProtocol.BINARY;
+    }
+
+    @Override
+    public void send(ByteBuffer frame) {
+    }
+
+    @Override
+    public OutboundQueue<?> getOutboundQueue() {
+        return NO_QUEUE;
+    }
+
+    @Override
+    public void close() {
+    }
+}
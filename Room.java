@@ -0,0 +1,95 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Room {
+
+    private static final Session[] EMPTY = new Session[0];
+
+    private final String name;
+    private final ConcurrentHashMap<Session, Boolean> members = new ConcurrentHashMap<>();
+    // same scheme as SessionRegistry: fan-out iterates a cached array that membership changes invalidate
+    private final AtomicLong modCount = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    private final LongAdder messages = new LongAdder();
+    private long rateSampleCount;
+    private long rateSampleNanos = System.nanoTime();
+    private double messageRate;
+
+    public Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean add(Session session) {
+        if (members.putIfAbsent(session, Boolean.TRUE) != null) return false;
+        modCount.incrementAndGet();
+        return true;
+    }
+
+    public boolean remove(Session session) {
+        if (members.remove(session) == null) return false;
+        modCount.incrementAndGet();
+        return true;
+    }
+
+    public boolean contains(Session session) {
+        return members.containsKey(session);
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    public int memberCount() {
+        return members.size();
+    }
+
+    public Session[] snapshot() {
+        long version = modCount.get();
+        Snapshot current = snapshot;
+        if (current.version == version) {
+            return current.sessions;
+        }
+        Session[] sessionsNow = members.keySet().toArray(EMPTY);
+        if (modCount.get() == version) {
+            snapshot = new Snapshot(version, sessionsNow);
+        }
+        return sessionsNow;
+    }
+
+    public void recordMessage() {
+        messages.increment();
+    }
+
+    public long messageCount() {
+        return messages.sum();
+    }
+
+    // messages per second since the previous sample; samples less than a second apart return the last rate
+    public synchronized double messageRate() {
+        long now = System.nanoTime();
+        long elapsed = now - rateSampleNanos;
+        if (elapsed >= 1_000_000_000L) {
+            long count = messages.sum();
+            messageRate = (count - rateSampleCount) * 1e9 / elapsed;
+            rateSampleCount = count;
+            rateSampleNanos = now;
+        }
+        return messageRate;
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final Session[] sessions;
+
+        Snapshot(long version, Session[] sessions) {
+            this.version = version;
+            this.sessions = sessions;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+// Word search over the message log: an inverted index from each word to the seqs of the messages containing it.
+// The log writer hands over each batch once it is on disk and one indexer thread adds it, so the broadcast path
+// never waits for the index. The index lives in memory; at startup it is rebuilt from the segments in the
+// background while newly committed messages queue up behind the rebuild. The queue is bounded: past it, batches
+// are dropped and the indexer reads them back from the log once it gets there. A posting list is delta-encoded
+// varints in blocks of BLOCK_SIZE seqs, with each block's first seq kept aside, so a lookup binary-searches the
+// blocks and decodes only the one it lands in. Lists are appended by the indexer alone and read without locks.
+public class SearchIndex {
+
+    private static final int BLOCK_SIZE = 128;
+    // longer words are indexed and looked up by their first MAX_TERM_LENGTH characters
+    private static final int MAX_TERM_LENGTH = 32;
+    // candidates looked at for one page before it is cut short; the client goes on from the returned cursor
+    private static final int MAX_CANDIDATES = 20_000;
+    // committed records waiting for the indexer; past this, batches are dropped and read back from the log
+    // instead, so an indexer that falls behind neither holds up the log writer nor fills the heap
+    private static final int MAX_QUEUED_RECORDS = 100_000;
+
+    private final MessageLog log;
+    private final int maxPageSize;
+    private final ConcurrentHashMap<String, Postings> postings = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<List<LogRecord>> committed = new LinkedBlockingQueue<>();
+    private final AtomicInteger queuedRecords = new AtomicInteger();
+    // set by the log writer when it dropped a batch; the indexer then catches up from the log
+    private volatile boolean dropped;
+    private final Thread indexer;
+    // every message up to it is searchable
+    private volatile long indexedSeq;
+
+    private SearchIndex(MessageLog log, int maxPageSize) {
+        this.log = log;
+        this.maxPageSize = maxPageSize;
+        // before the rebuild reads where the log is, so no batch falls between the two
+        log.onCommit(this::committed);
+        this.indexer = new Thread(this::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    // returns null when the log or search is turned off
+    public static SearchIndex create(MessageLog log, ServerConfig config) {
+        if (log == null || config.getSearchPageSize() <= 0) {
+            return null;
+        }
+        return new SearchIndex(log, config.getSearchPageSize());
+    }
+
+    public int getMaxPageSize() {
+        return maxPageSize;
+    }
+
+    public long getIndexedSeq() {
+        return indexedSeq;
+    }
+
+    // log writer thread
+    private void committed(List<LogRecord> batch) {
+        if (queuedRecords.get() + batch.size() > MAX_QUEUED_RECORDS) {
+            if (!dropped) {
+                dropped = true;
+                // wakes the indexer even if this batch alone was too large for an empty queue
+                committed.add(List.of());
+            }
+            return;
+        }
+        queuedRecords.addAndGet(batch.size());
+        committed.add(batch);
+    }
+
+    private void indexLoop() {
+        long start = System.nanoTime();
+        long indexedTo = catchUp(0);
+        System.out.println("Search index rebuilt up to #" + indexedTo + " (" + postings.size() + " words) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        while (true) {
+            List<LogRecord> batch;
+            try {
+                batch = committed.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            queuedRecords.addAndGet(-batch.size());
+            if (dropped) {
+                // cleared first, so a batch dropped during the scan is caught up on next time round
+                dropped = false;
+                indexedTo = catchUp(indexedTo);
+            }
+            for (LogRecord record : batch) {
+                // committed while the log was being read, so already in
+                if (record.getSeq() > indexedTo) add(record);
+            }
+            if (!batch.isEmpty()) indexedTo = Math.max(indexedTo, batch.get(batch.size() - 1).getSeq());
+            indexedSeq = indexedTo;
+        }
+    }
+
+    // indexes what the log has committed after afterSeq, from its segments; returns the seq it got up to
+    private long catchUp(long afterSeq) {
+        long upTo = log.committedSequence();
+        try {
+            log.scan(afterSeq, upTo, record -> {
+                add(record);
+                return true;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        indexedSeq = upTo;
+        return upTo;
+    }
+
+    // indexer thread; records arrive in seq order
+    private void add(LogRecord record) {
+        for (String term : terms(record.getText())) {
+            postings.computeIfAbsent(term, key -> new Postings()).add(record.getSeq());
+        }
+    }
+
+    // Messages containing every word of the query that `visible` accepts, newest first, with seq below
+    // beforeSeq (0 for the newest). At most `limit` of them, capped at the page size; the page's cursor is
+    // the beforeSeq for the next one, or NO_SEQ when there is nothing further back.
+    public Page search(String query, long beforeSeq, int limit, Predicate<LogRecord> visible) throws IOException {
+        int pageSize = limit > 0 ? Math.min(limit, maxPageSize) : maxPageSize;
+        Set<String> terms = terms(query);
+        List<LogRecord> hits = new ArrayList<>();
+        if (terms.isEmpty()) return new Page(hits, BinaryCodec.NO_SEQ);
+        Reader[] readers = new Reader[terms.size()];
+        int i = 0;
+        for (String term : terms) {
+            Postings list = postings.get(term);
+            if (list == null) return new Page(hits, BinaryCodec.NO_SEQ);
+            readers[i++] = new Reader(list);
+        }
+        // the rarest word drives, the others are only probed
+        Arrays.sort(readers, Comparator.comparingInt(reader -> reader.count));
+        long before = beforeSeq > 0 ? beforeSeq : Long.MAX_VALUE;
+        int examined = 0;
+        long seq;
+        while ((seq = readers[0].previous(before)) != BinaryCodec.NO_SEQ) {
+            before = seq;
+            if (containedInAll(readers, seq)) {
+                LogRecord record = log.get(seq);
+                if (record != null && visible.test(record)) {
+                    hits.add(record);
+                    if (hits.size() == pageSize) return new Page(hits, seq);
+                }
+            }
+            if (++examined == MAX_CANDIDATES) return new Page(hits, seq);
+        }
+        return new Page(hits, BinaryCodec.NO_SEQ);
+    }
+
+    private static boolean containedInAll(Reader[] readers, long seq) {
+        for (int i = 1; i < readers.length; i++) {
+            if (!readers[i].contains(seq)) return false;
+        }
+        return true;
+    }
+
+    // lower-cased runs of letters and digits, each once, in order of first appearance
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) i++;
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) i++;
+            if (i > start) {
+                String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT);
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    public static final class Page {
+        private final List<LogRecord> hits;
+        private final long next;
+
+        Page(List<LogRecord> hits, long next) {
+            this.hits = hits;
+            this.next = next;
+        }
+
+        public List<LogRecord> getHits() {
+            return hits;
+        }
+
+        public long getNext() {
+            return next;
+        }
+    }
+
+    // One word's seqs in ascending order. Block b holds seqs b * BLOCK_SIZE onwards: the first in firsts[b],
+    // the rest as varint gaps from offsets[b] in data. count is written last, so a reader that reads it first
+    // sees every seq below it; arrays that grow are replaced, never changed in place below count.
+    private static final class Postings {
+        private volatile Blocks blocks = new Blocks(new byte[8], new long[1], new int[1]);
+        private volatile int count;
+        // indexer thread only
+        private int length;
+        private long last;
+
+        void add(long seq) {
+            if (seq == last) return;
+            int n = count;
+            Blocks current = blocks;
+            if (n % BLOCK_SIZE == 0) {
+                int block = n / BLOCK_SIZE;
+                if (block == current.firsts.length) {
+                    int grown = block * 2;
+                    current = new Blocks(current.data, Arrays.copyOf(current.firsts, grown),
+                            Arrays.copyOf(current.offsets, grown));
+                    blocks = current;
+                }
+                current.firsts[block] = seq;
+                current.offsets[block] = length;
+            } else {
+                if (length + 10 > current.data.length) {
+                    current = new Blocks(Arrays.copyOf(current.data, current.data.length * 2),
+                            current.firsts, current.offsets);
+                    blocks = current;
+                }
+                long gap = seq - last;
+                byte[] data = current.data;
+                while ((gap & ~0x7FL) != 0) {
+                    data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                    gap >>>= 7;
+                }
+                data[length++] = (byte) gap;
+            }
+            last = seq;
+            count = n + 1;
+        }
+    }
+
+    private static final class Blocks {
+        final byte[] data;
+        final long[] firsts;
+        final int[] offsets;
+
+        Blocks(byte[] data, long[] firsts, int[] offsets) {
+            this.data = data;
+            this.firsts = firsts;
+            this.offsets = offsets;
+        }
+    }
+
+    // one query's view of a posting list, as of when the query started, with the last block it decoded
+    private static final class Reader {
+        final int count;
+        final Blocks blocks;
+        final int blockCount;
+        final long[] decoded = new long[BLOCK_SIZE];
+        int decodedBlock = -1;
+        int decodedCount;
+
+        Reader(Postings postings) {
+            this.count = postings.count;
+            this.blocks = postings.blocks;
+            this.blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+
+        // the largest seq below `before`, or NO_SEQ
+        long previous(long before) {
+            int block = lastBlockStartingBelow(before);
+            if (block < 0) return BinaryCodec.NO_SEQ;
+            decode(block);
+            int index = Arrays.binarySearch(decoded, 0, decodedCount, before);
+            if (index < 0) index = -index - 1;
+            // the block's first seq is below `before`, so there is at least one
+            return decoded[index - 1];
+        }
+
+        boolean contains(long seq) {
+            int block = lastBlockStartingBelow(seq + 1);
+            if (block < 0) return false;
+            decode(block);
+            return Arrays.binarySearch(decoded, 0, decodedCount, seq) >= 0;
+        }
+
+        private int lastBlockStartingBelow(long bound) {
+            long[] firsts = blocks.firsts;
+            int low = 0;
+            int high = blockCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (firsts[mid] < bound) low = mid + 1;
+                else high = mid - 1;
+            }
+            return high;
+        }
+
+        private void decode(int block) {
+            if (block == decodedBlock) return;
+            byte[] data = blocks.data;
+            int n = Math.min(BLOCK_SIZE, count - block * BLOCK_SIZE);
+            int position = blocks.offsets[block];
+            long seq = blocks.firsts[block];
+            decoded[0] = seq;
+            for (int i = 1; i < n; i++) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                seq += gap;
+                decoded[i] = seq;
+            }
+            decodedBlock = block;
+            decodedCount = n;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide send path counters, shared by every session's writer: how many write calls it takes to deliver
+// a message, and how long a frame waits between being queued and being handed to the socket.
+public class SendStats {
+
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+    public void recordWrite(long bytesWritten) {
+        writeCalls.increment();
+        bytes.add(bytesWritten);
+    }
+
+    public void recordDelivered(QueuedFrame frame, long nowNanos) {
+        frames.increment();
+        deliveryLatency.record(nowNanos - frame.enqueuedNanos);
+    }
+
+    public long writeCalls() {
+        return writeCalls.sum();
+    }
+
+    public long frames() {
+        return frames.sum();
+    }
+
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    public LatencyHistogram deliveryLatency() {
+        return deliveryLatency;
+    }
+
+    // one line: write calls per delivered frame, average write size and queue-to-socket latency
+    public String report() {
+        long calls = writeCalls.sum();
+        long delivered = frames.sum();
+        return String.format(Locale.ROOT, "send writes=%d frames=%d syscalls/msg=%.3f bytes/write=%.0f delivery %s%n",
+                calls, delivered,
+                delivered == 0 ? 0.0 : (double) calls / delivered,
+                calls == 0 ? 0.0 : (double) bytes.sum() / calls,
+                deliveryLatency.summary());
+    }
+}
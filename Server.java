@@ -1,13 +1,27 @@
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Server {
 
     private ServerSocket serverSocket;
+    private final Executor executor;
+    private final ChatHub hub;
 
-    public Server(ServerSocket serverSocket){
+    public Server(ServerSocket serverSocket, ChatHub hub){
+        this(serverSocket, hub, task -> new Thread(task).start());
+    }
+
+    public Server(ServerSocket serverSocket, ChatHub hub, Executor executor){
         this.serverSocket = serverSocket;
+        this.hub = hub;
+        this.executor = executor;
     }
 
     public void startServer(){
@@ -15,10 +29,10 @@ public class Server {
             while(!serverSocket.isClosed()){
                 Socket socket = serverSocket.accept();
                 System.out.println("A new client has connected !");
-                ClientHandler clientHandler = new ClientHandler(socket);
+                // the handshake runs in the handler's own task, so this thread goes straight back to accepting
+                ClientHandler clientHandler = new ClientHandler(socket, hub, executor);
 
-                Thread thread = new Thread(clientHandler);
-                thread.start();
+                executor.execute(clientHandler);
             }
         }catch (IOException e){
             closeServerSocket();
@@ -35,9 +49,47 @@ public class Server {
         }
     }
 
+    static ExecutorService newVirtualThreadExecutor() {
+        // looked up reflectively so the project still builds and runs on JDK 17
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available on this JVM, using a cached thread pool instead.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     public static void main(String[] args) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(1234);
-        Server server = new Server(serverSocket);
+        String mode = args.length > 0 ? args[0] : "threads";
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        // bound before the log recovers, so early clients wait in the backlog; opened through a channel so
+        // accepted sockets expose a SocketChannel for gathering writes
+        ServerSocketChannel listener = ServerSocketChannel.open()
+                .bind(config.getBindAddress(), config.getAcceptBacklog());
+        MessageLog log = MessageLog.open(config);
+        OfflineInbox inbox = OfflineInbox.open(config);
+        ChatHub hub = new ChatHub(config, log, inbox);
+        ServerLifecycle lifecycle = new ServerLifecycle(hub, log, inbox);
+        if (config.isClustered()) {
+            ClusterNode cluster = new ClusterNode(hub, new TcpMeshBus(config.getClusterNodeId(), config.getClusterPort(),
+                    config.getClusterPeers()), config.getClusterSyncIntervalSeconds());
+            cluster.start();
+            lifecycle.setCluster(cluster);
+            System.out.println("Cluster node " + cluster.getNodeId() + " listening for peers on port " + config.getClusterPort());
+        }
+        InetSocketAddress address = (InetSocketAddress) listener.getLocalAddress();
+        if (mode.equals("nio")) {
+            // one reactor per core instead of one thread per client
+            NioServer nioServer = new NioServer(listener, Runtime.getRuntime().availableProcessors(), hub);
+            lifecycle.accepting(address, nioServer::stopAccepting, nioServer::stopReactors);
+            nioServer.startServer();
+            return;
+        }
+        Server server = mode.equals("virtual")
+                ? new Server(listener.socket(), hub, newVirtualThreadExecutor())
+                : new Server(listener.socket(), hub);
+        lifecycle.accepting(address, server::closeServerSocket, null);
         server.startServer();
     }
 }
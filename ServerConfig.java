@@ -0,0 +1,300 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+// Every setting is a talkhub.* property with a default, so the server runs without any configuration.
+public class ServerConfig {
+
+    private final String bindHost;
+    private final int port;
+    private final int acceptBacklog;
+    private final int startupTargetMillis;
+    private final int handshakeTimeoutMillis;
+    private final int presenceBatchMillis;
+    private final int heartbeatIntervalMillis;
+    private final int idleTimeoutMillis;
+    private final int shutdownDrainMillis;
+    private final int reconnectWindowMillis;
+
+    private final int outboundCapacity;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final int statsIntervalSeconds;
+    private final int metricsPort;
+
+    private final int coalesceWindowMicros;
+    private final int coalesceMaxBytes;
+
+    private final int limitMessagesPerSecond;
+    private final int limitMessageBurst;
+    private final int limitBytesPerSecond;
+    private final int limitByteBurst;
+    private final int limitFanOutPerSecond;
+    private final int limitFanOutBurst;
+
+    private final int compressionMinBytes;
+    private final int compressionLevel;
+
+    private final String logDirectory;
+    private final int logSegmentBytes;
+    private final int logSyncIntervalMillis;
+    private final int historyReplayCount;
+    private final int historyMaxReplay;
+    private final int searchPageSize;
+
+    private final String inboxDirectory;
+    private final int inboxMaxBytes;
+
+    private final int clusterPort;
+    private final String clusterNodeId;
+    private final List<InetSocketAddress> clusterPeers;
+    private final int clusterSyncIntervalSeconds;
+
+    public ServerConfig(Properties properties) {
+        // an empty host listens on every interface
+        this.bindHost = properties.getProperty("talkhub.bind", "").trim();
+        this.port = intProperty(properties, "talkhub.port", 1234);
+        // connections the kernel holds for the accept loop; past it a reconnect storm waits on SYN retries,
+        // which back off to seconds. Capped by net.core.somaxconn
+        this.acceptBacklog = intProperty(properties, "talkhub.acceptBacklog", 4096);
+        this.startupTargetMillis = intProperty(properties, "talkhub.startup.targetMillis", 1000);
+        // a connection that has not sent its hello by then is closed; 0 waits forever
+        this.handshakeTimeoutMillis = intProperty(properties, "talkhub.handshake.timeoutMillis", 10_000);
+        // joins and leaves are announced at most this often, batched; 0 announces each one as it happens
+        this.presenceBatchMillis = intProperty(properties, "talkhub.presence.batchMillis", 50);
+        // a client quiet for the interval is pinged, one quiet for the timeout is disconnected; a timeout of 0
+        // turns both off
+        this.heartbeatIntervalMillis = intProperty(properties, "talkhub.heartbeat.intervalMillis", 30_000);
+        this.idleTimeoutMillis = intProperty(properties, "talkhub.idle.timeoutMillis", 90_000);
+        // on shutdown, clients get this long to receive what is queued for them before they are cut off, and are
+        // told to reconnect after a random delay within the window, so they do not all come back at once
+        this.shutdownDrainMillis = intProperty(properties, "talkhub.shutdown.drainMillis", 5000);
+        this.reconnectWindowMillis = intProperty(properties, "talkhub.shutdown.reconnectWindowMillis", 10_000);
+
+        this.outboundCapacity = intProperty(properties, "talkhub.outbound.capacity", 1024);
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.parse(
+                properties.getProperty("talkhub.outbound.overflow", "drop-oldest"));
+        this.statsIntervalSeconds = intProperty(properties, "talkhub.stats.interval", 0);
+        // 0 leaves the HTTP metrics endpoint off; JMX is always registered
+        this.metricsPort = intProperty(properties, "talkhub.metrics.port", 0);
+
+        // 0 writes whatever is queued right away; larger windows trade latency for fewer, fuller writes
+        this.coalesceWindowMicros = intProperty(properties, "talkhub.coalesce.windowMicros", 0);
+        this.coalesceMaxBytes = intProperty(properties, "talkhub.coalesce.maxBytes", 64 * 1024);
+
+        // per session, except fan-out, which is one budget of recipients per second for the whole server;
+        // a rate of 0 turns that limit off
+        this.limitMessagesPerSecond = intProperty(properties, "talkhub.limit.messagesPerSecond", 20);
+        this.limitMessageBurst = intProperty(properties, "talkhub.limit.messageBurst", 2 * limitMessagesPerSecond);
+        this.limitBytesPerSecond = intProperty(properties, "talkhub.limit.bytesPerSecond", 64 * 1024);
+        this.limitByteBurst = intProperty(properties, "talkhub.limit.byteBurst", 4 * limitBytesPerSecond);
+        this.limitFanOutPerSecond = intProperty(properties, "talkhub.limit.fanoutPerSecond", 0);
+        this.limitFanOutBurst = intProperty(properties, "talkhub.limit.fanoutBurst", limitFanOutPerSecond);
+
+        // binary frames with bodies this large are compressed for clients that asked; 0 turns compression off
+        this.compressionMinBytes = intProperty(properties, "talkhub.compression.minBytes", 512);
+        this.compressionLevel = intProperty(properties, "talkhub.compression.level", 1);
+
+        // an empty directory turns the message log off
+        this.logDirectory = properties.getProperty("talkhub.log.dir", "data/log");
+        this.logSegmentBytes = intProperty(properties, "talkhub.log.segmentBytes", 64 * 1024 * 1024);
+        this.logSyncIntervalMillis = intProperty(properties, "talkhub.log.syncIntervalMillis", 5);
+        this.historyReplayCount = intProperty(properties, "talkhub.history.replay", 50);
+        this.historyMaxReplay = intProperty(properties, "talkhub.history.maxReplay", 1000);
+        // most results in one page of a history search; 0 turns search, and its in-memory index, off
+        this.searchPageSize = intProperty(properties, "talkhub.search.pageSize", 50);
+
+        // an empty directory turns offline inboxes off: DMs to users who are not online are refused
+        this.inboxDirectory = properties.getProperty("talkhub.inbox.dir", "data/inbox");
+        this.inboxMaxBytes = intProperty(properties, "talkhub.inbox.maxBytes", 1024 * 1024);
+
+        // 0 runs a standalone server; otherwise peers connect to this port and the node joins the cluster
+        // through any of the listed peers (host:port, comma separated)
+        this.clusterPort = intProperty(properties, "talkhub.cluster.port", 0);
+        this.clusterNodeId = properties.getProperty("talkhub.cluster.node", "").trim();
+        this.clusterPeers = addresses(properties.getProperty("talkhub.cluster.peers", ""));
+        this.clusterSyncIntervalSeconds = intProperty(properties, "talkhub.cluster.syncIntervalSeconds", 30);
+    }
+
+    public static ServerConfig fromSystemProperties() {
+        return new ServerConfig(System.getProperties());
+    }
+
+    private static int intProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static List<InetSocketAddress> addresses(String value) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            String address = entry.trim();
+            if (address.isEmpty()) continue;
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("expected host:port, got " + address);
+            addresses.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    public <T> OutboundQueue<T> newOutboundQueue() {
+        return new OutboundQueue<>(outboundCapacity, overflowPolicy);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public InetSocketAddress getBindAddress() {
+        return bindHost.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(bindHost, port);
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    // from JVM start until the server accepts connections; a slower start is reported
+    public int getStartupTargetMillis() {
+        return startupTargetMillis;
+    }
+
+    public int getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public int getPresenceBatchMillis() {
+        return presenceBatchMillis;
+    }
+
+    public int getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getShutdownDrainMillis() {
+        return shutdownDrainMillis;
+    }
+
+    public int getReconnectWindowMillis() {
+        return reconnectWindowMillis;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getStatsIntervalSeconds() {
+        return statsIntervalSeconds;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    // how long a writer may hold the oldest queued frame back waiting for more to share its write
+    public int getCoalesceWindowMicros() {
+        return coalesceWindowMicros;
+    }
+
+    // a write goes out as soon as this many bytes are waiting, even inside the window
+    public int getCoalesceMaxBytes() {
+        return coalesceMaxBytes;
+    }
+
+    // null when the limit is off
+    public TokenBucket newMessageBucket() {
+        return bucket(limitMessagesPerSecond, limitMessageBurst);
+    }
+
+    public TokenBucket newByteBucket() {
+        return bucket(limitBytesPerSecond, limitByteBurst);
+    }
+
+    public TokenBucket newFanOutBucket() {
+        return bucket(limitFanOutPerSecond, limitFanOutBurst);
+    }
+
+    private static TokenBucket bucket(int ratePerSecond, int burst) {
+        return ratePerSecond > 0 ? new TokenBucket(ratePerSecond, burst) : null;
+    }
+
+    public int getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    // DEFLATE level, 1 (fastest) to 9 (smallest)
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public String getLogDirectory() {
+        return logDirectory;
+    }
+
+    public int getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+
+    public int getLogSyncIntervalMillis() {
+        return logSyncIntervalMillis;
+    }
+
+    // messages sent to a client on connect, or when it asks for history without an offset
+    public int getHistoryReplayCount() {
+        return historyReplayCount;
+    }
+
+    // upper bound for one replay from a client-supplied offset
+    public int getHistoryMaxReplay() {
+        return historyMaxReplay;
+    }
+
+    public int getSearchPageSize() {
+        return searchPageSize;
+    }
+
+    public String getInboxDirectory() {
+        return inboxDirectory;
+    }
+
+    // per user; the oldest messages are dropped to stay under it
+    public int getInboxMaxBytes() {
+        return inboxMaxBytes;
+    }
+
+    public boolean isClustered() {
+        return clusterPort > 0;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    // defaults to <host name>:<cluster port>; must be unique within the cluster
+    public String getClusterNodeId() {
+        if (!clusterNodeId.isEmpty()) return clusterNodeId;
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + clusterPort;
+        } catch (UnknownHostException e) {
+            return "node-" + clusterPort;
+        }
+    }
+
+    public List<InetSocketAddress> getClusterPeers() {
+        return clusterPeers;
+    }
+
+    // how often every node re-sends its full presence state to its peers
+    public int getClusterSyncIntervalSeconds() {
+        return clusterSyncIntervalSeconds;
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Startup and shutdown order for Server.main. The listener is bound before anything slow, so clients that
+// connect while the log recovers wait in the accept backlog instead of being refused, and whatever is not
+// needed to serve them (JMX, the metrics endpoint, the stats reporter) starts only once the server accepts.
+// JVM shutdown hooks run concurrently, so shutdown is one hook: stop accepting, drain the sessions, and only
+// then close the cluster links, the message log and the inboxes.
+public class ServerLifecycle {
+
+    private final ChatHub hub;
+    private final MessageLog log;
+    private final OfflineInbox inbox;
+    private ClusterNode cluster;
+
+    public ServerLifecycle(ChatHub hub, MessageLog log, OfflineInbox inbox) {
+        this.hub = hub;
+        this.log = log;
+        this.inbox = inbox;
+    }
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    // called right before the accept loop starts; stopAccepting closes the listener, stopIo (may be null) stops
+    // whatever threads serve the connections once they are closed
+    public void accepting(InetSocketAddress address, Runnable stopAccepting, Runnable stopIo) {
+        long acceptingAt = System.currentTimeMillis();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(stopAccepting, stopIo), "talkhub-shutdown"));
+        Thread deferred = new Thread(() -> startDeferred(address, acceptingAt), "deferred-startup");
+        deferred.setDaemon(true);
+        deferred.start();
+    }
+
+    private void startDeferred(InetSocketAddress address, long acceptingAt) {
+        // the JVM start time comes from the management beans, which are slow to load, so it is looked up here
+        long startupMillis = acceptingAt - ManagementFactory.getRuntimeMXBean().getStartTime();
+        hub.getMetrics().startedIn(startupMillis);
+        System.out.println("Accepting connections on " + address + ", " + startupMillis + " ms after JVM start.");
+        int target = hub.getConfig().getStartupTargetMillis();
+        if (target > 0 && startupMillis > target) {
+            System.out.println("Startup took longer than the " + target + " ms target.");
+        }
+        // registering the first MBean initializes the platform MBean server, which alone takes a few hundred ms
+        hub.getMetrics().registerMBean();
+        int metricsPort = hub.getConfig().getMetricsPort();
+        if (metricsPort > 0) {
+            try {
+                MetricsEndpoint.start(hub.getMetrics(), metricsPort);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        startStatsReporter();
+    }
+
+    private void startStatsReporter() {
+        int interval = hub.getConfig().getStatsIntervalSeconds();
+        if (interval <= 0) return;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stats-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.print(hub.queueStatsReport() + hub.roomStatsReport() + hub.getSendStats().report()), interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void shutdown(Runnable stopAccepting, Runnable stopIo) {
+        long start = System.nanoTime();
+        stopAccepting.run();
+        int sessions = hub.getRegistry().localSize();
+        int cutOff = hub.drain(hub.getConfig().getShutdownDrainMillis(), hub.getConfig().getReconnectWindowMillis());
+        System.out.println("Shutdown: " + sessions + " sessions drained in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + cutOff + " cut off at the deadline.");
+        if (stopIo != null) stopIo.run();
+        if (cluster != null) cluster.close();
+        if (log != null) {
+            // lets the writer finish the last group commit
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (inbox != null) inbox.close();
+    }
+}
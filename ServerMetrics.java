@@ -0,0 +1,364 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Server-wide counters and latency histograms. Everything recorded on the hot paths is a LongAdder or a
+// LatencyHistogram, so concurrent sessions never contend on one cache line; gauges such as queue depth are
+// computed when someone reads them.
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    public enum DisconnectCause {
+        CLIENT_CLOSED,
+        IO_ERROR,
+        PROTOCOL_ERROR,
+        SLOW_CONSUMER,
+        REJECTED,
+        HANDSHAKE_TIMEOUT,
+        IDLE_TIMEOUT,
+        SERVER;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final ChatHub hub;
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsOpen = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LatencyHistogram broadcastFanOut = new LatencyHistogram();
+    private final LatencyHistogram dmRouting = new LatencyHistogram();
+    private final LatencyHistogram acceptToReady = new LatencyHistogram();
+    private final LongAdder pingsSent = new LongAdder();
+    private final LatencyHistogram searches = new LatencyHistogram();
+    private final LongAdder inboxStored = new LongAdder();
+    private final LongAdder inboxDelivered = new LongAdder();
+    private final LongAdder[] disconnects = new LongAdder[DisconnectCause.values().length];
+    private final LongAdder[] throttles = new LongAdder[Throttle.Cause.values().length];
+    private final LongAdder throttledNanos = new LongAdder();
+    private volatile long startupMillis;
+
+    public ServerMetrics(ChatHub hub) {
+        this.hub = hub;
+        for (int i = 0; i < disconnects.length; i++) {
+            disconnects[i] = new LongAdder();
+        }
+        for (int i = 0; i < throttles.length; i++) {
+            throttles[i] = new LongAdder();
+        }
+    }
+
+    public void connectionAccepted() {
+        connectionsAccepted.increment();
+        connectionsOpen.increment();
+    }
+
+    // called once per connection by whichever path closes it first
+    public void connectionClosed(DisconnectCause cause) {
+        connectionsOpen.decrement();
+        disconnects[cause.ordinal()].increment();
+    }
+
+    public void messageReceived() {
+        messagesIn.increment();
+    }
+
+    public void recordBroadcast(long nanos) {
+        broadcastFanOut.record(nanos);
+    }
+
+    public void recordDirectMessage(long nanos) {
+        dmRouting.record(nanos);
+    }
+
+    // from accept until the session has joined: handshake read, name registered, presence announced
+    public void recordAcceptToReady(long nanos) {
+        acceptToReady.record(nanos);
+    }
+
+    public void pingSent() {
+        pingsSent.increment();
+    }
+
+    // one page of a history search, from the index lookup to the last hit queued
+    public void recordSearch(long nanos) {
+        searches.record(nanos);
+    }
+
+    public void inboxStored() {
+        inboxStored.increment();
+    }
+
+    public void inboxDelivered(int messages) {
+        inboxDelivered.add(messages);
+    }
+
+    // a session went over a limit and stops being read until it is back under it
+    public void throttled(Throttle.Cause cause) {
+        throttles[cause.ordinal()].increment();
+    }
+
+    public void throttledFor(long nanos) {
+        throttledNanos.add(nanos);
+    }
+
+    // from JVM start until the listener accepts
+    public void startedIn(long millis) {
+        startupMillis = millis;
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("talkhub:type=ServerMetrics"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getConnectionsOpen() {
+        return connectionsOpen.sum();
+    }
+
+    @Override
+    public int getSessions() {
+        return hub.getRegistry().localSize();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return hub.getSendStats().frames();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return hub.getSendStats().bytes();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return hub.getSendStats().writeCalls();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcastFanOut.count();
+    }
+
+    @Override
+    public double getBroadcastFanOutP99Micros() {
+        return broadcastFanOut.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getDirectMessages() {
+        return dmRouting.count();
+    }
+
+    @Override
+    public double getDmRoutingP99Micros() {
+        return dmRouting.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getAcceptToReadyP99Micros() {
+        return acceptToReady.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getPingsSent() {
+        return pingsSent.sum();
+    }
+
+    @Override
+    public double getSearchP99Micros() {
+        return searches.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getInboxStored() {
+        return inboxStored.sum();
+    }
+
+    @Override
+    public long getInboxDelivered() {
+        return inboxDelivered.sum();
+    }
+
+    @Override
+    public double getDeliveryLatencyP99Micros() {
+        return hub.getSendStats().deliveryLatency().percentile(99) / 1000.0;
+    }
+
+    @Override
+    public int getOutboundQueueDepthMax() {
+        int max = 0;
+        for (Session session : hub.getRegistry().localSnapshot()) {
+            max = Math.max(max, session.getOutboundQueue().depth());
+        }
+        return max;
+    }
+
+    @Override
+    public long getOutboundQueueDepthTotal() {
+        long total = 0;
+        for (Session session : hub.getRegistry().localSnapshot()) {
+            total += session.getOutboundQueue().depth();
+        }
+        return total;
+    }
+
+    @Override
+    public long getOutboundDropped() {
+        long total = 0;
+        for (Session session : hub.getRegistry().localSnapshot()) {
+            total += session.getOutboundQueue().dropped();
+        }
+        return total;
+    }
+
+    @Override
+    public long getClusterDropped() {
+        ClusterNode cluster = hub.getCluster();
+        return cluster != null ? cluster.getDropped() : 0;
+    }
+
+    @Override
+    public Map<String, Long> getDisconnects() {
+        Map<String, Long> byCause = new LinkedHashMap<>();
+        for (DisconnectCause cause : DisconnectCause.values()) {
+            byCause.put(cause.label(), disconnects[cause.ordinal()].sum());
+        }
+        return byCause;
+    }
+
+    @Override
+    public long getCompressionBytesIn() {
+        FrameCompression compression = hub.getCompression();
+        return compression != null ? compression.getBytesIn() : 0;
+    }
+
+    @Override
+    public long getCompressionBytesOut() {
+        FrameCompression compression = hub.getCompression();
+        return compression != null ? compression.getBytesOut() : 0;
+    }
+
+    @Override
+    public double getCompressionSeconds() {
+        FrameCompression compression = hub.getCompression();
+        return compression != null ? compression.getCompressNanos() / 1e9 : 0;
+    }
+
+    @Override
+    public Map<String, Long> getThrottles() {
+        Map<String, Long> byCause = new LinkedHashMap<>();
+        for (Throttle.Cause cause : Throttle.Cause.values()) {
+            byCause.put(cause.label(), throttles[cause.ordinal()].sum());
+        }
+        return byCause;
+    }
+
+    @Override
+    public double getThrottledSeconds() {
+        return throttledNanos.sum() / 1e9;
+    }
+
+    // Prometheus text exposition format (version 0.0.4); histograms are exported as summaries in seconds
+    public String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("# HELP talkhub_startup_seconds Time from JVM start until the server accepted connections.\n");
+        sb.append("# TYPE talkhub_startup_seconds gauge\n");
+        sb.append("talkhub_startup_seconds ").append(String.format(Locale.ROOT, "%.3f", startupMillis / 1e3)).append('\n');
+        counter(sb, "talkhub_connections_accepted_total", "Connections accepted.", getConnectionsAccepted());
+        gauge(sb, "talkhub_connections_open", "Connections currently open.", getConnectionsOpen());
+        gauge(sb, "talkhub_sessions", "Sessions past the handshake.", getSessions());
+        counter(sb, "talkhub_messages_in_total", "Messages and commands received from clients.", getMessagesIn());
+        counter(sb, "talkhub_frames_out_total", "Frames written to client sockets.", getFramesOut());
+        counter(sb, "talkhub_bytes_sent_total", "Bytes written to client sockets.", getBytesSent());
+        counter(sb, "talkhub_write_calls_total", "Socket write calls.", getWriteCalls());
+        counter(sb, "talkhub_pings_total", "Heartbeat pings sent to clients that had gone quiet.", getPingsSent());
+        counter(sb, "talkhub_inbox_stored_total", "DMs stored for users who were offline.", getInboxStored());
+        counter(sb, "talkhub_inbox_delivered_total", "Stored DMs delivered when their user came back.", getInboxDelivered());
+        counter(sb, "talkhub_compression_frames_total", "Shared frames run through compression, once each.",
+                hub.getCompression() != null ? hub.getCompression().getFramesCompressed() : 0);
+        counter(sb, "talkhub_compression_bytes_in_total", "Bytes of those frames before compression.", getCompressionBytesIn());
+        counter(sb, "talkhub_compression_bytes_out_total", "Bytes of those frames as sent.", getCompressionBytesOut());
+        sb.append("# HELP talkhub_compression_seconds_total Time spent compressing frames.\n");
+        sb.append("# TYPE talkhub_compression_seconds_total counter\n");
+        sb.append("talkhub_compression_seconds_total ").append(String.format(Locale.ROOT, "%.9f", getCompressionSeconds()))
+                .append('\n');
+        gauge(sb, "talkhub_outbound_queue_depth_max", "Deepest outbound queue right now.", getOutboundQueueDepthMax());
+        gauge(sb, "talkhub_outbound_queue_depth_total", "Frames waiting in all outbound queues.", getOutboundQueueDepthTotal());
+        counter(sb, "talkhub_outbound_dropped_total", "Frames dropped by the overflow policy of open sessions.", getOutboundDropped());
+        counter(sb, "talkhub_cluster_dropped_total", "Frames for cluster peers dropped on a full or broken link.",
+                getClusterDropped());
+        sb.append("# HELP talkhub_disconnects_total Closed connections by cause.\n");
+        sb.append("# TYPE talkhub_disconnects_total counter\n");
+        for (DisconnectCause cause : DisconnectCause.values()) {
+            sb.append("talkhub_disconnects_total{cause=\"").append(cause.label()).append("\"} ")
+                    .append(disconnects[cause.ordinal()].sum()).append('\n');
+        }
+        sb.append("# HELP talkhub_throttles_total Times a session went over a rate limit and stopped being read.\n");
+        sb.append("# TYPE talkhub_throttles_total counter\n");
+        for (Throttle.Cause cause : Throttle.Cause.values()) {
+            sb.append("talkhub_throttles_total{cause=\"").append(cause.label()).append("\"} ")
+                    .append(throttles[cause.ordinal()].sum()).append('\n');
+        }
+        sb.append("# HELP talkhub_throttled_seconds_total Time sessions spent not being read because of rate limits.\n");
+        sb.append("# TYPE talkhub_throttled_seconds_total counter\n");
+        sb.append("talkhub_throttled_seconds_total ").append(String.format(Locale.ROOT, "%.9f", getThrottledSeconds()))
+                .append('\n');
+        summary(sb, "talkhub_broadcast_fanout_seconds", "Time to queue one broadcast for every recipient.", broadcastFanOut);
+        summary(sb, "talkhub_dm_routing_seconds", "Time to route one private message.", dmRouting);
+        summary(sb, "talkhub_accept_to_ready_seconds", "Time from accepting a connection until its session has joined.",
+                acceptToReady);
+        summary(sb, "talkhub_search_seconds", "Time to answer one page of a history search.", searches);
+        summary(sb, "talkhub_delivery_latency_seconds", "Time from queueing a frame to writing it to the socket.",
+                hub.getSendStats().deliveryLatency());
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(String.format(Locale.ROOT, "%.9f", histogram.percentile(quantile * 100) / 1e9)).append('\n');
+        }
+        sb.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.9f", histogram.sum() / 1e9)).append('\n');
+        sb.append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.Map;
+
+// JMX view of ServerMetrics, registered as talkhub:type=ServerMetrics; latencies are in microseconds.
+public interface ServerMetricsMXBean {
+
+    // milliseconds from JVM start until the server accepted connections
+    long getStartupMillis();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsOpen();
+
+    int getSessions();
+
+    long getMessagesIn();
+
+    long getFramesOut();
+
+    long getBytesSent();
+
+    long getWriteCalls();
+
+    long getBroadcasts();
+
+    double getBroadcastFanOutP99Micros();
+
+    long getDirectMessages();
+
+    double getDmRoutingP99Micros();
+
+    // from accept until the session has joined
+    double getAcceptToReadyP99Micros();
+
+    // heartbeats sent to quiet clients; the ones that never answered are under the idle_timeout disconnect cause
+    long getPingsSent();
+
+    // one page of a history search
+    double getSearchP99Micros();
+
+    long getInboxStored();
+
+    long getInboxDelivered();
+
+    double getDeliveryLatencyP99Micros();
+
+    int getOutboundQueueDepthMax();
+
+    long getOutboundQueueDepthTotal();
+
+    long getOutboundDropped();
+
+    // frames for cluster peers whose link queue was full or went down; DMs among them were reported to their sender
+    long getClusterDropped();
+
+    Map<String, Long> getDisconnects();
+
+    // frames compressed once each for every session that negotiated compression, before and after
+    long getCompressionBytesIn();
+
+    long getCompressionBytesOut();
+
+    double getCompressionSeconds();
+
+    // by cause: messages, bytes or fanout
+    Map<String, Long> getThrottles();
+
+    double getThrottledSeconds();
+}
@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+
+public interface Session {
+
+    // server-assigned, used in place of the username by binary frames
+    int getId();
+
+    String getUsername();
+
+    WireProtocol getProtocol();
+
+    // queue a frame built by Frames or BinaryCodec; it may be shared with other sessions, so implementations
+    // must duplicate it rather than move its position. Implementations close themselves if the peer is gone
+    void send(ByteBuffer frame);
+
+    default void sendLine(String line) {
+        send(Frames.encodeLine(line));
+    }
+
+    default void deliver(EncodedMessage message) {
+        FrameCompression compression = getCompression();
+        send(compression != null ? message.compressedFrame(compression) : message.frame(getProtocol()));
+    }
+
+    // set for binary sessions that negotiated compression in the hello
+    default FrameCompression getCompression() {
+        return null;
+    }
+
+    OutboundQueue<?> getOutboundQueue();
+
+    // nothing queued or half-written; shutdown waits for this before closing the connection
+    default boolean isFlushed() {
+        return getOutboundQueue().isEmpty();
+    }
+
+    // the DM targets this session's client has bound; null for sessions that never read binary frames
+    default PeerHandles getPeerHandles() {
+        return null;
+    }
+
+    // when the connection was accepted, on the System.nanoTime() clock; only asked of sessions that joined here
+    default long getAcceptedNanos() {
+        return 0;
+    }
+
+    // when the client last sent anything, on the System.nanoTime() clock; sessions that are not read here are
+    // always current
+    default long getLastReadNanos() {
+        return System.nanoTime();
+    }
+
+    // whether Heartbeats may ping this client and close it for going quiet: binary clients always answer, text
+    // clients only once they have sent a __PING__ or __PONG__ themselves. Legacy text clients would show the
+    // ping as a chat line and never answer it, so they are left to write errors and TCP keepalive
+    default boolean answersPings() {
+        return getProtocol() == WireProtocol.BINARY;
+    }
+
+    // text protocol: the client sent a __PING__ or __PONG__ line
+    default void heartbeatSeen() {
+    }
+
+    // the read budget of sessions this server reads from; null for the rest
+    default Throttle getThrottle() {
+        return null;
+    }
+
+    void close();
+
+    default void close(ServerMetrics.DisconnectCause cause) {
+        close();
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionRegistry {
+
+    private static final Session[] EMPTY = new Session[0];
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    // binary frames address sessions by id
+    private final ConcurrentHashMap<Integer, Handle> handlesById = new ConcurrentHashMap<>();
+    private final AtomicLong modCount = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY, EMPTY);
+
+    public boolean register(Session session) {
+        if (sessions.putIfAbsent(session.getUsername(), session) != null) {
+            return false;
+        }
+        handlesById.put(session.getId(), new Handle(session));
+        modCount.incrementAndGet();
+        return true;
+    }
+
+    public boolean unregister(Session session) {
+        String username = session.getUsername();
+        if (username == null || !sessions.remove(username, session)) {
+            return false;
+        }
+        Handle handle = handlesById.get(session.getId());
+        if (handle != null && handle.session == session) {
+            handle.live = false;
+            handlesById.remove(session.getId(), handle);
+        }
+        modCount.incrementAndGet();
+        return true;
+    }
+
+    public Session get(String username) {
+        return sessions.get(username);
+    }
+
+    public Session get(int id) {
+        Handle handle = handlesById.get(id);
+        return handle != null ? handle.session : null;
+    }
+
+    // the handle of the session with that id if it is `username`'s, otherwise of whoever is online under the
+    // name, otherwise one that only remembers the name; null when neither id nor name mean anything
+    public Handle handle(int id, String username) {
+        Handle handle = handlesById.get(id);
+        if (handle != null && (username.isEmpty() || handle.username.equals(username))) return handle;
+        if (username.isEmpty()) return null;
+        Session session = sessions.get(username);
+        if (session != null) {
+            handle = handlesById.get(session.getId());
+            if (handle != null && handle.session == session) return handle;
+        }
+        return new Handle(null, username);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    // every session, including users on other cluster nodes; shared until the next join or leave, so callers
+    // must not modify it
+    public Session[] snapshot() {
+        return currentSnapshot().sessions;
+    }
+
+    // only the sessions connected to this server, for fan-out and queue statistics
+    public Session[] localSnapshot() {
+        return currentSnapshot().local;
+    }
+
+    public int localSize() {
+        return localSnapshot().length;
+    }
+
+    private Snapshot currentSnapshot() {
+        long version = modCount.get();
+        Snapshot current = snapshot;
+        if (current.version == version) {
+            return current;
+        }
+        Session[] sessionsNow = sessions.values().toArray(EMPTY);
+        List<Session> local = new ArrayList<>(sessionsNow.length);
+        for (Session session : sessionsNow) {
+            if (!(session instanceof RemoteSession)) local.add(session);
+        }
+        Snapshot fresh = new Snapshot(version, sessionsNow,
+                local.size() == sessionsNow.length ? sessionsNow : local.toArray(EMPTY));
+        if (modCount.get() == version) {
+            snapshot = fresh;
+        }
+        return fresh;
+    }
+
+    public List<String> usernames() {
+        Session[] current = snapshot();
+        List<String> names = new ArrayList<>(current.length);
+        for (Session session : current) {
+            names.add(session.getUsername());
+        }
+        return names;
+    }
+
+    // A registered session, resolved once and kept by whoever routes to it repeatedly. Cleared when the session
+    // unregisters, so holders notice without going back to the maps; the name stays for finding the user again.
+    public static final class Handle {
+        private final Session session;
+        private final String username;
+        private volatile boolean live;
+
+        Handle(Session session) {
+            this(session, session.getUsername());
+        }
+
+        // session null for a user who was not online when the handle was made
+        private Handle(Session session, String username) {
+            this.session = session;
+            this.username = username;
+            this.live = session != null;
+        }
+
+        // null once the session has left
+        public Session session() {
+            return live ? session : null;
+        }
+
+        public String username() {
+            return username;
+        }
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final Session[] sessions;
+        final Session[] local;
+
+        Snapshot(long version, Session[] sessions, Session[] local) {
+            this.version = version;
+            this.sessions = sessions;
+            this.local = local;
+        }
+    }
+}
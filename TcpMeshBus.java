@@ -0,0 +1,251 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Full TCP mesh between nodes. Every node dials every other one and sends only on the link it dialled; frames
+// from a peer arrive on the link the peer dialled. Connections open with a line handshake,
+// __NODE__:<node id>:<cluster port> answered with __NODE__:<node id>, after which both sides switch to frames.
+// A node only needs one seed peer: when an unknown node dials in, a link back to it is opened.
+public class TcpMeshBus implements ClusterBus {
+
+    private static final String HELLO_PREFIX = "__NODE__:";
+    private static final int LINK_CAPACITY = 64 * 1024;
+    private static final int MAX_WRITE_BATCH = 256;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2_000;
+    // for the hello line on either side; a peer that connects and then says nothing does not hold a thread
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5_000;
+
+    private final String nodeId;
+    private final int port;
+    private final List<InetSocketAddress> seeds;
+    private ServerSocket serverSocket;
+    private volatile Listener listener;
+    private volatile boolean closed;
+
+    // by the address dialled, and by node id once the peer has answered
+    private final ConcurrentHashMap<InetSocketAddress, Link> linksByAddress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Link> linksByNode = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    public TcpMeshBus(String nodeId, int port, List<InetSocketAddress> seeds) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.seeds = seeds;
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(this::acceptLoop, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (InetSocketAddress seed : seeds) {
+            dial(seed);
+        }
+    }
+
+    @Override
+    public void publish(ByteBuffer frame) {
+        for (Link link : linksByNode.values()) {
+            link.offer(frame);
+        }
+    }
+
+    @Override
+    public boolean send(String node, ByteBuffer frame) {
+        Link link = linksByNode.get(node);
+        return link != null && link.offer(frame);
+    }
+
+    @Override
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Link link : linksByAddress.values()) {
+            link.close();
+        }
+    }
+
+    private void dial(InetSocketAddress address) {
+        Link link = new Link(address);
+        if (linksByAddress.putIfAbsent(address, link) == null) {
+            link.thread.start();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> readLoop(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) e.printStackTrace();
+            }
+        }
+    }
+
+    // frames a peer sends us; the peer counts as down for us once this link ends
+    private void readLoop(Socket socket) {
+        String peer = null;
+        try {
+            socket.setTcpNoDelay(true);
+            // peers relay what clients sent with their own header on top, so frames run past a client's limit
+            FrameReader reader = new FrameReader(socket.getInputStream(), BinaryCodec.MAX_RELAYED_BODY_LENGTH);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            String hello = reader.readLine();
+            if (hello == null || !hello.startsWith(HELLO_PREFIX)) return;
+            socket.setSoTimeout(0);
+            int colon = hello.lastIndexOf(':');
+            peer = hello.substring(HELLO_PREFIX.length(), colon);
+            int peerPort = Integer.parseInt(hello.substring(colon + 1));
+            socket.getOutputStream().write((HELLO_PREFIX + nodeId + "\n").getBytes(StandardCharsets.UTF_8));
+            if (peer.equals(nodeId)) return;
+            if (!linksByNode.containsKey(peer)) {
+                dial(new InetSocketAddress(socket.getInetAddress(), peerPort));
+            }
+            int type;
+            while ((type = reader.readFrame()) != -1) {
+                listener.onFrame(peer, type, reader.body());
+            }
+        } catch (IOException | NumberFormatException e) {
+            // the peer went away or spoke something else
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            if (peer != null && !peer.equals(nodeId) && !closed) {
+                listener.onPeerDown(peer);
+            }
+        }
+    }
+
+    // the link this node dialled to one peer, with its own send queue and writer thread; reconnects until closed
+    private final class Link implements Runnable {
+        final InetSocketAddress address;
+        final Thread thread;
+        final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(LINK_CAPACITY);
+        volatile Socket socket;
+        volatile boolean linkClosed;
+
+        Link(InetSocketAddress address) {
+            this.address = address;
+            this.thread = new Thread(this, "cluster-out-" + address);
+            this.thread.setDaemon(true);
+        }
+
+        // a full queue means the peer is far behind; the next presence sync makes up for dropped presence, and
+        // the caller hears of the rest
+        boolean offer(ByteBuffer frame) {
+            if (queue.offer(frame.duplicate())) return true;
+            dropped.increment();
+            return false;
+        }
+
+        @Override
+        public void run() {
+            long backoff = INITIAL_BACKOFF_MILLIS;
+            while (!closed && !linkClosed) {
+                String peer = null;
+                Socket s = new Socket();
+                try {
+                    s.connect(address, CONNECT_TIMEOUT_MILLIS);
+                    s.setTcpNoDelay(true);
+                    socket = s;
+                    BufferedOutputStream stream = new BufferedOutputStream(s.getOutputStream());
+                    stream.write((HELLO_PREFIX + nodeId + ":" + port + "\n").getBytes(StandardCharsets.UTF_8));
+                    stream.flush();
+                    s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    String answer = new FrameReader(s.getInputStream()).readLine();
+                    if (answer == null || !answer.startsWith(HELLO_PREFIX)) throw new IOException("bad handshake");
+                    s.setSoTimeout(0);
+                    peer = answer.substring(HELLO_PREFIX.length());
+                    if (peer.equals(nodeId) || linksByNode.putIfAbsent(peer, this) != null) {
+                        // ourselves, or a node we already reach under another address
+                        linkClosed = true;
+                        linksByAddress.remove(address, this);
+                        peer = null;
+                        break;
+                    }
+                    backoff = INITIAL_BACKOFF_MILLIS;
+                    // left from before the link last went down; the sync on peer up replaces them
+                    dropped.add(queue.size());
+                    queue.clear();
+                    listener.onPeerUp(peer);
+                    writeLoop(Channels.newChannel(stream), stream);
+                } catch (IOException e) {
+                    // retried below
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    try {
+                        s.close();
+                    } catch (IOException ignored) {}
+                    if (peer != null) linksByNode.remove(peer, this);
+                }
+                try {
+                    Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                } catch (InterruptedException e) {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+
+        private void writeLoop(WritableByteChannel out, BufferedOutputStream stream)
+                throws IOException, InterruptedException {
+            List<ByteBuffer> batch = new ArrayList<>(MAX_WRITE_BATCH);
+            while (!closed && !linkClosed) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_WRITE_BATCH - 1);
+                for (ByteBuffer frame : batch) {
+                    out.write(frame);
+                }
+                stream.flush();
+                batch.clear();
+            }
+        }
+
+        void close() {
+            linkClosed = true;
+            thread.interrupt();
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.Locale;
+
+// One session's read budget: its own messages and bytes per second, plus its share of the server-wide fan-out
+// budget, which every message it sends to a room spends once per recipient. Charging never blocks; it pushes
+// back the time the session may be read again, and the reading side (ClientHandler's loop, the NIO reactor)
+// waits that out without reading, so a flooding client fills its own socket buffers instead of ours. Only the
+// thread reading the session touches it; the buckets themselves are lock-free, the fan-out one being shared.
+public final class Throttle {
+
+    public enum Cause {
+        MESSAGES,
+        BYTES,
+        FANOUT;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // null when that limit is off
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+    private final TokenBucket fanOut;
+    private final ServerMetrics metrics;
+
+    private boolean paused;
+    private long pausedSince;
+    private long resumeAt;
+
+    Throttle(TokenBucket messages, TokenBucket bytes, TokenBucket fanOut, ServerMetrics metrics) {
+        this.messages = messages;
+        this.bytes = bytes;
+        this.fanOut = fanOut;
+        this.metrics = metrics;
+    }
+
+    // a message of size bytes was read from the session
+    public void onMessage(int size) {
+        long now = System.nanoTime();
+        charge(messages, 1, now, Cause.MESSAGES);
+        charge(bytes, size, now, Cause.BYTES);
+    }
+
+    // a message from the session was queued for this many recipients
+    public void onFanOut(int recipients) {
+        charge(fanOut, recipients, System.nanoTime(), Cause.FANOUT);
+    }
+
+    private void charge(TokenBucket bucket, long tokens, long now, Cause cause) {
+        if (bucket == null) return;
+        long delay = bucket.take(tokens, now);
+        if (delay <= 0) return;
+        if (!paused) {
+            paused = true;
+            pausedSince = now;
+            resumeAt = now + delay;
+            metrics.throttled(cause);
+        } else {
+            resumeAt = Math.max(resumeAt, now + delay);
+        }
+    }
+
+    // how long the session must not be read from yet; the first call that returns 0 ends the pause
+    public long pauseNanos(long now) {
+        if (!paused) return 0;
+        long remaining = resumeAt - now;
+        if (remaining > 0) return remaining;
+        paused = false;
+        metrics.throttledFor(now - pausedSince);
+        return 0;
+    }
+}
@@ -0,0 +1,31 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket in its GCRA form: the whole state is the theoretical arrival time of the next token, so taking
+// tokens is one CAS and nothing has to refill the bucket in the background. A take always succeeds and may run
+// the bucket into debt; it returns how long the caller should hold off until the bucket is back within its
+// burst, which is what lets readers simply stop reading instead of dropping what they have already read.
+public final class TokenBucket {
+
+    private final long ratePerSecond;
+    // how far ahead of now the arrival time may run before takers have to wait: the burst, in nanoseconds
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+
+    public TokenBucket(long ratePerSecond, long burst) {
+        if (ratePerSecond <= 0) throw new IllegalArgumentException("rate must be positive");
+        this.ratePerSecond = ratePerSecond;
+        this.toleranceNanos = Math.max(burst, 1) * 1_000_000_000L / ratePerSecond;
+    }
+
+    // returns 0, or the nanoseconds until the bucket is within its burst again
+    public long take(long tokens, long nowNanos) {
+        long increment = tokens * 1_000_000_000L / ratePerSecond;
+        while (true) {
+            long arrival = theoreticalArrival.get();
+            long next = Math.max(arrival, nowNanos) + increment;
+            if (theoreticalArrival.compareAndSet(arrival, next)) {
+                return Math.max(0, next - nowNanos - toleranceNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+public enum WireProtocol {
+    // newline-terminated lines, the original protocol; a bare username as the first line selects it
+    TEXT,
+    // length-prefixed frames from BinaryCodec, selected by a __HELLO__ first line
+    BINARY;
+
+    public static final int BINARY_VERSION = 1;
+    public static final String HELLO_PREFIX = "__HELLO__:";
+    // the server's answer to a hello, written as a text line; everything after it is binary in both directions
+    public static final String HELLO_ACK = HELLO_PREFIX + BINARY_VERSION;
+    // appended to the version by a client that can take COMPRESSED frames, and repeated in the ack by a server
+    // that will send them; names the FrameCompression dictionary as well, so changing that needs a new token
+    public static final String DEFLATE = "+deflate";
+
+    // format: __HELLO__:<version>[+deflate]:<username>
+    public static String hello(String username) {
+        return hello(username, false);
+    }
+
+    public static String hello(String username, boolean deflate) {
+        return HELLO_PREFIX + BINARY_VERSION + (deflate ? DEFLATE : "") + ":" + username;
+    }
+
+    public static String helloAck(boolean deflate) {
+        return deflate ? HELLO_ACK + DEFLATE : HELLO_ACK;
+    }
+
+    public static boolean offersDeflate(String firstLine) {
+        if (fromFirstLine(firstLine) == TEXT) {
+            return false;
+        }
+        String version = firstLine.substring(HELLO_PREFIX.length(), firstLine.indexOf(':', HELLO_PREFIX.length()));
+        return version.endsWith(DEFLATE);
+    }
+
+    public static WireProtocol fromFirstLine(String firstLine) {
+        return firstLine.startsWith(HELLO_PREFIX) && firstLine.indexOf(':', HELLO_PREFIX.length()) != -1 ? BINARY : TEXT;
+    }
+
+    public static String usernameFromFirstLine(String firstLine) {
+        if (fromFirstLine(firstLine) == TEXT) {
+            return firstLine;
+        }
+        return firstLine.substring(firstLine.indexOf(':', HELLO_PREFIX.length()) + 1);
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+// Compares the old per-recipient Writer path with encode-once shared frames for one broadcast.
+// Run: javac -d out *.java bench/*.java && java -cp out BroadcastEncodingBenchmark
+public class BroadcastEncodingBenchmark {
+
+    private static final String MESSAGE = "alice: did anyone get the build working on the new laptop image yet? \u2615";
+    private static final int BATCH = 8;
+
+    public static void main(String[] args) {
+        for (int recipients : new int[] {10, 1_000, 10_000}) {
+            int iterations = Math.max(20, 200_000 / recipients);
+            runLegacy(recipients, iterations);
+            runShared(recipients, iterations);
+            runSharedGathering(recipients, iterations);
+        }
+    }
+
+    private static void runLegacy(int recipients, int iterations) {
+        CountingSink sink = new CountingSink();
+        BufferedWriter[] writers = new BufferedWriter[recipients];
+        for (int i = 0; i < recipients; i++) {
+            writers[i] = new BufferedWriter(new OutputStreamWriter(sink));
+        }
+        MicroBench.measure("writer per recipient, n=" + recipients, iterations, iterations, () -> {
+            try {
+                for (BufferedWriter writer : writers) {
+                    writer.write(MESSAGE);
+                    writer.newLine();
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sink.bytes;
+        });
+    }
+
+    private static void runShared(int recipients, int iterations) {
+        CountingSink sink = new CountingSink();
+        MicroBench.measure("encode once, shared frame, n=" + recipients, iterations, iterations, () -> {
+            ByteBuffer frame = Frames.encodeLine(MESSAGE);
+            for (int i = 0; i < recipients; i++) {
+                sink.write(frame.duplicate());
+            }
+            return sink.bytes;
+        });
+    }
+
+    // BATCH broadcasts queued per recipient, then one gathering write each, as a writer drains its queue
+    private static void runSharedGathering(int recipients, int iterations) {
+        CountingSink sink = new CountingSink();
+        ByteBuffer[] batch = new ByteBuffer[BATCH];
+        MicroBench.measure("encode once, " + BATCH + " broadcasts gathered, n=" + recipients, iterations, iterations, () -> {
+            ByteBuffer frame = Frames.encodeLine(MESSAGE);
+            for (int i = 0; i < recipients; i++) {
+                for (int j = 0; j < BATCH; j++) {
+                    batch[j] = frame.duplicate();
+                }
+                sink.write(batch, 0, BATCH);
+            }
+            return sink.bytes / BATCH;
+        });
+    }
+
+    // stands in for the socket: copies into a send buffer the way the kernel would, then forgets the bytes
+    private static final class CountingSink extends OutputStream implements GatheringByteChannel {
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (sendBuffer.remaining() < len) sendBuffer.clear();
+            sendBuffer.put(b, off, len);
+            bytes += len;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            if (sendBuffer.remaining() < n) sendBuffer.clear();
+            sendBuffer.put(src);
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += write(srcs[i]);
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// Two cluster nodes in this JVM, "a" and "b". Checks that a name connected to both nodes before they link up
+// ends up on node a alone as seen from both, that a full-size lobby message crosses the link without dropping
+// it, and that a peer which connects to the cluster port and says nothing is let go. Then a pretend node that
+// stops reading has DMs flooded at one of its users until node a's link to it is full; every DM must come back
+// either echoed or reported as not delivered. Exits with status 1 if a check fails.
+// Run: javac -d out *.java bench/*.java && java -cp out ClusterCheck
+public class ClusterCheck {
+
+    private static final String SENDER = "s".repeat(BinaryCodec.MAX_NAME_LENGTH);
+    private static final long TIMEOUT_MILLIS = 5_000;
+    // enough to fill the socket buffers and then node a's queue for a peer that stopped reading
+    private static final int FLOOD_DMS = 150_000;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        int clusterPortA = freePort();
+        int clusterPortB = freePort();
+        ChatHub hubA = startHub("a");
+        ChatHub hubB = startHub("b");
+        int portA = listen(hubA);
+        int portB = listen(hubB);
+
+        // the same name on both nodes before they know of each other: the lower node id keeps it
+        ChatConnection dupA = new ChatConnection("127.0.0.1", portA, "dup");
+        ChatConnection dupB = new ChatConnection("127.0.0.1", portB, "dup");
+        dupA.open();
+        dupB.open();
+        expect(dupA, ChatEvent.Kind.HISTORY_END, null);
+        expect(dupB, ChatEvent.Kind.HISTORY_END, null);
+        new ClusterNode(hubA, new TcpMeshBus("a", clusterPortA, List.of()), 0).start();
+        new ClusterNode(hubB, new TcpMeshBus("b", clusterPortB,
+                List.of(new InetSocketAddress("127.0.0.1", clusterPortA))), 0).start();
+
+        ChatConnection watchA = new ChatConnection("127.0.0.1", portA, "watchA");
+        ChatConnection watchB = new ChatConnection("127.0.0.1", portB, "watchB");
+        watchA.open();
+        watchB.open();
+        if (!await(() -> watchB.isOnline("watchA") && watchA.isOnline("watchB"))) fail("the nodes never linked up");
+        expect(dupB, ChatEvent.Kind.DISCONNECTED, null);
+        dupB.close();
+        Thread.sleep(500);
+        if (!dupA.isConnected()) fail("node a's dup was closed");
+        if (!watchA.isOnline("dup") || !watchB.isOnline("dup")) fail("dup is not online on both nodes");
+
+        // the longest line a client may send, relayed with the longest sender name
+        Socket sender = new Socket("127.0.0.1", portA);
+        OutputStream out = sender.getOutputStream();
+        line(out, SENDER);
+        String prefix = SENDER + ": ";
+        String text = "x".repeat(BinaryCodec.MAX_BODY_LENGTH - prefix.length());
+        line(out, prefix + text);
+        expect(watchB, ChatEvent.Kind.GROUP, text);
+        Thread.sleep(500);
+        if (!watchB.isOnline(SENDER)) fail("node b lost node a's users after the full-size message");
+
+        // a silent peer on the cluster port is dropped after the handshake timeout
+        try (Socket silent = new Socket("127.0.0.1", clusterPortA)) {
+            silent.setSoTimeout(10_000);
+            InputStream in = silent.getInputStream();
+            long start = System.nanoTime();
+            int read = in.read();
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (read != -1) fail("silent peer got data");
+            else System.out.println("silent peer dropped after " + waited + " ms");
+        } catch (SocketTimeoutException e) {
+            fail("silent peer was still connected after 10 s");
+        }
+
+        floodStalledPeer(hubA, portA, clusterPortA);
+
+        dupA.close();
+        watchA.close();
+        watchB.close();
+        sender.close();
+        System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void floodStalledPeer(ChatHub hubA, int portA, int clusterPortA) throws Exception {
+        // node z answers node a's link and then never reads it, and tells node a that ztarget is on z
+        ServerSocket zListener = new ServerSocket(0);
+        // held here so the socket stays open after the accepting thread is done with it
+        Socket[] zIn = new Socket[1];
+        Thread zAccept = new Thread(() -> {
+            try {
+                Socket link = zListener.accept();
+                zIn[0] = link;
+                new FrameReader(link.getInputStream()).readLine();
+                link.getOutputStream().write("__NODE__:z\n".getBytes(StandardCharsets.UTF_8));
+            } catch (Exception ignored) {
+                // the check fails on its own
+            }
+        }, "z-accept");
+        zAccept.setDaemon(true);
+        zAccept.start();
+        Socket zOut = new Socket("127.0.0.1", clusterPortA);
+        OutputStream zStream = zOut.getOutputStream();
+        line(zStream, "__NODE__:z:" + zListener.getLocalPort());
+        new FrameReader(zOut.getInputStream()).readLine();
+        ByteBuffer up = BinaryCodec.text(ClusterNode.USER_UP, "ztarget");
+        byte[] upBytes = new byte[up.remaining()];
+        up.get(upBytes);
+        zStream.write(upBytes);
+        zStream.flush();
+        if (!await(() -> hubA.getRegistry().get("ztarget") != null)) fail("node a never saw ztarget");
+
+        Socket flooder = new Socket("127.0.0.1", portA);
+        int[] answers = new int[2];
+        Thread reader = new Thread(() -> {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(flooder.getInputStream(), StandardCharsets.UTF_8));
+                String reply;
+                while ((reply = in.readLine()) != null) {
+                    if (reply.startsWith("__DM__:")) answers[0]++;
+                    else if (reply.contains("could not be delivered")) answers[1]++;
+                }
+            } catch (Exception ignored) {
+                // closed at the end
+            }
+        }, "flooder-reader");
+        reader.setDaemon(true);
+        reader.start();
+        OutputStream flood = new BufferedOutputStream(flooder.getOutputStream());
+        line(flood, "flooder");
+        String text = "f".repeat(200);
+        for (int i = 0; i < FLOOD_DMS; i++) {
+            flood.write(("__DM__:ztarget:" + text + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        flood.flush();
+        if (!await(() -> answers[0] + answers[1] >= FLOOD_DMS, 60_000)) {
+            fail("only " + (answers[0] + answers[1]) + " of " + FLOOD_DMS + " flooded DMs were answered");
+        }
+        System.out.println("flooded DMs: " + answers[0] + " echoed, " + answers[1] + " not delivered, "
+                + hubA.getMetrics().getClusterDropped() + " cluster frames dropped");
+        if (answers[1] == 0) fail("no flooded DM was reported as not delivered");
+        if (hubA.getMetrics().getClusterDropped() < answers[1]) fail("the dropped DMs were not all counted");
+        flooder.close();
+        zOut.close();
+        if (zIn[0] != null) zIn[0].close();
+        zListener.close();
+    }
+
+    private static ChatHub startHub(String node) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("talkhub.log.dir", Files.createTempDirectory("talkhub-cluster-" + node).toString());
+        properties.setProperty("talkhub.inbox.dir", "");
+        properties.setProperty("talkhub.compression.minBytes", "0");
+        properties.setProperty("talkhub.limit.messagesPerSecond", "0");
+        properties.setProperty("talkhub.limit.bytesPerSecond", "0");
+        // the flooder's answers arrive faster than it reads them
+        properties.setProperty("talkhub.outbound.capacity", String.valueOf(FLOOD_DMS));
+        ServerConfig config = new ServerConfig(properties);
+        return new ChatHub(config, MessageLog.open(config));
+    }
+
+    private static int listen(ChatHub hub) throws Exception {
+        ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread acceptor = new Thread(new Server(listener.socket(), hub)::startServer, "accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return ((InetSocketAddress) listener.getLocalAddress()).getPort();
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        return await(condition, TIMEOUT_MILLIS);
+    }
+
+    private static boolean await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    private static void line(OutputStream out, String line) throws Exception {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // the next event of that kind, skipping the others; text null accepts any
+    private static void expect(ChatConnection connection, ChatEvent.Kind kind, String text) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        long left;
+        while ((left = deadline - System.currentTimeMillis()) > 0) {
+            ChatEvent event = connection.pollEvent(left, TimeUnit.MILLISECONDS);
+            if (event == null) break;
+            if (event.getKind() == ChatEvent.Kind.DISCONNECTED && kind != ChatEvent.Kind.DISCONNECTED) {
+                fail(connection.getUsername() + " was disconnected waiting for " + kind + ": " + event.getText());
+                return;
+            }
+            if (event.getKind() != kind) continue;
+            if (text != null && !text.equals(event.getText())) {
+                fail(connection.getUsername() + " got a different " + kind);
+            } else {
+                System.out.println(connection.getUsername() + ": " + kind);
+            }
+            return;
+        }
+        fail(connection.getUsername() + " never got " + kind);
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAIL: " + message);
+        failures++;
+    }
+}
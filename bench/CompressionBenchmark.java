@@ -0,0 +1,87 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// CPU cost of compressing one shared frame against the bytes it saves, per payload and DEFLATE level, plus what
+// the preset dictionary adds for short text and what inflating costs a client. A broadcast pays the compression
+// once however many sessions receive it, so the time per frame is also the time per broadcast.
+// Run: javac -d out *.java bench/*.java && java -cp out CompressionBenchmark
+public class CompressionBenchmark {
+
+    private static final String SHORT = "did anyone get the build working on the new laptop image yet? I think the "
+            + "problem is the proxy settings, could you check them when you have time? thanks";
+
+    public static void main(String[] args) throws ProtocolException {
+        ByteBuffer[] frames = {
+                BinaryCodec.group(1_000_123, 42, SHORT),
+                BinaryCodec.group(1_000_124, 42, SHORT.repeat(8)),
+                BinaryCodec.userSnapshot(7, users(100)),
+                BinaryCodec.userSnapshot(7, users(1_000)),
+                BinaryCodec.userSnapshot(7, users(5_000)),
+        };
+        String[] names = {"group message", "long group message", "snapshot, 100 users", "snapshot, 1000 users",
+                "snapshot, 5000 users"};
+        for (int level : new int[] {1, 6, 9}) {
+            FrameCompression compression = compression(level);
+            for (int i = 0; i < frames.length; i++) {
+                ByteBuffer frame = frames[i];
+                ByteBuffer compressed = compression.compress(frame.duplicate());
+                int iterations = Math.max(200, 2_000_000 / frame.remaining());
+                MicroBench.measure("level " + level + ", " + names[i], iterations, iterations,
+                        () -> compression.compress(frame.duplicate()).remaining());
+                System.out.printf("    %d -> %d bytes (%.1f%% saved)%n", frame.remaining(), compressed.remaining(),
+                        100.0 * (frame.remaining() - compressed.remaining()) / frame.remaining());
+            }
+        }
+        withoutDictionary(frames[0]);
+        inflate(compression(6).compress(frames[3].duplicate()));
+    }
+
+    private static FrameCompression compression(int level) {
+        Properties properties = new Properties();
+        properties.setProperty("talkhub.compression.minBytes", "64");
+        properties.setProperty("talkhub.compression.level", Integer.toString(level));
+        return FrameCompression.create(new ServerConfig(properties));
+    }
+
+    // the same frame body deflated with nothing to refer back to
+    private static void withoutDictionary(ByteBuffer frame) {
+        byte[] body = new byte[frame.remaining()];
+        frame.duplicate().get(body);
+        byte[] out = new byte[body.length + 64];
+        Deflater deflater = new Deflater(6, true);
+        deflater.setInput(body);
+        deflater.finish();
+        int length = deflater.deflate(out);
+        System.out.printf("group message without dictionary: %d -> %d bytes%n", body.length, length);
+    }
+
+    private static void inflate(ByteBuffer compressed) throws ProtocolException {
+        byte[] frame = new byte[compressed.remaining()];
+        compressed.duplicate().get(frame);
+        Inflater inflater = new Inflater(true);
+        BinaryCodec.Cursor cursor = new BinaryCodec.Cursor();
+        // skip the COMPRESSED header and the inner type, as the client does before inflating
+        int bodyStart = 1;
+        while ((frame[bodyStart++] & 0x80) != 0) {
+        }
+        int start = bodyStart + 1;
+        MicroBench.measure("client inflate, snapshot, 1000 users", 2_000, 2_000, () -> {
+            try {
+                return FrameCompression.inflate(inflater, cursor.reset(frame, start, frame.length - start)).length;
+            } catch (ProtocolException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static Session[] users(int count) {
+        Session[] sessions = new Session[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new RemoteSession(i + 1, "user" + i, "bench");
+        }
+        return sessions;
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end check that the longest text a client may send reaches binary clients live, as a DM, and again
+// in a history replay, even with the longest username and room name and without compression to shrink the
+// frames. Starts a server in this JVM; exits with status 1 if anything is lost or a client had to reconnect.
+// Run: javac -d out *.java bench/*.java && java -cp out FrameLimitCheck
+public class FrameLimitCheck {
+
+    private static final String SENDER = "s".repeat(BinaryCodec.MAX_NAME_LENGTH);
+    private static final String ROOM = "r".repeat(32);
+    private static final long TIMEOUT_MILLIS = 5_000;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("talkhub.log.dir", Files.createTempDirectory("talkhub-limits").toString());
+        properties.setProperty("talkhub.inbox.dir", "");
+        properties.setProperty("talkhub.compression.minBytes", "0");
+        properties.setProperty("talkhub.limit.messagesPerSecond", "0");
+        properties.setProperty("talkhub.limit.bytesPerSecond", "0");
+        ServerConfig config = new ServerConfig(properties);
+        ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+        ChatHub hub = new ChatHub(config, MessageLog.open(config));
+        Thread acceptor = new Thread(new Server(listener.socket(), hub)::startServer, "accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        ChatConnection live = new ChatConnection("127.0.0.1", port, "live");
+        live.open();
+        expect(live, ChatEvent.Kind.HISTORY_END, null);
+        live.joinRoom(ROOM);
+        expect(live, ChatEvent.Kind.ROOM_JOINED, null);
+
+        Socket sender = new Socket("127.0.0.1", port);
+        OutputStream out = sender.getOutputStream();
+        line(out, SENDER);
+        line(out, "__JOIN_ROOM__:" + ROOM);
+        Thread.sleep(200);
+        // each line is exactly as long as the server accepts
+        String groupPrefix = SENDER + ": ";
+        String groupText = "g".repeat(BinaryCodec.MAX_BODY_LENGTH - groupPrefix.length());
+        line(out, groupPrefix + groupText);
+        String roomPrefix = "__ROOM__:" + ROOM + ":";
+        String roomText = "\u00e9".repeat((BinaryCodec.MAX_BODY_LENGTH - roomPrefix.length()) / 2);
+        line(out, roomPrefix + roomText);
+        String dmPrefix = "__DM__:live:";
+        String dmText = "d".repeat(BinaryCodec.MAX_BODY_LENGTH - dmPrefix.length());
+        line(out, dmPrefix + dmText);
+
+        expect(live, ChatEvent.Kind.GROUP, groupText);
+        expect(live, ChatEvent.Kind.ROOM_MESSAGE, roomText);
+        expect(live, ChatEvent.Kind.DM, dmText);
+
+        // joins afterwards, so it only sees these in the replay
+        ChatConnection late = new ChatConnection("127.0.0.1", port, "late");
+        late.open();
+        expect(late, ChatEvent.Kind.GROUP, groupText);
+        expect(late, ChatEvent.Kind.HISTORY_END, null);
+
+        live.close();
+        late.close();
+        sender.close();
+        System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void line(OutputStream out, String line) throws Exception {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // the next event of that kind, skipping notices and presence; text null accepts any
+    private static void expect(ChatConnection connection, ChatEvent.Kind kind, String text) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        long left;
+        while ((left = deadline - System.currentTimeMillis()) > 0) {
+            ChatEvent event = connection.pollEvent(left, TimeUnit.MILLISECONDS);
+            if (event == null) break;
+            if (event.getKind() == ChatEvent.Kind.DISCONNECTED) {
+                fail(connection.getUsername() + " was disconnected waiting for " + kind + ": " + event.getText());
+                return;
+            }
+            if (event.getKind() != kind) continue;
+            if (text != null && !text.equals(event.getText())) {
+                fail(connection.getUsername() + " got " + kind + " with " + length(event.getText())
+                        + " bytes of text instead of " + length(text));
+            } else {
+                System.out.println(connection.getUsername() + ": " + kind
+                        + (text != null ? ", " + length(text) + " bytes of text" : ""));
+            }
+            return;
+        }
+        fail(connection.getUsername() + " never got " + kind);
+    }
+
+    private static int length(String text) {
+        return text == null ? 0 : text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAIL: " + message);
+        failures++;
+    }
+}
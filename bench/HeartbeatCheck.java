@@ -0,0 +1,108 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Checks heartbeats on both server modes with a short idle timeout: a silent legacy text client, which never
+// answers pings, is neither pinged nor closed; a text client that sent one __PING__ and then went quiet is
+// pinged and closed; a ChatConnection answers its pings and stays. Exits with status 1 if a check fails.
+// Run: javac -d out *.java bench/*.java && java -cp out HeartbeatCheck
+public class HeartbeatCheck {
+
+    private static final int IDLE_MILLIS = 1_500;
+    private static final int PING_MILLIS = 500;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        run("threads");
+        run("nio");
+        System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void run(String mode) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("talkhub.log.dir", Files.createTempDirectory("talkhub-heartbeat").toString());
+        properties.setProperty("talkhub.inbox.dir", "");
+        properties.setProperty("talkhub.idle.timeoutMillis", String.valueOf(IDLE_MILLIS));
+        properties.setProperty("talkhub.heartbeat.intervalMillis", String.valueOf(PING_MILLIS));
+        ServerConfig config = new ServerConfig(properties);
+        ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+        ChatHub hub = new ChatHub(config, MessageLog.open(config));
+        Runnable server = mode.equals("nio") ? new NioServer(listener, 1, hub)::startServer
+                : new Server(listener.socket(), hub)::startServer;
+        Thread acceptor = new Thread(server, "accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        TextClient legacy = new TextClient(port, "legacy", false);
+        TextClient pinger = new TextClient(port, "pinger", true);
+        ChatConnection modern = new ChatConnection("127.0.0.1", port, "modern");
+        modern.open();
+        Thread.sleep(3L * IDLE_MILLIS);
+
+        if (legacy.closed) fail(mode + ": the legacy text client was closed");
+        if (legacy.lines.contains("__PING__")) fail(mode + ": the legacy text client was pinged");
+        if (hub.getRegistry().get("legacy") == null) fail(mode + ": the legacy text client left the user list");
+        if (!pinger.lines.contains("__PING__")) fail(mode + ": the text client that pinged was never pinged back");
+        if (!pinger.closed) fail(mode + ": the quiet text client that pinged was not closed");
+        ChatEvent event;
+        while ((event = modern.pollEvent(0, TimeUnit.MILLISECONDS)) != null) {
+            if (event.getKind() == ChatEvent.Kind.DISCONNECTED) fail(mode + ": the ChatConnection was disconnected");
+        }
+        if (!modern.isConnected()) fail(mode + ": the ChatConnection is not connected");
+        System.out.println(mode + ": legacy " + (legacy.closed ? "closed" : "open") + ", pinger "
+                + (pinger.closed ? "closed" : "open") + ", ChatConnection "
+                + (modern.isConnected() ? "connected" : "disconnected"));
+
+        legacy.socket.close();
+        pinger.socket.close();
+        modern.close();
+        listener.close();
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAIL: " + message);
+        failures++;
+    }
+
+    // a text-protocol client that only sends its hello, and one __PING__ if asked; collects what it is sent
+    private static final class TextClient {
+        final Socket socket;
+        final List<String> lines = new CopyOnWriteArrayList<>();
+        volatile boolean closed;
+
+        TextClient(int port, String name, boolean ping) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            OutputStream out = socket.getOutputStream();
+            out.write((name + "\n" + (ping ? "__PING__\n" : "")).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Thread reader = new Thread(() -> {
+                try {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } catch (IOException ignored) {
+                    // closed under us
+                }
+                closed = true;
+            }, name + "-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+}
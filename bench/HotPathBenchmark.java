@@ -0,0 +1,159 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Properties;
+
+// In-process server hot paths with no sockets involved, as a baseline to rerun after server changes:
+// hub fan-out, frame encode/decode, the outbound queue hand-off and latency recording.
+// Run: javac -d out *.java bench/*.java && java -cp out HotPathBenchmark
+public class HotPathBenchmark {
+
+    private static final String MESSAGE = "did anyone get the build working on the new laptop image yet?";
+
+    public static void main(String[] args) {
+        for (int recipients : new int[] {10, 1_000}) {
+            runHubFanOut(recipients, WireProtocol.TEXT);
+            runHubFanOut(recipients, WireProtocol.BINARY);
+        }
+        runCodec();
+        runOutboundQueue();
+        runHistogram();
+        runSharedHistogram();
+    }
+
+    // ChatHub.onMessage for one lobby message; sessions only count the bytes they are handed
+    private static void runHubFanOut(int recipients, WireProtocol protocol) {
+        Properties properties = new Properties();
+        properties.setProperty("talkhub.log.dir", "");
+        ChatHub hub = new ChatHub(new ServerConfig(properties), null);
+        BlackholeSession[] sessions = new BlackholeSession[recipients];
+        for (int i = 0; i < recipients; i++) {
+            sessions[i] = new BlackholeSession(hub, "user" + i, protocol);
+            hub.join(sessions[i]);
+        }
+        int iterations = Math.max(200, 200_000 / recipients);
+        BlackholeSession sender = sessions[0];
+        MicroBench.measure("hub lobby fan-out, " + protocol.name().toLowerCase() + ", n=" + recipients,
+                iterations, iterations, () -> {
+                    hub.onMessage(sender, MESSAGE);
+                    return sessions[recipients - 1].bytes;
+                });
+    }
+
+    private static void runCodec() {
+        BinaryCodec.Cursor cursor = new BinaryCodec.Cursor();
+        MicroBench.measure("binary group frame encode + decode, x1000", 2_000, 2_000, () -> {
+            long total = 0;
+            for (int i = 0; i < 1_000; i++) {
+                ByteBuffer frame = BinaryCodec.group(i, 42, MESSAGE);
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                cursor.reset(bytes, 2, bytes.length - 2);
+                try {
+                    total += cursor.readVarLong() + cursor.readVarInt() + cursor.readRemaining().length();
+                } catch (ProtocolException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return total;
+        });
+    }
+
+    private static void runOutboundQueue() {
+        OutboundQueue<QueuedFrame> queue = new OutboundQueue<>(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        ByteBuffer frame = Frames.encodeLine(MESSAGE);
+        MicroBench.measure("outbound queue offer + poll, x1000", 2_000, 2_000, () -> {
+            long total = 0;
+            for (int i = 0; i < 1_000; i++) {
+                queue.offer(new QueuedFrame(frame.duplicate(), System.nanoTime()));
+                total += queue.poll().buffer.remaining();
+            }
+            return total;
+        });
+    }
+
+    private static void runHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        MicroBench.measure("latency histogram record, x1000", 2_000, 2_000, () -> {
+            for (int i = 0; i < 1_000; i++) {
+                histogram.record(i * 997L);
+            }
+            return histogram.count();
+        });
+    }
+
+    // one histogram recorded into by several threads at once, as the send paths of many sessions do
+    private static void runSharedHistogram() {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int perThread = 5_000_000;
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int round = 0; round < 3; round++) {
+            histogram.reset();
+            Thread[] recorders = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                recorders[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        histogram.record(i * 997L);
+                    }
+                });
+                recorders[t].start();
+            }
+            for (Thread recorder : recorders) {
+                try {
+                    recorder.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf(Locale.ROOT, "%-48s %d threads, %.1f ns per record across all of them%n",
+                    "latency histogram record, shared", threads, (double) elapsed / histogram.count());
+        }
+    }
+
+    private static final class BlackholeSession implements Session {
+        private final int id;
+        private final String username;
+        private final WireProtocol protocol;
+        private final OutboundQueue<QueuedFrame> queue;
+        long bytes;
+
+        BlackholeSession(ChatHub hub, String username, WireProtocol protocol) {
+            this.id = hub.nextSessionId();
+            this.username = username;
+            this.protocol = protocol;
+            this.queue = hub.getConfig().newOutboundQueue();
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public WireProtocol getProtocol() {
+            return protocol;
+        }
+
+        @Override
+        public void send(ByteBuffer frame) {
+            bytes += frame.remaining();
+        }
+
+        @Override
+        public OutboundQueue<?> getOutboundQueue() {
+            return queue;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
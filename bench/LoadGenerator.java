@@ -0,0 +1,467 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load generator for a running server: thousands of simulated users from one JVM, each sending group
+// (or room) messages and DMs at a fixed rate. Every message carries its send time, so receivers in this JVM
+// measure end-to-end latency for the broadcast and DM paths separately. Users speak the text protocol from a
+// few selector threads; loadgen.binaryUsers more can be added on top through ChatConnection, the client the GUI
+// uses, which costs two threads each. For a soak test, loadgen.idleUsers connect first and then only answer the
+// server's pings; they stay in the lobby, so give the active users rooms. Every report counts the connections
+// still open, and the run fails if any were dropped.
+//
+// Run: javac -d out *.java bench/*.java && java -cp out -Dloadgen.users=2000 LoadGenerator
+// Soak: java -Xmx2g -cp out -Dloadgen.idleUsers=50000 -Dloadgen.users=5000 -Dloadgen.roomSize=50
+//       -Dloadgen.duration=1800 LoadGenerator   (the server needs ulimit -n above the connection count too)
+// Settings (system properties, with defaults):
+//   loadgen.host=localhost  loadgen.port=1234      loadgen.users=1000     loadgen.rate=0.2 (messages/s per user)
+//   loadgen.roomSize=0 (0 = everyone in the lobby)  loadgen.dmPercent=10   loadgen.connectRate=500 (per second)
+//   loadgen.warmup=5 (seconds)                      loadgen.duration=30    loadgen.ioThreads=<cores>
+//   loadgen.binaryUsers=0                          loadgen.idleUsers=0
+public class LoadGenerator {
+
+    private static final String PAYLOAD_MARK = "lg";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // idle users only ever read notices and pings, and skip longer lines such as a large user snapshot
+    private static final int IDLE_BUFFER_SIZE = 4 * 1024;
+
+    private final String host = System.getProperty("loadgen.host", "localhost");
+    private final int port = Integer.getInteger("loadgen.port", 1234);
+    private final int users = Integer.getInteger("loadgen.users", 1000);
+    private final double rate = Double.parseDouble(System.getProperty("loadgen.rate", "0.2"));
+    private final int roomSize = Integer.getInteger("loadgen.roomSize", 0);
+    private final int dmPercent = Integer.getInteger("loadgen.dmPercent", 10);
+    private final int connectRate = Integer.getInteger("loadgen.connectRate", 500);
+    private final int warmupSeconds = Integer.getInteger("loadgen.warmup", 5);
+    private final int durationSeconds = Integer.getInteger("loadgen.duration", 30);
+    private final int ioThreads = Integer.getInteger("loadgen.ioThreads", Runtime.getRuntime().availableProcessors());
+    private final int binaryUsers = Integer.getInteger("loadgen.binaryUsers", 0);
+    private final int idleUsers = Integer.getInteger("loadgen.idleUsers", 0);
+    private final int totalUsers = users + binaryUsers;
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sendBacklog = new LongAdder();
+    private final LongAdder broadcastsReceived = new LongAdder();
+    private final LongAdder dmsReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder droppedConnections = new LongAdder();
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    private final LatencyHistogram dmLatency = new LatencyHistogram();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+
+    private void run() throws Exception {
+        System.out.printf(Locale.ROOT, "%d users (%d binary) -> %s:%d, %.2f msg/s each, room size %s, %d%% DMs%n",
+                totalUsers, binaryUsers, host, port, rate, roomSize == 0 ? "all" : String.valueOf(roomSize), dmPercent);
+        if (idleUsers > 0) System.out.println("plus " + idleUsers + " idle users");
+        Worker[] workers = new Worker[ioThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker("loadgen-io-" + i);
+            workers[i].thread.start();
+        }
+        long connectStart = System.nanoTime();
+        // idle users first, so the active ones start sending with the full crowd already there
+        for (int i = 0; i < idleUsers; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            workers[i % workers.length].add(new User(-1 - i, channel));
+            // pace the handshakes instead of hitting the accept backlog all at once
+            long due = connectStart + TimeUnit.SECONDS.toNanos(i + 1) / connectRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        for (int i = 0; i < users; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+            workers[i % workers.length].add(new User(i, channel));
+            long due = connectStart + TimeUnit.SECONDS.toNanos(idleUsers + i + 1) / connectRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        BinaryDriver binaryDriver = null;
+        if (binaryUsers > 0) {
+            binaryDriver = new BinaryDriver();
+            for (int i = users; i < totalUsers; i++) {
+                binaryDriver.add(new BinaryUser(i));
+                long due = connectStart + TimeUnit.SECONDS.toNanos(idleUsers + i + 1) / connectRate;
+                long wait = due - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            binaryDriver.thread.start();
+        }
+        System.out.printf(Locale.ROOT, "connected %d users in %.1fs%n", idleUsers + totalUsers,
+                (System.nanoTime() - connectStart) / 1e9);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        resetCounters();
+        System.out.println("warmup done, measuring for " + durationSeconds + "s");
+        long measureStart = System.nanoTime();
+        for (int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(1000);
+            if (second % 5 == 0 || second == durationSeconds) {
+                report("t+" + second + "s", System.nanoTime() - measureStart, false);
+            }
+        }
+        running = false;
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+            worker.thread.join();
+        }
+        if (binaryDriver != null) binaryDriver.thread.join();
+        report("total", System.nanoTime() - measureStart, true);
+        if (droppedConnections.sum() > 0) {
+            System.out.println("FAIL: " + droppedConnections.sum() + " connections were dropped");
+            System.exit(1);
+        }
+    }
+
+    private void resetCounters() {
+        sent.reset();
+        sendBacklog.reset();
+        broadcastsReceived.reset();
+        dmsReceived.reset();
+        bytesReceived.reset();
+        broadcastLatency.reset();
+        dmLatency.reset();
+    }
+
+    private void report(String label, long elapsedNanos, boolean full) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "%-8s sent %.0f/s  delivered %.0f/s (%.1f MB/s)  backlogged %d  open %d  dropped %d%n",
+                label, sent.sum() / seconds, (broadcastsReceived.sum() + dmsReceived.sum()) / seconds,
+                bytesReceived.sum() / seconds / (1024 * 1024), sendBacklog.sum(), openConnections.sum(),
+                droppedConnections.sum());
+        if (full) {
+            System.out.println("broadcast " + broadcastLatency.summary());
+            System.out.println("dm        " + dmLatency.summary());
+        } else {
+            System.out.printf(Locale.ROOT, "         broadcast p50 %.1fms p99 %.1fms   dm p50 %.1fms p99 %.1fms%n",
+                    broadcastLatency.percentile(50) / 1e6, broadcastLatency.percentile(99) / 1e6,
+                    dmLatency.percentile(50) / 1e6, dmLatency.percentile(99) / 1e6);
+        }
+    }
+
+    private static String userName(int index) {
+        return "lg" + index;
+    }
+
+    private String roomOf(int index) {
+        return roomSize == 0 ? null : "lg-" + index / roomSize;
+    }
+
+    // another user to DM, or -1 when this message should go to the user's room or the lobby instead
+    private int dmTarget(int index) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (totalUsers < 2 || random.nextInt(100) >= dmPercent) return -1;
+        int target = random.nextInt(totalUsers - 1);
+        return target >= index ? target + 1 : target;
+    }
+
+    // payloads end with "lg <sender index> <send nanos>"
+    private void onPayload(String text, boolean dm, int receiver, long now) {
+        int last = text.lastIndexOf(' ');
+        int previous = last > 0 ? text.lastIndexOf(' ', last - 1) : -1;
+        if (previous < 2 || !text.startsWith(PAYLOAD_MARK, previous - 2)) return;
+        int sender;
+        long sentAt;
+        try {
+            sender = Integer.parseInt(text.substring(previous + 1, last));
+            sentAt = Long.parseLong(text.substring(last + 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (sentAt < startNanos) return;
+        if (dm) {
+            // the sender's own copy is the echo, not a delivery
+            if (sender == receiver) return;
+            dmsReceived.increment();
+            dmLatency.record(now - sentAt);
+        } else {
+            broadcastsReceived.increment();
+            broadcastLatency.record(now - sentAt);
+        }
+    }
+
+    // one simulated user; owned by a single worker thread after add(). Idle users have negative indexes
+    private final class User {
+        final int index;
+        final boolean idle;
+        final String name;
+        final String room;
+        final SocketChannel channel;
+        final ByteBuffer in;
+        final ByteBuffer out;
+        SelectionKey key;
+        // history replayed on join is from earlier runs; measurement starts after the replay ends
+        boolean ready;
+        // inside a line too long for the buffer, which is dropped up to its newline
+        boolean skipping;
+        long nextSendNanos;
+
+        User(int index, SocketChannel channel) {
+            this.index = index;
+            this.idle = index < 0;
+            this.name = idle ? "lgi" + (-1 - index) : userName(index);
+            this.room = idle ? null : roomOf(index);
+            this.channel = channel;
+            this.in = ByteBuffer.allocate(idle ? IDLE_BUFFER_SIZE : BUFFER_SIZE);
+            this.out = ByteBuffer.allocate(idle ? IDLE_BUFFER_SIZE : BUFFER_SIZE);
+            queue(name);
+            if (room != null) queue("__JOIN_ROOM__:" + room);
+            // random phase so users do not all fire on the same tick
+            long interval = intervalNanos();
+            nextSendNanos = System.nanoTime() + (interval > 0 ? ThreadLocalRandom.current().nextLong(interval) : 0);
+        }
+
+        long intervalNanos() {
+            return idle || rate <= 0 ? 0 : (long) (1e9 / rate);
+        }
+
+        void sendNext(long now) {
+            String payload = PAYLOAD_MARK + " " + index + " " + now;
+            int target = dmTarget(index);
+            if (target >= 0) {
+                queue("__DM__:" + userName(target) + ":" + payload);
+            } else if (room != null) {
+                queue("__ROOM__:" + room + ":" + payload);
+            } else {
+                queue(name + ": " + payload);
+            }
+            sent.increment();
+        }
+
+        void queue(String line) {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            if (out.remaining() < bytes.length) {
+                // the server is not keeping up with this user; drop rather than grow without bound
+                sendBacklog.increment();
+                return;
+            }
+            out.put(bytes);
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean pending = out.hasRemaining();
+            out.compact();
+            if (key != null) {
+                key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        void read() throws IOException {
+            int read = channel.read(in);
+            if (read == -1) throw new IOException(name + " disconnected");
+            bytesReceived.add(read);
+            long now = System.nanoTime();
+            byte[] bytes = in.array();
+            int start = 0;
+            for (int i = 0; i < in.position(); i++) {
+                if (bytes[i] == '\n') {
+                    if (!skipping) onLine(new String(bytes, start, i - start, StandardCharsets.UTF_8), now);
+                    skipping = false;
+                    start = i + 1;
+                }
+            }
+            in.limit(in.position()).position(start);
+            in.compact();
+            if (!in.hasRemaining()) {
+                skipping = true;
+                in.clear();
+            }
+        }
+
+        void onLine(String line, long now) throws IOException {
+            if (line.equals("__PING__")) {
+                queue("__PONG__");
+                flush();
+                return;
+            }
+            if (idle) return;
+            if (!ready) {
+                ready = line.startsWith("__HISTORY_END__:");
+                return;
+            }
+            onPayload(line, line.startsWith("__DM__:"), index, now);
+        }
+    }
+
+    // a user on the binary protocol; its connection does the I/O, the driver thread sends and drains events
+    private final class BinaryUser {
+        final int index;
+        final String room;
+        final ChatConnection connection;
+        final List<ChatEvent> events = new ArrayList<>();
+        boolean ready;
+        long nextSendNanos;
+
+        BinaryUser(int index) throws IOException {
+            this.index = index;
+            this.room = roomOf(index);
+            this.connection = new ChatConnection(host, port, userName(index));
+            connection.open();
+            if (room != null) connection.joinRoom(room);
+            long interval = (long) (1e9 / Math.max(rate, 1e-9));
+            nextSendNanos = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval);
+        }
+
+        void sendNext(long now) {
+            String payload = PAYLOAD_MARK + " " + index + " " + now;
+            int target = dmTarget(index);
+            boolean queued = target >= 0
+                    ? connection.sendDirect(userName(target), payload) != BinaryCodec.NO_MESSAGE_ID
+                    : connection.sendMessage(room, payload);
+            if (queued) {
+                sent.increment();
+            } else {
+                sendBacklog.increment();
+            }
+        }
+
+        void drain(long now) {
+            connection.drainEvents(events);
+            for (ChatEvent event : events) {
+                switch (event.getKind()) {
+                    case HISTORY_END:
+                        ready = true;
+                        break;
+                    case GROUP:
+                    case ROOM_MESSAGE:
+                    case DM:
+                        if (ready && !event.isHistory()) {
+                            onPayload(event.getText(), event.getKind() == ChatEvent.Kind.DM, index, now);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            events.clear();
+        }
+    }
+
+    private final class BinaryDriver implements Runnable {
+        final Thread thread = new Thread(this, "loadgen-binary");
+        final List<BinaryUser> users = new ArrayList<>();
+
+        BinaryDriver() {
+            thread.setDaemon(true);
+        }
+
+        void add(BinaryUser user) {
+            users.add(user);
+        }
+
+        @Override
+        public void run() {
+            long interval = rate <= 0 ? 0 : (long) (1e9 / rate);
+            while (running) {
+                long now = System.nanoTime();
+                for (BinaryUser user : users) {
+                    user.drain(now);
+                    if (interval == 0 || !user.ready) continue;
+                    while (user.nextSendNanos <= now) {
+                        user.sendNext(now);
+                        user.nextSendNanos += interval;
+                    }
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            for (BinaryUser user : users) {
+                user.connection.close();
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<User> pending = new ConcurrentLinkedQueue<>();
+        final List<User> users = new ArrayList<>();
+
+        Worker(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void add(User user) {
+            pending.add(user);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // 1ms tick: sends are due on a schedule, not on socket events
+                    selector.select(1);
+                    User user;
+                    while ((user = pending.poll()) != null) {
+                        user.channel.configureBlocking(false);
+                        user.key = user.channel.register(selector, SelectionKey.OP_READ, user);
+                        users.add(user);
+                        openConnections.increment();
+                        user.flush();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        User owner = (User) key.attachment();
+                        try {
+                            if (key.isReadable()) owner.read();
+                            if (key.isValid() && key.isWritable()) owner.flush();
+                        } catch (IOException e) {
+                            System.out.println(e.getMessage());
+                            key.cancel();
+                            owner.channel.close();
+                            users.remove(owner);
+                            openConnections.decrement();
+                            if (running) droppedConnections.increment();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    long now = System.nanoTime();
+                    for (int i = 0; i < users.size(); i++) {
+                        User u = users.get(i);
+                        long interval = u.intervalNanos();
+                        if (interval == 0 || !u.ready || u.nextSendNanos > now) continue;
+                        while (u.nextSendNanos <= now) {
+                            u.sendNext(now);
+                            u.nextSendNanos += interval;
+                        }
+                        u.flush();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (User user : users) {
+                try {
+                    user.channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
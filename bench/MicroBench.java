@@ -0,0 +1,28 @@
+import java.util.function.LongSupplier;
+
+// Minimal warmup/measure loop for the benchmarks in this directory; the project has no build tool to pull in JMH.
+final class MicroBench {
+
+    // results are folded in here so the JIT cannot drop the measured work
+    static volatile long sink;
+
+    private MicroBench() {
+    }
+
+    static void measure(String name, int warmupIterations, int iterations, LongSupplier operation) {
+        for (int i = 0; i < warmupIterations; i++) {
+            sink += operation.getAsLong();
+        }
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            sink += operation.getAsLong();
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            best = Math.min(best, elapsed);
+        }
+        System.out.printf("%-48s avg %12.2f us   best %12.2f us%n",
+                name, total / (double) iterations / 1_000, best / 1_000.0);
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Checks that DMs written while a ChatConnection is disconnected reach their target once it reconnects, on
+// handles opened on the new session rather than the ones the old session had bound. The sender goes through a
+// proxy in this JVM that cuts the connection and turns reconnects away for a while. Exits with status 1 if a
+// DM is lost or acked as undeliverable.
+// Run: javac -d out *.java bench/*.java && java -cp out ReconnectCheck
+public class ReconnectCheck {
+
+    private static final int WHILE_DOWN = 5;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("talkhub.log.dir", Files.createTempDirectory("talkhub-reconnect").toString());
+        properties.setProperty("talkhub.inbox.dir", "");
+        ServerConfig config = new ServerConfig(properties);
+        ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+        ChatHub hub = new ChatHub(config, MessageLog.open(config));
+        Thread acceptor = new Thread(new Server(listener.socket(), hub)::startServer, "accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Proxy proxy = new Proxy(port);
+
+        ChatConnection receiver = new ChatConnection("127.0.0.1", port, "receiver");
+        receiver.open();
+        ChatConnection sender = new ChatConnection("127.0.0.1", proxy.port(), "sender");
+        sender.open();
+        expect(sender, ChatEvent.Kind.HISTORY_END);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!sender.isOnline("receiver") && System.currentTimeMillis() < deadline) Thread.sleep(20);
+
+        // binds a handle on the first session
+        sender.sendDirect("receiver", "before");
+        expectAck(sender);
+        expectDm(receiver, "before");
+
+        proxy.cut(true);
+        expect(sender, ChatEvent.Kind.DISCONNECTED);
+        for (int i = 0; i < WHILE_DOWN; i++) {
+            sender.sendDirect("receiver", "while down " + i);
+        }
+        proxy.cut(false);
+        expect(sender, ChatEvent.Kind.CONNECTED);
+        for (int i = 0; i < WHILE_DOWN; i++) {
+            expectAck(sender);
+        }
+        for (int i = 0; i < WHILE_DOWN; i++) {
+            expectDm(receiver, "while down " + i);
+        }
+
+        sender.close();
+        receiver.close();
+        System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void expectAck(ChatConnection connection) throws Exception {
+        ChatEvent ack = expect(connection, ChatEvent.Kind.DM_ACK);
+        if (ack != null && ack.getText() != null) fail("DM " + ack.getMessageId() + " acked as: " + ack.getText());
+    }
+
+    private static void expectDm(ChatConnection connection, String text) throws Exception {
+        ChatEvent dm = expect(connection, ChatEvent.Kind.DM);
+        if (dm != null && !text.equals(dm.getText())) fail("expected DM \"" + text + "\", got \"" + dm.getText() + "\"");
+        else if (dm != null) System.out.println(connection.getUsername() + ": DM \"" + text + "\"");
+    }
+
+    // the next event of that kind, skipping the others
+    private static ChatEvent expect(ChatConnection connection, ChatEvent.Kind kind) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        long left;
+        while ((left = deadline - System.currentTimeMillis()) > 0) {
+            ChatEvent event = connection.pollEvent(left, TimeUnit.MILLISECONDS);
+            if (event == null) break;
+            if (event.getKind() == kind) return event;
+        }
+        fail(connection.getUsername() + " never got " + kind);
+        return null;
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAIL: " + message);
+        failures++;
+    }
+
+    // forwards connections to the server; while cut, drops the open ones and hangs up on new ones
+    private static final class Proxy {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final int target;
+        private final List<Socket> open = new CopyOnWriteArrayList<>();
+        private volatile boolean cut;
+
+        Proxy(int target) throws IOException {
+            this.target = target;
+            Thread thread = new Thread(this::acceptLoop, "proxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        void cut(boolean cut) throws IOException {
+            this.cut = cut;
+            if (!cut) return;
+            for (Socket socket : open) {
+                socket.close();
+            }
+            open.clear();
+        }
+
+        private void acceptLoop() {
+            while (true) {
+                try {
+                    Socket client = serverSocket.accept();
+                    if (cut) {
+                        client.close();
+                        continue;
+                    }
+                    Socket server = new Socket("127.0.0.1", target);
+                    open.add(client);
+                    open.add(server);
+                    pipe(client, server);
+                    pipe(server, client);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private static void pipe(Socket from, Socket to) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException ignored) {
+                    // cut
+                }
+                try {
+                    from.close();
+                    to.close();
+                } catch (IOException ignored) {}
+            }, "proxy-pipe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// Fills a message log with synthetic chat, rebuilds the search index from it as a restarted server would, then
+// times one page of results for rare, common and combined words, with and without a visibility filter.
+// The index over the default 10M messages takes about 250 MB of heap.
+// Run: javac -d out *.java bench/*.java && java -Xmx2g -cp out SearchBenchmark [messages] [log directory]
+public class SearchBenchmark {
+
+    private static final int VOCABULARY = 20_000;
+    private static final int ROOMS = 8;
+    // how far the appends may run ahead of the writer, so queued records do not fill the heap
+    private static final long MAX_UNCOMMITTED = 100_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Path directory = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("talkhub-search");
+        Properties properties = new Properties();
+        properties.setProperty("talkhub.log.dir", directory.toString());
+        properties.setProperty("talkhub.log.syncIntervalMillis", "0");
+        ServerConfig config = new ServerConfig(properties);
+
+        MessageLog log = MessageLog.open(config);
+        long start = System.nanoTime();
+        fill(log, messages);
+        System.out.printf("log: %d messages appended in %d ms%n", messages, elapsedMillis(start));
+
+        start = System.nanoTime();
+        SearchIndex index = SearchIndex.create(log, config);
+        while (index.getIndexedSeq() < log.committedSequence()) {
+            Thread.sleep(10);
+        }
+        System.out.printf("index: rebuilt in %d ms, heap in use %d MB%n", elapsedMillis(start), usedHeapMegabytes());
+
+        Predicate<LogRecord> everything = record -> true;
+        Predicate<LogRecord> oneRoom = record -> record.getRoom().equals("room1");
+        for (String query : new String[] {word(VOCABULARY - 1), word(500), word(0), word(0) + " " + word(1),
+                word(3) + " " + word(VOCABULARY - 1)}) {
+            measure(index, "\"" + query + "\"", query, everything);
+            measure(index, "\"" + query + "\" in one room of " + ROOMS, query, oneRoom);
+        }
+        log.close();
+    }
+
+    private static void fill(MessageLog log, int messages) throws InterruptedException {
+        SplittableRandom random = new SplittableRandom(42);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < messages; i++) {
+            text.setLength(0);
+            int words = 4 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) text.append(' ');
+                text.append(word(zipf(random)));
+            }
+            log.append(LogRecord.ROOM, "room" + random.nextInt(ROOMS), "user" + random.nextInt(1_000), "",
+                    text.toString());
+            while (log.lastSequence() - log.committedSequence() > MAX_UNCOMMITTED) {
+                Thread.sleep(1);
+            }
+        }
+        while (log.committedSequence() < log.lastSequence()) {
+            Thread.sleep(10);
+        }
+    }
+
+    // word ranks skewed like natural language: rank 0 is in about half the messages, the rarest in a few hundred
+    private static int zipf(SplittableRandom random) {
+        return (int) Math.min(VOCABULARY - 1, Math.floor(Math.exp(random.nextDouble() * Math.log(VOCABULARY + 1)) - 1));
+    }
+
+    private static String word(int rank) {
+        return "w" + Integer.toString(rank, 36);
+    }
+
+    private static void measure(SearchIndex index, String name, String query, Predicate<LogRecord> visible) {
+        long[] hits = new long[1];
+        MicroBench.measure(name, 20, 200, () -> {
+            try {
+                SearchIndex.Page page = index.search(query, 0, 0, visible);
+                hits[0] = page.getHits().size();
+                return page.getNext();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        System.out.printf("%-48s %d hits on the first page%n", "", hits[0]);
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static long usedHeapMegabytes() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+    }
+}
@@ -0,0 +1,95 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Checks that a user snapshot of [users] (default 10,000) names with long usernames is cut into frames no
+// client reader refuses, and that a ChatConnection joining a server with that many users online gets every
+// name in one USER_SNAPSHOT event. The users are mirrored in from a pretend cluster peer, so no sockets are
+// needed for them. Exits with status 1 if a check fails.
+// Run: javac -d out *.java bench/*.java && java -cp out SnapshotCheck [users]
+public class SnapshotCheck {
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        String padding = "u".repeat(BinaryCodec.MAX_NAME_LENGTH - 8);
+
+        Session[] sessions = new Session[users];
+        for (int i = 0; i < users; i++) {
+            sessions[i] = new RemoteSession(i + 1, padding + String.format("%08d", i), "peer");
+        }
+        ByteBuffer frames = EncodedMessage.userSnapshot(1, sessions).frame(WireProtocol.BINARY);
+        int count = 0;
+        int largest = 0;
+        for (int start = frames.position(); start < frames.limit(); count++) {
+            int end = BinaryCodec.frameEnd(frames, start);
+            int type = frames.get(start);
+            int header = 1;
+            while ((frames.get(start + header++) & 0x80) != 0) {
+                // the length varint
+            }
+            int bodyLength = end - start - header;
+            largest = Math.max(largest, bodyLength);
+            boolean last = end == frames.limit();
+            if (type != (last ? BinaryCodec.USER_SNAPSHOT : BinaryCodec.SNAPSHOT_PART)) {
+                fail("frame " + count + " has type " + type);
+            }
+            start = end;
+        }
+        System.out.println(users + " users: " + frames.remaining() + " bytes in " + count
+                + " frames, largest body " + largest + " bytes");
+        if (largest > BinaryCodec.MAX_BODY_LENGTH) fail("a frame body is over " + BinaryCodec.MAX_BODY_LENGTH);
+
+        Properties properties = new Properties();
+        properties.setProperty("talkhub.log.dir", Files.createTempDirectory("talkhub-snapshot").toString());
+        properties.setProperty("talkhub.inbox.dir", "");
+        ServerConfig config = new ServerConfig(properties);
+        ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+        ChatHub hub = new ChatHub(config, MessageLog.open(config));
+        for (Session session : sessions) {
+            hub.remoteUserUp("peer", session.getUsername());
+        }
+        Thread acceptor = new Thread(new Server(listener.socket(), hub)::startServer, "accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        ChatConnection connection = new ChatConnection("127.0.0.1", port, "joiner");
+        connection.open();
+        long deadline = System.currentTimeMillis() + 10_000;
+        ChatEvent snapshot = null;
+        long left;
+        while (snapshot == null && (left = deadline - System.currentTimeMillis()) > 0) {
+            ChatEvent event = connection.pollEvent(left, TimeUnit.MILLISECONDS);
+            if (event == null) break;
+            if (event.getKind() == ChatEvent.Kind.DISCONNECTED) fail("disconnected: " + event.getText());
+            if (event.getKind() == ChatEvent.Kind.USER_SNAPSHOT) snapshot = event;
+        }
+        if (snapshot == null) {
+            fail("no snapshot arrived");
+        } else {
+            List<String> names = snapshot.getUsers();
+            Set<String> distinct = new HashSet<>(names);
+            System.out.println("joiner: snapshot of " + names.size() + " users");
+            if (names.size() != users + 1 || distinct.size() != users + 1) {
+                fail("expected " + (users + 1) + " distinct users, got " + distinct.size() + " of " + names.size());
+            }
+            if (!connection.isOnline(sessions[users - 1].getUsername())) fail("the last user is not online");
+        }
+        connection.close();
+        System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAIL: " + message);
+        failures++;
+    }
+}